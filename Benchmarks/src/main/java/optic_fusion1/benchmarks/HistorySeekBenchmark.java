@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.benchmarks;
+
+import optic_fusion1.common.data.Message;
+import optic_fusion1.common.data.User;
+import optic_fusion1.server.history.ChatLog;
+import optic_fusion1.server.history.ChatRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Latency of the two seeks behind a history fetch, a page before a sequence number and a page since a time, at a random
+ * point of histories of different sizes. With the sparse index both should stay flat as the history grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistorySeekBenchmark {
+
+  private static final int PAGE = 100;
+  private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  @Param({"10000", "100000", "1000000"})
+  public int messages;
+
+  private Path directory;
+  private ChatLog chatLog;
+  private long firstTimestamp;
+  private long lastTimestamp;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("history-seek");
+    chatLog = new ChatLog(directory.toFile(), SEGMENT_SIZE);
+    User user = new User(UUID.randomUUID(), "Alice");
+    for (int i = 1; i <= messages; i++) {
+      chatLog.append("room-" + (i % 50), new Message(user, "history message number " + i).serialize());
+      // the queue drops what it cannot take, stay well within it
+      while (i - chatLog.getLastSequence() > 10_000) {
+        Thread.onSpinWait();
+      }
+    }
+    while (chatLog.getLastSequence() < messages) {
+      Thread.onSpinWait();
+    }
+    if (chatLog.getDropped() > 0) {
+      throw new IllegalStateException(chatLog.getDropped() + " messages were dropped while filling the history");
+    }
+    firstTimestamp = chatLog.readAfter(0, 1, record -> true).get(0).timestamp();
+    lastTimestamp = chatLog.readBefore(Long.MAX_VALUE, 1, record -> true).get(0).timestamp();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    chatLog.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Benchmark
+  public List<ChatRecord> readBefore() {
+    return chatLog.readBefore(ThreadLocalRandom.current().nextLong(PAGE + 1, messages + 1), PAGE, record -> true);
+  }
+
+  @Benchmark
+  public List<ChatRecord> readSince() {
+    return chatLog.readSince(ThreadLocalRandom.current().nextLong(firstTimestamp, lastTimestamp + 1), PAGE, record -> true);
+  }
+}
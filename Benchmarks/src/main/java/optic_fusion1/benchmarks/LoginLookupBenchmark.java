@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.benchmarks;
+
+import optic_fusion1.server.Database;
+import optic_fusion1.server.database.UserRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Logins per second the user database can serve to 1, 4 and 16 clients logging in at once, with {@code readers} read
+ * connections in the pool. Every login looks its user up by username with the {@link optic_fusion1.server.database.UserCache}
+ * turned off, so each one reaches SQLite.
+ * <p>
+ * The bcrypt check that follows the lookup is left out: it runs on the password hasher threads, costs the same with or
+ * without the pool, and at tens of milliseconds per check it would hide the database entirely.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginLookupBenchmark {
+
+  private static final String HASH = "$2a$10$abcdefghijklmnopqrstuu5Xq9zUcvo6yqUq0mS0b0K8O0bq7l4xK";
+
+  @Param({"10000"})
+  public int users;
+  @Param({"1", "4"})
+  public int readers;
+
+  private Path directory;
+  private Database database;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("login-lookup");
+    database = new Database(directory.resolve("database.db").toFile(), readers, 0, 60);
+    List<UserRecord> batch = new ArrayList<>();
+    for (int i = 0; i < users; i++) {
+      batch.add(new UserRecord(UUID.randomUUID(), "user" + i, HASH, false));
+    }
+    if (database.insertUsers(batch) != users) {
+      throw new IllegalStateException("Could not fill the user database");
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    database.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public UserRecord clients1() {
+    return login();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public UserRecord clients4() {
+    return login();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public UserRecord clients16() {
+    return login();
+  }
+
+  private UserRecord login() {
+    // mixed case, as typed by users
+    UserRecord user = database.findUser("User" + ThreadLocalRandom.current().nextInt(users));
+    if (user == null) {
+      throw new IllegalStateException("A user went missing");
+    }
+    return user;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.benchmarks;
+
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.network.BroadcastFanout;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.OutboundQueue;
+import optic_fusion1.server.rooms.Room;
+import optic_fusion1.server.rooms.RoomManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Time from broadcasting a chat message until it is queued on every recipient, on a server with {@code users}
+ * connections spread evenly over {@code rooms} rooms. {@link #room()} sends to one room, {@link #serverWide()} sends the
+ * same message to every connection, which is what every chat message cost before rooms.
+ * <p>
+ * Recipients are {@link StubConnection}s, so the time per recipient is a counter increment instead of encrypting and
+ * queueing the frame; what is left is the routing the rooms change. After each broadcast a marker is sent to one
+ * connection per fanout stripe; stripes keep submission order, so the broadcast is done once every marker has arrived.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomFanoutBenchmark {
+
+  private static final byte[] MARKER = new byte[0];
+
+  @Param({"10000"})
+  public int users;
+  @Param({"500"})
+  public int rooms;
+  @Param({"1", "4"})
+  public int threads;
+
+  private BroadcastFanout fanout;
+  private RoomManager roomManager;
+  private final List<ClientConnection> connections = new ArrayList<>();
+  private final List<ClientConnection> markers = new ArrayList<>();
+  private StubConnection probe;
+  private final AtomicReference<CountDownLatch> done = new AtomicReference<>();
+  private MessagePacket packet;
+  private byte[] data;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    fanout = new BroadcastFanout(StubConnection.stubServer(), threads);
+    roomManager = new RoomManager(fanout, 0);
+    for (int i = 0; i < users; i++) {
+      StubConnection connection = new StubConnection(i);
+      connections.add(connection);
+      roomManager.join(connection, "room-" + (i % rooms));
+    }
+    probe = (StubConnection) connections.get(0);
+    for (int i = 0; i < threads; i++) {
+      markers.add(new StubConnection(users + i) {
+        @Override
+        public void sendRawPacket(OutboundQueue.Lane lane, byte[] data) {
+          done.get().countDown();
+        }
+      });
+    }
+    packet = new MessagePacket(OpCode.MESSAGE, "hello everyone in this room", MessagePacket.MessageChatType.USER);
+    data = new byte[256];
+    // let the join deltas drain before measuring
+    await();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fanout.shutdown();
+    if (probe.getReceived() == 0) {
+      throw new IllegalStateException("No broadcast reached its recipients");
+    }
+    for (ClientConnection connection : connections) {
+      connection.terminateConnection();
+    }
+    for (ClientConnection connection : markers) {
+      connection.terminateConnection();
+    }
+  }
+
+  @Benchmark
+  public void room() throws InterruptedException {
+    Room room = roomManager.getRoom("room-" + (next++ % rooms));
+    room.broadcastChat(packet, data);
+    await();
+  }
+
+  @Benchmark
+  public void serverWide() throws InterruptedException {
+    fanout.broadcastPacket(connections, packet, data);
+    await();
+  }
+
+  private void await() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(threads);
+    done.set(latch);
+    fanout.broadcastRawPacket(markers, MARKER);
+    latch.await();
+  }
+}
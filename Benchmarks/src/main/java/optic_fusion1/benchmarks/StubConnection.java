@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.benchmarks;
+
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.FloodControl;
+import optic_fusion1.server.network.OutboundQueue;
+import optic_fusion1.server.network.SocketServer;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Properties;
+
+/**
+ * A connection without a client that counts the frames sent to it instead of queueing them.
+ * <p>
+ * Mockito stubs cost microseconds per call, more than the code being measured, so the server stub is only asked for its
+ * settings when a connection is built and once per broadcast, never once per recipient.
+ */
+class StubConnection extends ClientConnection {
+
+  private static final SocketServer SERVER = createServer();
+
+  private final int connectionId;
+  private int received;
+
+  StubConnection(int connectionId) {
+    super(SERVER, new NullSocket());
+    this.connectionId = connectionId;
+    // no frame ever reaches the writer
+    getOutboundQueue().close();
+  }
+
+  /**
+   * @return the server stub the connections belong to, without batching
+   */
+  static SocketServer stubServer() {
+    return SERVER;
+  }
+
+  private static SocketServer createServer() {
+    SocketServer server = Mockito.mock(SocketServer.class, Mockito.withSettings().stubOnly());
+    Mockito.when(server.getFloodControl()).thenReturn(new FloodControl(new Properties()));
+    Mockito.when(server.getBulkQueueLimit()).thenReturn(Integer.MAX_VALUE);
+    Mockito.when(server.getMaxPacketSize()).thenReturn(Integer.MAX_VALUE);
+    try {
+      Mockito.when(server.serializePacket(Mockito.any())).thenReturn(new byte[64]);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return server;
+  }
+
+  @Override
+  public int getConnectionId() {
+    return connectionId;
+  }
+
+  @Override
+  public void sendRawPacket(OutboundQueue.Lane lane, byte[] data) {
+    received++;
+  }
+
+  /**
+   * Only read from the fanout thread of the connection's stripe, or once that thread is done.
+   */
+  int getReceived() {
+    return received;
+  }
+
+  private static final class NullSocket extends Socket {
+
+    @Override
+    public InputStream getInputStream() {
+      return InputStream.nullInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return OutputStream.nullOutputStream();
+    }
+  }
+}
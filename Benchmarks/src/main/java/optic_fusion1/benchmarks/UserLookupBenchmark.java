@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.benchmarks;
+
+import optic_fusion1.server.Database;
+import optic_fusion1.server.database.UserRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Looking a user up by username among a million accounts. {@link #indexed()} goes through {@link Database} on the
+ * migrated schema, with the user cache off. {@link #legacyLike()} runs the query the server used before the migrations,
+ * {@code WHERE username LIKE ?}, on a table with the old schema.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserLookupBenchmark {
+
+  private static final String HASH = "$2a$10$abcdefghijklmnopqrstuu5Xq9zUcvo6yqUq0mS0b0K8O0bq7l4xK";
+  private static final int BATCH = 10_000;
+
+  @Param({"1000000"})
+  public int users;
+
+  private Path directory;
+  private Database database;
+  private Connection legacy;
+  private PreparedStatement legacyLookup;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    directory = Files.createTempDirectory("user-lookup");
+    database = new Database(directory.resolve("database.db").toFile(), 1, 0, 60);
+    legacy = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("legacy.db"));
+    try (Statement statement = legacy.createStatement()) {
+      statement.execute("CREATE TABLE `users` (`username` TEXT NOT NULL PRIMARY KEY, `uuid` BINARY(16) NOT NULL, `pass` CHAR(60) NOT NULL, `isGlobalOp` BOOLEAN NOT NULL DEFAULT false, `nickname` TEXT)");
+    }
+    legacy.setAutoCommit(false);
+    try (PreparedStatement insert = legacy.prepareStatement("INSERT INTO `users` (`username`, `uuid`, `pass`) VALUES (?, ?, ?)")) {
+      List<UserRecord> batch = new ArrayList<>(BATCH);
+      for (int i = 0; i < users; i++) {
+        UserRecord user = new UserRecord(UUID.randomUUID(), "user" + i, HASH, false);
+        batch.add(user);
+        insert.setString(1, user.username());
+        insert.setString(2, user.uniqueId().toString());
+        insert.setString(3, HASH);
+        insert.addBatch();
+        if (batch.size() == BATCH) {
+          flush(batch, insert);
+        }
+      }
+      flush(batch, insert);
+    }
+    legacy.setAutoCommit(true);
+    legacyLookup = legacy.prepareStatement("SELECT * FROM `users` WHERE `username` LIKE ?");
+  }
+
+  private void flush(List<UserRecord> batch, PreparedStatement insert) throws SQLException {
+    if (database.insertUsers(batch) != batch.size()) {
+      throw new IllegalStateException("Could not fill the user database");
+    }
+    batch.clear();
+    insert.executeBatch();
+    legacy.commit();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, SQLException {
+    legacyLookup.close();
+    legacy.close();
+    database.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Benchmark
+  public UserRecord indexed() {
+    UserRecord user = database.findUser("User" + ThreadLocalRandom.current().nextInt(users));
+    if (user == null) {
+      throw new IllegalStateException("A user went missing");
+    }
+    return user;
+  }
+
+  @Benchmark
+  public String legacyLike() throws SQLException {
+    legacyLookup.setString(1, "User" + ThreadLocalRandom.current().nextInt(users));
+    try (ResultSet resultSet = legacyLookup.executeQuery()) {
+      if (!resultSet.next()) {
+        throw new IllegalStateException("A user went missing");
+      }
+      return resultSet.getString("pass");
+    }
+  }
+}
@@ -2,7 +2,10 @@ package optic_fusion1.client;
 
 import optic_fusion1.client.network.SocketClient;
 import optic_fusion1.client.network.listeners.PacketListener;
+import optic_fusion1.packets.impl.HistoryRequestPacket;
+import optic_fusion1.packets.impl.MessageBatchPacket;
 import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.packets.impl.PresencePacket;
 
 import java.io.IOException;
 import java.net.ConnectException;
@@ -14,6 +17,9 @@ public class Client {
   public Client(String host, int port, String username, String password) throws ConnectException {
     socketClient = new SocketClient(this, host, port, username, password);
     socketClient.getPacketRegister().addPacket("message", MessagePacket.class);
+    socketClient.getPacketRegister().addPacket("messagebatch", MessageBatchPacket.class);
+    socketClient.getPacketRegister().addPacket("presence", PresencePacket.class);
+    socketClient.getPacketRegister().addPacket("history", HistoryRequestPacket.class);
     socketClient.addEventListener(new PacketListener());
 
     try {
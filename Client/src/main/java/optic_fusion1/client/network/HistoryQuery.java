@@ -0,0 +1,59 @@
+package optic_fusion1.client.network;
+
+import optic_fusion1.packets.impl.HistoryRequestPacket;
+import optic_fusion1.packets.impl.HistoryRequestPacket.HistoryMode;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Turns the client side {@code /history} command into a {@link HistoryRequestPacket}.
+ */
+public final class HistoryQuery {
+
+  public static final String USAGE = "Usage: /history [count] | /history before|after <#message> [count] | /history since <HH:mm|yyyy-MM-ddTHH:mm> [count]";
+  private static final int DEFAULT_COUNT = 50;
+
+  private HistoryQuery() {
+  }
+
+  /**
+   * @param args everything after {@code /history}
+   * @return the request, or null if the arguments are invalid
+   */
+  public static HistoryRequestPacket parse(String args) {
+    String[] parts = args.trim().isEmpty() ? new String[0] : args.trim().split("\\s+");
+    try {
+      if (parts.length == 0) {
+        return new HistoryRequestPacket(HistoryMode.BEFORE, Long.MAX_VALUE, DEFAULT_COUNT);
+      }
+      if (parts.length == 1) {
+        return new HistoryRequestPacket(HistoryMode.BEFORE, Long.MAX_VALUE, Integer.parseInt(parts[0]));
+      }
+      if (parts.length > 3) {
+        return null;
+      }
+      int count = parts.length == 3 ? Integer.parseInt(parts[2]) : DEFAULT_COUNT;
+      return switch (parts[0].toLowerCase()) {
+        case "before" -> new HistoryRequestPacket(HistoryMode.BEFORE, parseSequence(parts[1]), count);
+        case "after" -> new HistoryRequestPacket(HistoryMode.AFTER, parseSequence(parts[1]), count);
+        case "since" -> new HistoryRequestPacket(HistoryMode.SINCE, parseTime(parts[1]), count);
+        default -> null;
+      };
+    } catch (NumberFormatException | DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  private static long parseSequence(String value) {
+    return Long.parseLong(value.startsWith("#") ? value.substring(1) : value);
+  }
+
+  private static long parseTime(String value) {
+    LocalDateTime time = value.contains("T") ? LocalDateTime.parse(value) : LocalDateTime.of(LocalDate.now(), LocalTime.parse(value));
+    return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+}
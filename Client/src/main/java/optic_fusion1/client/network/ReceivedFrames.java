@@ -0,0 +1,51 @@
+package optic_fusion1.client.network;
+
+import java.util.BitSet;
+
+/**
+ * Sequence numbers of the frames received in the current stream. The server sends replies on a lane that overtakes
+ * queued chat, so numbers can arrive out of order; the acknowledgement is the highest number up to which every frame
+ * has arrived.
+ */
+public class ReceivedFrames {
+
+  private long acknowledged;
+  // bit i stands for sequence acknowledged + 1 + i, only set for frames that arrived ahead of a gap
+  private BitSet ahead = new BitSet();
+
+  /**
+   * @return false if the frame was received before, which happens when a resume replays frames that had arrived
+   */
+  public synchronized boolean add(long sequence) {
+    if (sequence <= acknowledged) {
+      return false;
+    }
+    int offset = (int) (sequence - acknowledged - 1);
+    if (offset == 0 && ahead.isEmpty()) {
+      acknowledged = sequence;
+      return true;
+    }
+    if (ahead.get(offset)) {
+      return false;
+    }
+    ahead.set(offset);
+    if (offset == 0) {
+      int received = ahead.nextClearBit(0);
+      acknowledged += received;
+      ahead = ahead.get(received, Math.max(received, ahead.length()));
+    }
+    return true;
+  }
+
+  public synchronized long getAcknowledged() {
+    return acknowledged;
+  }
+
+  /**
+   * Starts over for a new stream, its numbers begin at 1 again.
+   */
+  public synchronized void reset() {
+    acknowledged = 0;
+    ahead.clear();
+  }
+}
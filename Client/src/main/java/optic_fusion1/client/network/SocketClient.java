@@ -6,6 +6,7 @@ import optic_fusion1.commands.command.CommandSender;
 import optic_fusion1.common.data.Message;
 import optic_fusion1.common.data.User;
 import optic_fusion1.packets.IPacket;
+import optic_fusion1.packets.impl.HistoryRequestPacket;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -17,6 +18,8 @@ import java.security.PublicKey;
 import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import optic_fusion1.packets.OpCode;
 import optic_fusion1.packets.PacketRegister;
 import optic_fusion1.packets.impl.MessagePacket;
@@ -28,17 +31,19 @@ import org.apache.logging.log4j.Logger;
 public class SocketClient implements CommandSender {
 
   private static final Logger LOGGER = LogManager.getLogger();
+  private static final long MIN_RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(1);
+  private static final long MAX_RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(30);
 
   private final Client client;
   private final String ip;
   private final int port;
-  private Socket socket;
+  private volatile Socket socket;
   private DataInputStream dataInputStream;
   private DataOutputStream dataOutputStream;
   private int maxPacketSize = 32767;
   private User user;
 
-  private Thread packetListener;
+  private volatile Thread packetListener;
   private final List<ClientEventListener> eventListener;
 
   private PublicKey encryptionKey;
@@ -48,6 +53,10 @@ public class SocketClient implements CommandSender {
 
   private final String username;
   private final String password;
+  private volatile String sessionToken;
+  private volatile String streamId;
+  private final ReceivedFrames receivedFrames = new ReceivedFrames();
+  private volatile boolean closed;
 
   public SocketClient(final Client client, final String ip, final int port, final String username,
       final String password) {
@@ -62,6 +71,11 @@ public class SocketClient implements CommandSender {
   }
 
   public void connect() throws IOException {
+    open();
+    handleInput();
+  }
+
+  private void open() throws IOException {
     if (this.isConnected()) {
       throw new IllegalStateException("Client socket is already connected to address " + this.ip);
     }
@@ -75,6 +89,8 @@ public class SocketClient implements CommandSender {
       while (!this.packetListener.isInterrupted() && this.socket.isConnected()) {
         try {
           int packetLength = this.dataInputStream.readInt();
+          // 0 for frames outside the session stream
+          long sequence = this.dataInputStream.readLong();
           if (packetLength > this.maxPacketSize) {
             LOGGER.warn("Server packet is over max size of " + maxPacketSize);
             try {
@@ -91,7 +107,7 @@ public class SocketClient implements CommandSender {
           byte[] packet = new byte[packetLength];
           dataInputStream.read(packet);
 
-          this.onPacketReceive(packet);
+          this.onPacketReceive(sequence, packet);
         } catch (EOFException | SocketException | SocketTimeoutException e) {
           break;
         } catch (Throwable e) {
@@ -131,9 +147,11 @@ public class SocketClient implements CommandSender {
         }
       }
     }
-    handleInput();
   }
 
+  /**
+   * Drops the connection; unless the client was {@link #close() closed} it reconnects afterwards.
+   */
   public void disconnect() {
     try {
       this.socket.shutdownInput();
@@ -142,6 +160,39 @@ public class SocketClient implements CommandSender {
     }
   }
 
+  /**
+   * Disconnects for good, without reconnecting.
+   */
+  public void close() {
+    this.closed = true;
+    disconnect();
+  }
+
+  /**
+   * Connects again with a growing, randomized delay, so that clients dropped by a server restart do not all come back
+   * in the same instant. Logging in again is left to the LOGIN_REQUIRED handshake, which presents the session token.
+   */
+  private void reconnect() {
+    long delay = MIN_RECONNECT_DELAY;
+    while (!this.closed && !this.isConnected()) {
+      long wait = delay + ThreadLocalRandom.current().nextLong(delay);
+      LOGGER.info(String.format("Reconnecting in %.1f seconds...", wait / 1000D));
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      try {
+        open();
+        return;
+      } catch (IOException e) {
+        LOGGER.info("Could not reconnect: " + e.getLocalizedMessage());
+        delay = Math.min(MAX_RECONNECT_DELAY, delay * 2);
+      }
+    }
+  }
+
   public boolean isConnected() {
     return this.socket != null && this.socket.isConnected() && this.packetListener.isAlive()
         && !this.packetListener.isInterrupted();
@@ -182,9 +233,19 @@ public class SocketClient implements CommandSender {
         }
       }
     }
+
+    if (!this.closed) {
+      Thread reconnect = new Thread(this::reconnect, "Reconnect");
+      reconnect.setDaemon(true);
+      reconnect.start();
+    }
   }
 
-  private void onPacketReceive(byte[] packet) {
+  private void onPacketReceive(long sequence, byte[] packet) {
+    if (sequence != 0 && !this.receivedFrames.add(sequence)) {
+      // replayed after a resume but already received before the reconnect
+      return;
+    }
     if (this.encryptionKey == null) {
       try {
         this.encryptionKey = RSACrypter.initPublicKey(packet);
@@ -214,14 +275,11 @@ public class SocketClient implements CommandSender {
     }
 
     try {
-      DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet));
-      String packetLabel = dis.readUTF();
-      Class<? extends IPacket> packetClass = this.packetRegister.getPacketClass(packetLabel);
-      IPacket packetObject = packetClass.newInstance();
-      packetObject.readPacketData(dis);
-
-      if (packetObject instanceof PingPacket) {
-        this.sendPacket(packetObject);
+      IPacket packetObject = this.readPacket(packet);
+
+      if (packetObject instanceof PingPacket pingPacket) {
+        // the reply acknowledges the stream, so the server can let go of the frames we have
+        this.sendPacket(new PingPacket(pingPacket.getSystemTime(), this.receivedFrames.getAcknowledged()));
         return;
       }
 
@@ -248,6 +306,15 @@ public class SocketClient implements CommandSender {
     }
   }
 
+  private IPacket readPacket(byte[] packet) throws Exception {
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet));
+    String packetLabel = dis.readUTF();
+    Class<? extends IPacket> packetClass = this.packetRegister.getPacketClass(packetLabel);
+    IPacket packetObject = packetClass.newInstance();
+    packetObject.readPacketData(dis);
+    return packetObject;
+  }
+
   public void sendRawPacket(byte[] data) throws IOException {
     if (!this.isConnected()) {
       throw new IllegalStateException("Client is not connected to a server");
@@ -263,8 +330,11 @@ public class SocketClient implements CommandSender {
     if (data.length > this.maxPacketSize) {
       throw new RuntimeException("Packet size over maximum: " + data.length + " > " + this.maxPacketSize);
     }
-    this.dataOutputStream.writeInt(data.length);
-    this.dataOutputStream.write(data);
+    // ping replies are sent from the listener thread while chat is sent from the input thread
+    synchronized (this.dataOutputStream) {
+      this.dataOutputStream.writeInt(data.length);
+      this.dataOutputStream.write(data);
+    }
   }
 
   @Override
@@ -292,12 +362,25 @@ public class SocketClient implements CommandSender {
 
   public void handleInput() {
     Scanner scanner = new Scanner(System.in);
-    while (isConnected()) {
+    while (!this.closed) {
       String msg = scanner.nextLine();
       // prevent sending empty messages
       if (msg.isEmpty() || msg.startsWith(" ")) {
         continue;
       }
+      if (!isConnected()) {
+        LOGGER.info("Not connected to the server, the message was not sent");
+        continue;
+      }
+      if (msg.equals("/history") || msg.startsWith("/history ")) {
+        HistoryRequestPacket request = HistoryQuery.parse(msg.substring("/history".length()));
+        if (request == null) {
+          LOGGER.info(HistoryQuery.USAGE);
+        } else {
+          sendPacket(request);
+        }
+        continue;
+      }
       sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(this.user, msg).serialize(),
           MessagePacket.MessageChatType.USER));
     }
@@ -319,4 +402,39 @@ public class SocketClient implements CommandSender {
     return password;
   }
 
+  public void setSessionToken(String sessionToken) {
+    this.sessionToken = sessionToken;
+  }
+
+  /**
+   * @return the session token, which is forgotten so a refused token is never presented twice; a successful resume
+   * hands out a new one
+   */
+  public String takeSessionToken() {
+    String token = this.sessionToken;
+    this.sessionToken = null;
+    return token;
+  }
+
+  /**
+   * Starts a new stream, the frames of the old one can no longer be resumed.
+   *
+   * @param streamId id the server gave the stream
+   */
+  public void setStreamId(String streamId) {
+    this.streamId = streamId;
+    this.receivedFrames.reset();
+  }
+
+  public String getStreamId() {
+    return streamId;
+  }
+
+  /**
+   * @return the sequence up to which every frame of the stream has been received
+   */
+  public long getAcknowledgedSequence() {
+    return receivedFrames.getAcknowledged();
+  }
+
 }
@@ -1,26 +1,56 @@
 package optic_fusion1.client.network.listeners;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import optic_fusion1.client.network.SocketClient;
 import optic_fusion1.common.data.Message;
 import optic_fusion1.common.data.User;
 import optic_fusion1.packets.IPacket;
 import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.HistoryRequestPacket;
+import optic_fusion1.packets.impl.MessageBatchPacket;
 import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.packets.impl.PresencePacket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.UUID;
+
 public class PacketListener implements ClientEventListener {
 
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
 
     @Override
     public void onPacketReceive(SocketClient socketClient, IPacket packet) {
+        if (packet instanceof MessageBatchPacket batchPacket) {
+            for (MessagePacket messagePacket : batchPacket.getMessages()) {
+                onPacketReceive(socketClient, messagePacket);
+            }
+            return;
+        }
+        if (packet instanceof PresencePacket presencePacket) {
+            onPresence(presencePacket);
+            return;
+        }
         if (packet instanceof MessagePacket messagePacket) {
             OpCode opCode = messagePacket.getOpCode();
 
             switch (opCode) {
                 case LOGIN_REQUIRED -> {
-                    if (socketClient.getUsername() != null && socketClient.getPassword() != null) {
+                    String sessionToken = socketClient.takeSessionToken();
+                    if (sessionToken != null) {
+                        LOGGER.info("Resuming session...");
+                        // naming the stream gets only the missed messages instead of a fresh login
+                        String command = socketClient.getStreamId() == null ? "/resume " + sessionToken
+                                : String.format("/resume %s %s %d", sessionToken, socketClient.getStreamId(), socketClient.getAcknowledgedSequence());
+                        socketClient.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(socketClient.getUser(), command).serialize(), MessagePacket.MessageChatType.USER));
+                    } else if (socketClient.getUsername() != null && socketClient.getPassword() != null) {
                         LOGGER.info("Trying to login...");
                         socketClient.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(socketClient.getUser(), String.format("/login %s %s", socketClient.getUsername(), socketClient.getPassword())).serialize(), MessagePacket.MessageChatType.USER));
                     } else {
@@ -29,9 +59,14 @@ public class PacketListener implements ClientEventListener {
                 }
                 case LOGIN -> {
                     User user = User.deserialize(messagePacket.getMessage());
-                    // TODO: we should probably track the known clients in a hashmap somewhere
                     LOGGER.info(String.format("== %s has joined ==", user.getUsername()));
                 }
+                case SESSION -> socketClient.setSessionToken(messagePacket.getMessage());
+                case STREAM -> {
+                    // a new stream begins with a presence snapshot, a resumed one keeps the list and gets the missed deltas replayed
+                    User.getUsers().clear();
+                    socketClient.setStreamId(messagePacket.getMessage());
+                }
                 case LOGGED_IN -> {
                     User user = User.deserialize(messagePacket.getMessage());
                     socketClient.setUser(user);
@@ -61,14 +96,62 @@ public class PacketListener implements ClientEventListener {
                         case SYSTEM -> {
                             LOGGER.info(String.format("[System]: %s", message.getContent()));
                         }
+                        case DIRECT -> {
+                            String from = message.getUser() == null ? "Server" : message.getUser().getUsername();
+                            LOGGER.info(String.format("[%s -> You]: %s", from, message.getContent()));
+                        }
+                    }
+                }
+                case JOIN_ROOM, LEAVE_ROOM -> {
+                    JsonParser parser = new JsonParser();
+                    JsonObject object = (JsonObject) parser.parse(messagePacket.getMessage());
+                    String room = object.get("room").getAsString();
+                    User user = User.deserialize(object.get("user").getAsString());
+                    if (opCode == OpCode.JOIN_ROOM) {
+                        LOGGER.info(String.format("== %s joined %s ==", user.getUsername(), room));
+                    } else {
+                        LOGGER.info(String.format("== %s left %s ==", user.getUsername(), room));
                     }
                 }
+                case HISTORY -> {
+                    JsonParser parser = new JsonParser();
+                    JsonObject object = (JsonObject) parser.parse(messagePacket.getMessage());
+                    Message message = Message.deserialize(object.get("message").getAsString());
+                    LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(object.get("timestamp").getAsLong()), ZoneId.systemDefault());
+                    LOGGER.info(String.format("#%d [%s] %s: %s", object.get("sequence").getAsLong(), HISTORY_TIME.format(time),
+                            message.getUser() == null ? "Server" : message.getUser().getUsername(), message.getContent()));
+                }
+                case GAP -> {
+                    JsonParser parser = new JsonParser();
+                    JsonObject object = (JsonObject) parser.parse(messagePacket.getMessage());
+                    LOGGER.info(String.format("== %d messages were dropped while you fell behind, fetching the history ==", object.get("dropped").getAsLong()));
+                    // the server caps the count, and messages that did arrive are shown again in the history
+                    socketClient.sendPacket(new HistoryRequestPacket(HistoryRequestPacket.HistoryMode.SINCE, object.get("since").getAsLong(), Integer.MAX_VALUE));
+                }
                 case CONNECT -> LOGGER.info("CONNECT");
                 case UNKNOWN -> LOGGER.info("UNKNOWN");
             }
         }
     }
 
+    private void onPresence(PresencePacket packet) {
+        Map<UUID, User> users = User.getUsers();
+        for (User user : packet.getJoined()) {
+            if (users.put(user.getUuid(), user) == null && packet.getType() == PresencePacket.PresenceType.DELTA) {
+                LOGGER.info(String.format("== %s has joined ==", user.getUsername()));
+            }
+        }
+        for (UUID uuid : packet.getLeft()) {
+            User user = users.remove(uuid);
+            if (user != null) {
+                LOGGER.info(String.format("== %s has disconnected ==", user.getUsername()));
+            }
+        }
+        if (packet.getType() == PresencePacket.PresenceType.SNAPSHOT) {
+            LOGGER.info(String.format("== %d users online ==", users.size()));
+        }
+    }
+
     @Override
     public void onConnectionEstablished() {
         LOGGER.info("=== Connected to server ===");
@@ -76,6 +159,7 @@ public class PacketListener implements ClientEventListener {
 
     @Override
     public void onDisconnect() {
+        // the online list is kept for a resume, it is only replaced when the next login starts a new stream
         LOGGER.info("=== Disconnected ===");
     }
 }
\ No newline at end of file
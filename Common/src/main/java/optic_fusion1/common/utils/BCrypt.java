@@ -3,8 +3,17 @@ package optic_fusion1.common.utils;
 import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
 
+/**
+ * OpenBSD bcrypt ({@code $2a$}) password hashing.
+ * <p>
+ * The Blowfish state of a hash is kept per thread and reset between hashes, so the expensive key schedule allocates
+ * nothing. {@link #calibrate(long, int, int)} picks the cost factor that fits a time budget on the current machine and
+ * {@link #getRounds(String)} tells how expensive an existing hash is, so outdated hashes can be replaced.
+ */
 public final class BCrypt {
 
+    private static final ThreadLocal<BCrypt> STATE = ThreadLocal.withInitial(BCrypt::new);
+
     private BCrypt() {
     }
 
@@ -13,12 +22,16 @@ public final class BCrypt {
     private static final int[] bf_crypt_ciphertext = new int[]{1332899944, 1700884034, 1701343084, 1684370003, 1668446532, 1869963892};
     private static final char[] base64_code = new char[]{'.', '/', 'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
     private static final byte[] index_64 = new byte[]{-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 0, 1, 54, 55, 56, 57, 58, 59, 60, 61, 62, 63, -1, -1, -1, -1, -1, -1, -1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, -1, -1, -1, -1, -1, -1, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40, 41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51, 52, 53, -1, -1, -1, -1, -1};
-    private int[] P;
-    private int[] S;
+    private final int[] P = new int[BCrypt.P_orig.length];
+    private final int[] S = new int[BCrypt.S_orig.length];
+    private final int[] lr = new int[2];
+    private final int[] koffp = new int[1];
+    private final int[] doffp = new int[1];
+    private final int[] cdata = new int[BCrypt.bf_crypt_ciphertext.length];
 
     private static String encode_base64(final byte[] d, final int len) throws IllegalArgumentException {
         int off = 0;
-        final StringBuffer rs = new StringBuffer();
+        final StringBuilder rs = new StringBuilder();
         if (len <= 0 || len > d.length) {
             throw new IllegalArgumentException("Invalid len");
         }
@@ -47,14 +60,14 @@ public final class BCrypt {
     }
 
     private static byte char64(final char x) {
-        if (x < '\0' || x > BCrypt.index_64.length) {
+        if (x >= BCrypt.index_64.length) {
             return -1;
         }
         return BCrypt.index_64[x];
     }
 
     private static byte[] decode_base64(final String s, final int maxolen) throws IllegalArgumentException {
-        final StringBuffer rs = new StringBuffer();
+        final StringBuilder rs = new StringBuilder();
         int off = 0;
         final int slen = s.length();
         int olen = 0;
@@ -105,18 +118,21 @@ public final class BCrypt {
         return ret;
     }
 
-    private final void encipher(final int[] lr, final int off) {
+    private void encipher(final int[] lr, final int off) {
+        // locals let the JIT keep the arrays in registers through the 16 rounds
+        final int[] P = this.P;
+        final int[] S = this.S;
         int l = lr[off];
         int r = lr[off + 1];
-        l ^= this.P[0];
+        l ^= P[0];
         int n;
-        for (int i = 0; i <= 14; r ^= (n ^ this.P[++i]), n = this.S[r >> 24 & 0xFF], n += this.S[0x100 | (r >> 16 & 0xFF)], n ^= this.S[0x200 | (r >> 8 & 0xFF)], n += this.S[0x300 | (r & 0xFF)], l ^= (n ^ this.P[++i])) {
-            n = this.S[l >> 24 & 0xFF];
-            n += this.S[0x100 | (l >> 16 & 0xFF)];
-            n ^= this.S[0x200 | (l >> 8 & 0xFF)];
-            n += this.S[0x300 | (l & 0xFF)];
+        for (int i = 0; i <= 14; r ^= (n ^ P[++i]), n = S[r >> 24 & 0xFF], n += S[0x100 | (r >> 16 & 0xFF)], n ^= S[0x200 | (r >> 8 & 0xFF)], n += S[0x300 | (r & 0xFF)], l ^= (n ^ P[++i])) {
+            n = S[l >> 24 & 0xFF];
+            n += S[0x100 | (l >> 16 & 0xFF)];
+            n ^= S[0x200 | (l >> 8 & 0xFF)];
+            n += S[0x300 | (l & 0xFF)];
         }
-        lr[off] = (r ^ this.P[17]);
+        lr[off] = (r ^ P[17]);
         lr[off + 1] = l;
     }
 
@@ -125,20 +141,25 @@ public final class BCrypt {
         int off = offp[0];
         for (int i = 0; i < 4; ++i) {
             word = (word << 8 | (data[off] & 0xFF));
-            off = (off + 1) % data.length;
+            if (++off == data.length) {
+                off = 0;
+            }
         }
         offp[0] = off;
         return word;
     }
 
     private void init_key() {
-        this.P = BCrypt.P_orig.clone();
-        this.S = BCrypt.S_orig.clone();
+        System.arraycopy(BCrypt.P_orig, 0, this.P, 0, this.P.length);
+        System.arraycopy(BCrypt.S_orig, 0, this.S, 0, this.S.length);
     }
 
     private void key(final byte[] key) {
-        final int[] koffp = {0};
-        final int[] lr = {0, 0};
+        final int[] koffp = this.koffp;
+        final int[] lr = this.lr;
+        koffp[0] = 0;
+        lr[0] = 0;
+        lr[1] = 0;
         final int plen = this.P.length;
         final int slen = this.S.length;
         for (int i = 0; i < plen; ++i) {
@@ -157,9 +178,13 @@ public final class BCrypt {
     }
 
     private void ekskey(final byte[] data, final byte[] key) {
-        final int[] koffp = {0};
-        final int[] doffp = {0};
-        final int[] lr = {0, 0};
+        final int[] koffp = this.koffp;
+        final int[] doffp = this.doffp;
+        final int[] lr = this.lr;
+        koffp[0] = 0;
+        doffp[0] = 0;
+        lr[0] = 0;
+        lr[1] = 0;
         final int plen = this.P.length;
         final int slen = this.S.length;
         for (int i = 0; i < plen; ++i) {
@@ -225,7 +250,7 @@ public final class BCrypt {
     public static String hashpw(final String password, final String salt) {
         char minor = '\0';
         int off = 0;
-        final StringBuffer rs = new StringBuffer();
+        final StringBuilder rs = new StringBuilder();
         if (salt.charAt(0) != '$' || salt.charAt(1) != '2') {
             throw new IllegalArgumentException("Invalid salt version");
         }
@@ -250,8 +275,9 @@ public final class BCrypt {
             throw new AssertionError((Object) "UTF-8 is not supported");
         }
         final byte[] saltb = decode_base64(real_salt, 16);
-        final BCrypt B = new BCrypt();
-        final byte[] hashed = B.crypt_raw(passwordb, saltb, rounds, BCrypt.bf_crypt_ciphertext.clone());
+        final BCrypt B = BCrypt.STATE.get();
+        System.arraycopy(BCrypt.bf_crypt_ciphertext, 0, B.cdata, 0, B.cdata.length);
+        final byte[] hashed = B.crypt_raw(passwordb, saltb, rounds, B.cdata);
         rs.append("$2");
         if (minor >= 'a') {
             rs.append(minor);
@@ -271,7 +297,7 @@ public final class BCrypt {
     }
 
     public static String gensalt(final int log_rounds, final SecureRandom random) {
-        final StringBuffer rs = new StringBuffer();
+        final StringBuilder rs = new StringBuilder();
         final byte[] rnd = new byte[16];
         random.nextBytes(rnd);
         rs.append("$2a$");
@@ -295,6 +321,55 @@ public final class BCrypt {
         return gensalt(10);
     }
 
+    /**
+     * @param hashed a bcrypt hash
+     * @return the cost factor (log2 of the rounds) the hash was made with
+     */
+    public static int getRounds(final String hashed) {
+        if (hashed == null || hashed.length() < 7 || !hashed.startsWith("$2")) {
+            throw new IllegalArgumentException("Invalid hash");
+        }
+        final int off = hashed.charAt(2) == '$' ? 3 : 4;
+        try {
+            return Integer.parseInt(hashed.substring(off, off + 2));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid hash rounds", e);
+        }
+    }
+
+    /**
+     * Finds the highest cost factor whose hash still takes no longer than the target on this machine. Every step of the
+     * cost doubles the work, so only the lowest cost is measured and the rest is extrapolated from it.
+     *
+     * @param targetMillis time one hash may take
+     * @param minRounds lowest cost factor to return, even if it is slower than the target
+     * @param maxRounds highest cost factor to return
+     * @return the cost factor to pass to {@link #gensalt(int)}
+     */
+    public static int calibrate(final long targetMillis, final int minRounds, final int maxRounds) {
+        final int probeRounds = 8;
+        final String salt = gensalt(probeRounds);
+        long best = Long.MAX_VALUE;
+        // the first runs include class loading and JIT compilation
+        for (int i = 0; i < 5; ++i) {
+            final long start = System.nanoTime();
+            hashpw("calibration", salt);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        int rounds = probeRounds;
+        long nanos = best;
+        final long target = targetMillis * 1_000_000L;
+        while (rounds < maxRounds && nanos * 2 <= target) {
+            nanos *= 2;
+            ++rounds;
+        }
+        while (rounds > minRounds && nanos > target) {
+            nanos /= 2;
+            --rounds;
+        }
+        return Math.max(minRounds, Math.min(maxRounds, rounds));
+    }
+
     public static boolean checkpw(final String plaintext, final String hashed) {
         if (null == hashed || !hashed.startsWith("$2a$")) {
             throw new java.lang.IllegalArgumentException("Invalid hash provided for comparison");
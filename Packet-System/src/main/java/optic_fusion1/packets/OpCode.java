@@ -10,7 +10,13 @@ public enum OpCode {
   LOGIN(2),
   LOGGED_IN(3),
   LOGIN_REQUIRED(4),
-  MESSAGE(5);
+  MESSAGE(5),
+  JOIN_ROOM(6),
+  LEAVE_ROOM(7),
+  HISTORY(8),
+  SESSION(9),
+  STREAM(10),
+  GAP(11);
 
   private final int code;
 
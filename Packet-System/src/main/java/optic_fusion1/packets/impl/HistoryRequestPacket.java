@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.packets.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import optic_fusion1.packets.IPacket;
+
+/**
+ * Asks the server for chat history of the current room. The server answers with a {@link MessageBatchPacket} of
+ * {@link optic_fusion1.packets.OpCode#HISTORY} messages, oldest first.
+ */
+public class HistoryRequestPacket implements IPacket {
+
+  private HistoryMode mode;
+  private long value;
+  private int limit;
+
+  public HistoryRequestPacket() {
+  }
+
+  /**
+   * @param mode how {@code value} is interpreted
+   * @param value a sequence number or a timestamp in milliseconds
+   * @param limit maximum number of messages to return
+   */
+  public HistoryRequestPacket(HistoryMode mode, long value, int limit) {
+    this.mode = mode;
+    this.value = value;
+    this.limit = limit;
+  }
+
+  public enum HistoryMode {
+    /**
+     * Messages with a sequence number greater than the value
+     */
+    AFTER,
+    /**
+     * Messages with a sequence number less than the value
+     */
+    BEFORE,
+    /**
+     * Messages sent at or after the value, in milliseconds since the epoch
+     */
+    SINCE
+  }
+
+  @Override
+  public void writePacketData(DataOutputStream dataOutputStream) throws IOException {
+    dataOutputStream.writeByte(mode.ordinal());
+    dataOutputStream.writeLong(value);
+    dataOutputStream.writeInt(limit);
+  }
+
+  @Override
+  public void readPacketData(DataInputStream dataInputStream) throws IOException {
+    int ordinal = dataInputStream.readByte();
+    if (ordinal < 0 || ordinal >= HistoryMode.values().length) {
+      throw new IOException("Unknown history mode " + ordinal);
+    }
+    mode = HistoryMode.values()[ordinal];
+    value = dataInputStream.readLong();
+    limit = dataInputStream.readInt();
+  }
+
+  public HistoryMode getMode() {
+    return mode;
+  }
+
+  public long getValue() {
+    return value;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.packets.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import optic_fusion1.packets.IPacket;
+
+/**
+ * Carries several {@link MessagePacket}s in a single frame so they share one cipher call and one socket write.
+ */
+public class MessageBatchPacket implements IPacket {
+
+  private List<MessagePacket> messages;
+
+  public MessageBatchPacket() {
+  }
+
+  public MessageBatchPacket(List<MessagePacket> messages) {
+    this.messages = messages;
+  }
+
+  @Override
+  public void writePacketData(DataOutputStream dataOutputStream) throws IOException {
+    dataOutputStream.writeInt(messages.size());
+    for (MessagePacket message : messages) {
+      message.writePacketData(dataOutputStream);
+    }
+  }
+
+  @Override
+  public void readPacketData(DataInputStream dataInputStream) throws IOException {
+    int size = dataInputStream.readInt();
+    messages = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      MessagePacket message = new MessagePacket();
+      message.readPacketData(dataInputStream);
+      messages.add(message);
+    }
+  }
+
+  public List<MessagePacket> getMessages() {
+    return messages;
+  }
+}
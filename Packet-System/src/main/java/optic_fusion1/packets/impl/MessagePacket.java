@@ -43,7 +43,8 @@ public class MessagePacket implements IPacket {
   public enum MessageChatType {
     USER("USER"),
     SYSTEM("SYSTEM"),
-    SERVER("SERVER");
+    SERVER("SERVER"),
+    DIRECT("DIRECT");
 
     private final String name;
 
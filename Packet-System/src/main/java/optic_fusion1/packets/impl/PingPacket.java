@@ -23,29 +23,48 @@ import optic_fusion1.packets.IPacket;
 
 import java.io.IOException;
 
+/**
+ * Measures the round trip to the client. The client echoes the ping and piggybacks the highest frame sequence
+ * number up to which it has received every frame, so acknowledging costs no extra frame.
+ */
 public class PingPacket implements IPacket {
 
   private long systemTime;
+  private long acknowledged;
 
   public PingPacket() {
   }
 
   public PingPacket(final long systemTime) {
+    this(systemTime, 0);
+  }
+
+  public PingPacket(final long systemTime, final long acknowledged) {
     this.systemTime = systemTime;
+    this.acknowledged = acknowledged;
   }
 
   @Override
   public void writePacketData(DataOutputStream dataOutputStream) throws IOException {
     dataOutputStream.writeLong(this.systemTime);
+    dataOutputStream.writeLong(this.acknowledged);
   }
 
   @Override
   public void readPacketData(DataInputStream dataInputStream) throws IOException {
     this.systemTime = dataInputStream.readLong();
+    this.acknowledged = dataInputStream.readLong();
   }
 
   public long getSystemTime() {
     return this.systemTime;
   }
 
+  /**
+   * @return cumulative acknowledgement of sequenced frames, 0 if none has been received
+   */
+  public long getAcknowledged() {
+    return this.acknowledged;
+  }
+
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.packets.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import optic_fusion1.common.data.User;
+import optic_fusion1.packets.IPacket;
+
+/**
+ * Compact presence update. A snapshot lists who is online when a user logs in, a delta carries the joins and leaves
+ * that happened since the previous delta.
+ */
+public class PresencePacket implements IPacket {
+
+  private PresenceType type;
+  private List<User> joined;
+  private List<UUID> left;
+
+  public PresencePacket() {
+  }
+
+  public PresencePacket(PresenceType type, List<User> joined, List<UUID> left) {
+    this.type = type;
+    this.joined = joined;
+    this.left = left;
+  }
+
+  public enum PresenceType {
+    SNAPSHOT,
+    DELTA
+  }
+
+  @Override
+  public void writePacketData(DataOutputStream dataOutputStream) throws IOException {
+    dataOutputStream.writeByte(type.ordinal());
+    dataOutputStream.writeInt(joined.size());
+    for (User user : joined) {
+      writeUUID(dataOutputStream, user.getUuid());
+      dataOutputStream.writeUTF(user.getUsername());
+    }
+    dataOutputStream.writeInt(left.size());
+    for (UUID uuid : left) {
+      writeUUID(dataOutputStream, uuid);
+    }
+  }
+
+  @Override
+  public void readPacketData(DataInputStream dataInputStream) throws IOException {
+    int ordinal = dataInputStream.readByte();
+    if (ordinal < 0 || ordinal >= PresenceType.values().length) {
+      throw new IOException("Unknown presence type " + ordinal);
+    }
+    type = PresenceType.values()[ordinal];
+    int joinedSize = dataInputStream.readInt();
+    joined = new ArrayList<>(joinedSize);
+    for (int i = 0; i < joinedSize; i++) {
+      joined.add(new User(readUUID(dataInputStream), dataInputStream.readUTF()));
+    }
+    int leftSize = dataInputStream.readInt();
+    left = new ArrayList<>(leftSize);
+    for (int i = 0; i < leftSize; i++) {
+      left.add(readUUID(dataInputStream));
+    }
+  }
+
+  private static void writeUUID(DataOutputStream dataOutputStream, UUID uuid) throws IOException {
+    dataOutputStream.writeLong(uuid.getMostSignificantBits());
+    dataOutputStream.writeLong(uuid.getLeastSignificantBits());
+  }
+
+  private static UUID readUUID(DataInputStream dataInputStream) throws IOException {
+    return new UUID(dataInputStream.readLong(), dataInputStream.readLong());
+  }
+
+  public PresenceType getType() {
+    return type;
+  }
+
+  public List<User> getJoined() {
+    return joined;
+  }
+
+  public List<UUID> getLeft() {
+    return left;
+  }
+}
@@ -16,8 +16,12 @@
  */
 package optic_fusion1.server;
 
-import optic_fusion1.common.utils.BCrypt;
-import optic_fusion1.server.utils.RandomString;
+import optic_fusion1.server.database.ConnectionPool;
+import optic_fusion1.server.database.SchemaMigrations;
+import optic_fusion1.server.database.UserCache;
+import optic_fusion1.server.database.UserRecord;
+import optic_fusion1.server.database.UserStore;
+import optic_fusion1.server.database.UuidCodec;
 import optic_fusion1.server.utils.Utils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -26,153 +30,194 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.sql.*;
+import java.util.List;
 import java.util.UUID;
 
-public class Database {
+/**
+ * The SQLite {@link UserStore}, stored in {@code data/database.db} with lookups by username served through a
+ * {@link UserCache}.
+ */
+public class Database implements UserStore {
 
     private static final Logger LOGGER = LogManager.getLogger();
 
-    private Connection connection;
+    private ConnectionPool pool;
+    private final UserCache userCache;
 
-    public Database() {
-        try {
-            File file = Utils.getFile("data", "database.db");
-            if (!file.exists()) {
-                try {
-                    file.createNewFile();
-                } catch (IOException ex) {
-                    LOGGER.fatal(ex.getLocalizedMessage());
-                }
-            }
+    /**
+     * @param readers number of read connections, see {@link ConnectionPool}
+     * @param cacheSize maximum number of usernames in the {@link UserCache}
+     * @param cacheTtlSeconds seconds a cached user is kept
+     */
+    public Database(int readers, long cacheSize, long cacheTtlSeconds) {
+        this(locateFile(), readers, cacheSize, cacheTtlSeconds);
+    }
+
+    /**
+     * @param file the SQLite database, created if missing
+     * @param readers number of read connections, see {@link ConnectionPool}
+     * @param cacheSize maximum number of usernames in the {@link UserCache}, 0 to look every user up
+     * @param cacheTtlSeconds seconds a cached user is kept
+     */
+    public Database(File file, int readers, long cacheSize, long cacheTtlSeconds) {
+        this.userCache = new UserCache(cacheSize, cacheTtlSeconds);
+        if (!file.exists()) {
             try {
-                connection = DriverManager.getConnection("jdbc:sqlite:" + file.toURI());
-            } catch (SQLException ex) {
+                file.createNewFile();
+            } catch (IOException ex) {
                 LOGGER.fatal(ex.getLocalizedMessage());
             }
-            executePrepareStatement();
-
-            // handle creating a server admin user
-          boolean serverUserExists = containsUser("admin");
-            if (!serverUserExists) {
-                LOGGER.debug("A server user does not exist, creating one...");
-                createServerOpUser();
-            } else LOGGER.debug("A server user has already been created.");
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
         }
-    }
-
-    private void executePrepareStatement() {
         try {
-            connection.prepareStatement("CREATE TABLE IF NOT EXISTS `users` (`username` TEXT NOT NULL PRIMARY KEY, `uuid` BINARY(16) NOT NULL, `pass` CHAR(60) NOT NULL, `isGlobalOp` BOOLEAN NOT NULL DEFAULT false, `nickname` TEXT)").execute();
+            pool = new ConnectionPool(file, readers);
         } catch (SQLException ex) {
-            LOGGER.fatal(ex.getLocalizedMessage());
+            throw new IllegalStateException("Could not open the user database", ex);
         }
-    }
-
-    private static final String INSERT_SERVER_OP_USER = "INSERT OR IGNORE INTO `users` (`username`, `uuid`, `pass`, `isGlobalOp`) VALUES (?, ?, ?, ?)";
-
-    public void createServerOpUser() {
         try {
-            final String adminPassword = new RandomString().nextString();
-            final String adminUUID = UUID.randomUUID().toString();
-            PreparedStatement statement = connection.prepareStatement(INSERT_SERVER_OP_USER);
-            statement.setString(1, "admin");
-            statement.setString(2, adminUUID);
-            statement.setString(3, BCrypt.hashpw(adminPassword, BCrypt.gensalt()));
-            statement.setBoolean(4, true);
-            statement.execute();
-
-            LOGGER.info("------------------------------");
-            LOGGER.info("Server admin user has been created, do not loose these credentials!!");
-            LOGGER.info(String.format("Username: admin; Password: %s", adminPassword));
-            LOGGER.info("------------------------------");
+            new SchemaMigrations(pool).migrate();
         } catch (SQLException ex) {
-            LOGGER.fatal(ex.getLocalizedMessage());
+            // serving on a schema the queries do not expect would corrupt or lose accounts
+            pool.close();
+            throw new IllegalStateException("Could not migrate the user database", ex);
         }
     }
 
-    private static final String INSERT_USER = "INSERT OR IGNORE INTO `users` (`username`, `uuid`, `pass`) VALUES (?, ?, ?)";
-
-    public void insertUser(String userName, UUID uniqueId, String hashedPassword) {
+    private static File locateFile() {
         try {
-            PreparedStatement statement = connection.prepareStatement(INSERT_USER);
-            statement.setString(1, userName);
-            statement.setString(2, uniqueId.toString());
-            statement.setString(3, hashedPassword);
-            statement.execute();
-        } catch (SQLException ex) {
-            LOGGER.fatal(ex.getLocalizedMessage());
+            return Utils.getFile("data", "database.db");
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Could not locate the user database", e);
         }
     }
 
-    private static final String CONTAINS_USER = "SELECT * FROM `users` WHERE `username` LIKE ?";
+    private static final String INSERT_USER = "INSERT OR IGNORE INTO `users` (`username`, `uuid`, `pass`, `isGlobalOp`) VALUES (?, ?, ?, ?)";
 
-    public boolean containsUser(String userName) {
+    @Override
+    public boolean insertUser(UserRecord user) {
         try {
-            PreparedStatement statement = connection.prepareStatement(CONTAINS_USER);
-            statement.setString(1, userName);
-            ResultSet resultSet = statement.executeQuery();
-            return resultSet.next();
+            int inserted = pool.write(connection -> {
+                PreparedStatement statement = connection.prepare(INSERT_USER);
+                bindUser(statement, user);
+                return statement.executeUpdate();
+            });
+            userCache.invalidate(user.username());
+            return inserted > 0;
         } catch (SQLException ex) {
             LOGGER.fatal(ex.getLocalizedMessage());
         }
         return false;
     }
 
-    private static final String GET_UUID = "SELECT uuid FROM `users` WHERE `username` = ?";
+    private static void bindUser(PreparedStatement statement, UserRecord user) throws SQLException {
+        statement.setString(1, user.username());
+        statement.setBytes(2, UuidCodec.toBytes(user.uniqueId()));
+        statement.setString(3, user.passwordHash());
+        statement.setBoolean(4, user.op());
+    }
 
-    public UUID getUUID(String username) {
+    /**
+     * Adds the whole batch in a single transaction, so it costs one commit.
+     */
+    @Override
+    public int insertUsers(List<UserRecord> users) {
         try {
-            PreparedStatement statement = connection.prepareStatement(GET_UUID);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                return UUID.fromString(resultSet.getString("uuid"));
+            int inserted = pool.write(connection -> {
+                Connection raw = connection.getConnection();
+                raw.setAutoCommit(false);
+                try {
+                    PreparedStatement statement = connection.prepare(INSERT_USER);
+                    for (UserRecord user : users) {
+                        bindUser(statement, user);
+                        statement.addBatch();
+                    }
+                    int count = 0;
+                    for (int result : statement.executeBatch()) {
+                        count += result > 0 ? 1 : 0;
+                    }
+                    raw.commit();
+                    return count;
+                } catch (SQLException ex) {
+                    raw.rollback();
+                    throw ex;
+                } finally {
+                    raw.setAutoCommit(true);
+                }
+            });
+            for (UserRecord user : users) {
+                userCache.invalidate(user.username());
             }
+            return inserted;
         } catch (SQLException ex) {
             LOGGER.fatal(ex.getLocalizedMessage());
         }
-        return null;
+        return 0;
     }
 
-    private static final String GET_PASSWORD = "SELECT pass FROM `users` WHERE `username` = ?";
+    private static final String USERNAME_TAKEN = "SELECT 1 FROM `users` WHERE `username` = ? COLLATE NOCASE";
 
-    public boolean isPasswordAlreadySet(String username) {
+    /**
+     * Checks a username without going through the {@link UserCache}, for bulk work that would only flush it.
+     */
+    @Override
+    public boolean isUsernameTaken(String username) {
         try {
-            PreparedStatement statement = connection.prepareStatement(GET_PASSWORD);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            return resultSet.next();
+            return pool.read(connection -> {
+                PreparedStatement statement = connection.prepare(USERNAME_TAKEN);
+                statement.setString(1, username);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next();
+                }
+            });
         } catch (SQLException ex) {
             LOGGER.fatal(ex.getLocalizedMessage());
         }
         return false;
     }
 
-    public boolean isPasswordCorrect(String username, String password) {
+    private static final String FIND_USER = "SELECT `username`, `uuid`, `pass`, `isGlobalOp` FROM `users` WHERE `username` = ? COLLATE NOCASE";
+
+    /**
+     * Looks a user up by username, ignoring case. Served from the {@link UserCache} when possible.
+     *
+     * @param username the username
+     * @return the user, or null if there is no such user
+     */
+    @Override
+    public UserRecord findUser(String username) {
         try {
-            PreparedStatement statement = connection.prepareStatement(GET_PASSWORD);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            boolean hasNext = resultSet.next();
-            if (hasNext) {
-                return BCrypt.checkpw(password, resultSet.getString("pass"));
-            }
+            return userCache.get(username, this::loadUser).orElse(null);
         } catch (SQLException ex) {
             LOGGER.fatal(ex.getLocalizedMessage());
         }
-        return false;
+        return null;
+    }
+
+    private UserRecord loadUser(String username) throws SQLException {
+        return pool.read(connection -> {
+            PreparedStatement statement = connection.prepare(FIND_USER);
+            statement.setString(1, username);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new UserRecord(UuidCodec.fromBytes(resultSet.getBytes("uuid")), resultSet.getString("username"),
+                        resultSet.getString("pass"), resultSet.getBoolean("isGlobalOp"));
+            }
+        });
     }
 
     private static final String UPDATE_NICKNAME = "UPDATE users SET nickname = ? WHERE uuid = ?";
 
+    @Override
     public void updateNickname(UUID uniqueId, String nickname) {
         try {
-            PreparedStatement statement = connection.prepareStatement(UPDATE_NICKNAME);
-            statement.setString(1, nickname);
-            statement.setString(2, uniqueId.toString());
-            statement.execute();
+            pool.write(connection -> {
+                PreparedStatement statement = connection.prepare(UPDATE_NICKNAME);
+                statement.setString(1, nickname);
+                statement.setBytes(2, UuidCodec.toBytes(uniqueId));
+                return statement.executeUpdate();
+            });
+            userCache.invalidate(uniqueId);
         } catch (SQLException ex) {
             LOGGER.fatal(ex.getLocalizedMessage());
         }
@@ -180,14 +225,56 @@ public class Database {
 
     private static final String UPDATE_PASSWORD = "UPDATE users SET pass = ? WHERE uuid = ?";
 
+    @Override
     public void updatePassword(UUID uniqueId, String password) {
         try {
-            PreparedStatement statement = connection.prepareStatement(UPDATE_PASSWORD);
-            statement.setString(1, password);
-            statement.setString(2, uniqueId.toString());
-            statement.execute();
+            pool.write(connection -> {
+                PreparedStatement statement = connection.prepare(UPDATE_PASSWORD);
+                statement.setString(1, password);
+                statement.setBytes(2, UuidCodec.toBytes(uniqueId));
+                return statement.executeUpdate();
+            });
+            userCache.invalidate(uniqueId);
         } catch (SQLException ex) {
             LOGGER.fatal(ex.getLocalizedMessage());
         }
     }
+
+    private static final String REPLACE_PASSWORD = "UPDATE users SET pass = ? WHERE uuid = ? AND pass = ?";
+
+    @Override
+    public boolean replacePassword(UUID uniqueId, String expected, String password) {
+        try {
+            int updated = pool.write(connection -> {
+                PreparedStatement statement = connection.prepare(REPLACE_PASSWORD);
+                statement.setString(1, password);
+                statement.setBytes(2, UuidCodec.toBytes(uniqueId));
+                statement.setString(3, expected);
+                return statement.executeUpdate();
+            });
+            userCache.invalidate(uniqueId);
+            return updated > 0;
+        } catch (SQLException ex) {
+            LOGGER.fatal(ex.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return number of prepared statements kept open across the pool
+     */
+    public int getCachedStatementCount() {
+        return pool == null ? 0 : pool.getCachedStatementCount();
+    }
+
+    public UserCache getUserCache() {
+        return userCache;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
 }
@@ -30,6 +30,11 @@ public class Main {
         AnsiConsole.systemInstall();
         LOGGER.info("Starting server...");
         Server server = new Server();
-        server.start();
+        try {
+            server.start();
+        } catch (IllegalStateException ex) {
+            LOGGER.fatal("Could not start the server", ex);
+            System.exit(1);
+        }
     }
 }
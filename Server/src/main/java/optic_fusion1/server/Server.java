@@ -1,7 +1,10 @@
 package optic_fusion1.server;
 
 import net.lenni0451.asmevents.EventManager;
+import optic_fusion1.packets.impl.HistoryRequestPacket;
+import optic_fusion1.packets.impl.MessageBatchPacket;
 import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.packets.impl.PresencePacket;
 import optic_fusion1.server.network.SocketServer;
 import optic_fusion1.server.network.listeners.ConnectionListener;
 import optic_fusion1.server.network.listeners.PacketListener;
@@ -18,6 +21,9 @@ public class Server {
   public void start() throws IOException {
     SocketServer socketServer = new SocketServer(this);
     socketServer.getPacketRegister().addPacket("message", MessagePacket.class);
+    socketServer.getPacketRegister().addPacket("messagebatch", MessageBatchPacket.class);
+    socketServer.getPacketRegister().addPacket("presence", PresencePacket.class);
+    socketServer.getPacketRegister().addPacket("history", HistoryRequestPacket.class);
     socketServer.addEventListener(new PacketListener(socketServer));
     socketServer.addEventListener(new ConnectionListener(socketServer));
     EventManager.register(new CommandEventListener(socketServer.getCommandHandler()));
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.auth;
+
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.utils.RateLimiter;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttles failed logins per connection, per remote address and per target username. Every key is a GCRA bucket that
+ * refills on its own, so a lockout expires without any scheduled task; buckets that have refilled completely are
+ * swept once the tables grow large.
+ * <p>
+ * An attempt takes its token from all three buckets before the password is checked, so parallel attempts cannot all
+ * pass a check that only a later failure would have closed. A successful attempt gives its token back.
+ */
+public class LoginThrottle {
+
+  private static final int MAX_KEYS = 100_000;
+  private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+  /**
+   * Stands in for a bucket that could not be created because its table is full.
+   */
+  private static final RateLimiter UNTRACKED = new RateLimiter(1, 1);
+
+  private final Table connections;
+  private final Table addresses;
+  private final Table usernames;
+
+  public LoginThrottle() {
+    this(MAX_KEYS);
+  }
+
+  LoginThrottle(int maxKeys) {
+    connections = new Table(3, 10, maxKeys);
+    addresses = new Table(10, 6, maxKeys);
+    usernames = new Table(5, 30, maxKeys);
+  }
+
+  /**
+   * Takes one attempt from the connection, its address and the username, or from none of them.
+   *
+   * @param clientConnection connection trying to log in
+   * @param username username it is trying to log in as
+   * @return the attempt, check {@link Attempt#isAllowed()} before checking the password
+   */
+  public Attempt tryAcquire(ClientConnection clientConnection, String username) {
+    return tryAcquire(clientConnection, username, System.nanoTime());
+  }
+
+  Attempt tryAcquire(ClientConnection clientConnection, String username, long now) {
+    Table[] tables = {connections, addresses, usernames};
+    String[] keys = {connectionKey(clientConnection), addressKey(clientConnection), usernameKey(username)};
+    RateLimiter[] charged = new RateLimiter[tables.length];
+    for (int i = 0; i < tables.length; i++) {
+      charged[i] = tables[i].tryAcquire(keys[i], now);
+      if (charged[i] == null) {
+        long wait = tables[i].nanosUntilAllowed(keys[i], now);
+        for (int j = 0; j < i; j++) {
+          refund(charged[j]);
+        }
+        return new Attempt(null, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait)));
+      }
+    }
+    return new Attempt(charged, 0);
+  }
+
+  private static void refund(RateLimiter bucket) {
+    if (bucket != UNTRACKED) {
+      bucket.refund(1);
+    }
+  }
+
+  private static String connectionKey(ClientConnection clientConnection) {
+    return String.valueOf(clientConnection.getConnectionId());
+  }
+
+  private static String addressKey(ClientConnection clientConnection) {
+    return clientConnection.getAddress().getHostAddress();
+  }
+
+  private static String usernameKey(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * One login attempt. It counts as a failure unless it is {@link #refund() refunded}.
+   */
+  public static final class Attempt {
+
+    private final RateLimiter[] charged;
+    private final long secondsToWait;
+    private final AtomicBoolean refunded = new AtomicBoolean();
+
+    private Attempt(RateLimiter[] charged, long secondsToWait) {
+      this.charged = charged;
+      this.secondsToWait = secondsToWait;
+    }
+
+    public boolean isAllowed() {
+      return charged != null;
+    }
+
+    /**
+     * @return seconds until another attempt is allowed, 0 if this one is
+     */
+    public long getSecondsToWait() {
+      return secondsToWait;
+    }
+
+    /**
+     * Gives the token back, for an attempt that succeeded or never got to check the password. Only the first call
+     * has any effect.
+     */
+    public void refund() {
+      if (charged == null || !refunded.compareAndSet(false, true)) {
+        return;
+      }
+      for (RateLimiter bucket : charged) {
+        LoginThrottle.refund(bucket);
+      }
+    }
+  }
+
+  private static final class Table {
+
+    private final long attempts;
+    private final double refillPerSecond;
+    private final int maxKeys;
+    private final Map<String, RateLimiter> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param attempts failed attempts allowed in a burst
+     * @param secondsPerAttempt seconds until one more attempt is earned back
+     * @param maxKeys keys kept before buckets are swept
+     */
+    private Table(long attempts, long secondsPerAttempt, int maxKeys) {
+      this.attempts = attempts;
+      this.refillPerSecond = 1D / secondsPerAttempt;
+      this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @return the bucket the token was taken from, {@link #UNTRACKED} if the table has no room for the key, or null
+     * if the key is throttled
+     */
+    private RateLimiter tryAcquire(String key, long now) {
+      RateLimiter bucket = buckets.get(key);
+      if (bucket == null) {
+        if (buckets.size() >= maxKeys && !sweep(now)) {
+          // fail open rather than lock out every new key until the next sweep makes room
+          return UNTRACKED;
+        }
+        bucket = buckets.computeIfAbsent(key, k -> new RateLimiter(refillPerSecond, attempts));
+      }
+      return bucket.tryAcquire(now, 1) ? bucket : null;
+    }
+
+    private long nanosUntilAllowed(String key, long now) {
+      RateLimiter bucket = buckets.get(key);
+      return bucket == null ? 0 : bucket.nanosUntilAvailable(now, 1);
+    }
+
+    /**
+     * Drops buckets that have refilled completely, at most once per {@link #SWEEP_INTERVAL}. If that frees nothing
+     * the table is full of live buckets, e.g. junk usernames from credential stuffing, and the tenth that is closest
+     * to refilled is evicted so new keys are tracked again.
+     *
+     * @return whether there is room for a new key afterwards
+     */
+    private boolean sweep(long now) {
+      long last = lastSweep.get();
+      if (now - last >= SWEEP_INTERVAL && lastSweep.compareAndSet(last, now)) {
+        buckets.values().removeIf(bucket -> bucket.isIdle(now));
+        if (buckets.size() >= maxKeys) {
+          long[] remaining = buckets.values().stream().mapToLong(bucket -> bucket.nanosUntilIdle(now)).toArray();
+          Arrays.sort(remaining);
+          long threshold = remaining[remaining.length / 10];
+          buckets.values().removeIf(bucket -> bucket.nanosUntilIdle(now) <= threshold);
+        }
+      }
+      return buckets.size() < maxKeys;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.auth;
+
+import optic_fusion1.common.utils.BCrypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs every bcrypt hash and check of the server on a fixed number of threads with a bounded queue, so a burst of
+ * logins cannot take every core away from the network and database threads.
+ * <p>
+ * Work past the queue limit is refused straight away: the returned future fails with a
+ * {@link RejectedExecutionException}, see {@link #isBusy(Throwable)}, and the caller should ask the client to retry.
+ */
+public class PasswordHasher {
+
+  private final ThreadPoolExecutor executor;
+  private final int queueLimit;
+  private final int cost;
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong lastNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * @param threads number of hashing threads
+   * @param queueLimit number of hashes that may wait for a thread
+   * @param cost bcrypt cost factor of new hashes
+   */
+  public PasswordHasher(int threads, int queueLimit, int cost) {
+    this.queueLimit = Math.max(1, queueLimit);
+    this.cost = cost;
+    AtomicInteger threadId = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(this.queueLimit), runnable -> {
+      Thread thread = new Thread(runnable, "Password-Hasher-" + threadId.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return the bcrypt hash of the password
+   */
+  public CompletableFuture<String> hash(String password) {
+    return submit(() -> BCrypt.hashpw(password, BCrypt.gensalt(cost)));
+  }
+
+  /**
+   * @return whether the password matches the hash
+   */
+  public CompletableFuture<Boolean> verify(String password, String hash) {
+    return submit(() -> BCrypt.checkpw(password, hash));
+  }
+
+  /**
+   * @param hash a hash that was just verified
+   * @return whether the hash is cheaper than the current cost and should be replaced
+   */
+  public boolean needsRehash(String hash) {
+    try {
+      return BCrypt.getRounds(hash) < cost;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private <T> CompletableFuture<T> submit(Supplier<T> work) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        long start = System.nanoTime();
+        T result;
+        try {
+          result = work.get();
+        } catch (Throwable t) {
+          record(System.nanoTime() - start);
+          future.completeExceptionally(t);
+          return;
+        }
+        // recorded before completing, so whoever waits on the future sees the metrics include it
+        record(System.nanoTime() - start);
+        future.complete(result);
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  private void record(long nanos) {
+    completed.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    lastNanos.set(nanos);
+    maxNanos.accumulateAndGet(nanos, Math::max);
+  }
+
+  /**
+   * @param throwable the failure of a future returned by this hasher, possibly wrapped by a dependent stage
+   * @return whether the work was refused because the queue was full
+   */
+  public static boolean isBusy(Throwable throwable) {
+    Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    return cause instanceof RejectedExecutionException;
+  }
+
+  public int getCost() {
+    return cost;
+  }
+
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  public int getQueueLimit() {
+    return queueLimit;
+  }
+
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  public int getThreadCount() {
+    return executor.getMaximumPoolSize();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  public long getAverageNanos() {
+    long count = completed.get();
+    return count == 0 ? 0 : totalNanos.get() / count;
+  }
+
+  public long getLastNanos() {
+    return lastNanos.get();
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
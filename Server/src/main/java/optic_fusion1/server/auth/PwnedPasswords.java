@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.auth;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Offline check against the Have I Been Pwned password corpus.
+ * <p>
+ * The downloaded corpus is converted once by {@link #convert(File, File)} into a binary file of sorted 20-byte SHA-1
+ * hashes, preceded by a table of where every 16-bit hash prefix starts. The file is memory-mapped, so a lookup is one
+ * table read and a binary search over the few thousand hashes sharing the prefix, without touching the network.
+ */
+public class PwnedPasswords {
+
+  private static final int MAGIC = 0x50574e44;
+  private static final int VERSION = 1;
+  private static final int HASH_LENGTH = 20;
+  private static final int PREFIXES = 1 << 16;
+  private static final int HEADER = 4 + 4 + 8 + (PREFIXES + 1) * 8;
+  // a mapping cannot exceed 2 GiB, so the hashes are mapped in chunks of whole records
+  private static final int RECORDS_PER_CHUNK = Integer.MAX_VALUE / HASH_LENGTH;
+
+  private final long count;
+  private final long[] starts = new long[PREFIXES + 1];
+  private final MappedByteBuffer[] chunks;
+
+  /**
+   * @param file a file written by {@link #convert(File, File)}
+   */
+  public PwnedPasswords(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+      if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+        throw new IOException(file.getName() + " is not a converted password corpus");
+      }
+      this.count = header.getLong();
+      for (int i = 0; i <= PREFIXES; i++) {
+        starts[i] = header.getLong();
+      }
+      if (channel.size() < HEADER + count * HASH_LENGTH || starts[PREFIXES] != count) {
+        throw new IOException(file.getName() + " is truncated");
+      }
+      this.chunks = new MappedByteBuffer[(int) ((count + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK)];
+      for (int i = 0; i < chunks.length; i++) {
+        long first = (long) i * RECORDS_PER_CHUNK;
+        long records = Math.min(RECORDS_PER_CHUNK, count - first);
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + first * HASH_LENGTH, records * HASH_LENGTH);
+      }
+    }
+  }
+
+  /**
+   * @return whether the password appears in the corpus
+   */
+  public boolean isPwned(String password) {
+    return contains(sha1(password.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * @param hash SHA-1 hash to look up
+   */
+  public boolean contains(byte[] hash) {
+    int prefix = (hash[0] & 0xFF) << 8 | hash[1] & 0xFF;
+    long low = starts[prefix];
+    long high = starts[prefix + 1] - 1;
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      int comparison = compare(mid, hash);
+      if (comparison < 0) {
+        low = mid + 1;
+      } else if (comparison > 0) {
+        high = mid - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int compare(long record, byte[] hash) {
+    MappedByteBuffer chunk = chunks[(int) (record / RECORDS_PER_CHUNK)];
+    int offset = (int) (record % RECORDS_PER_CHUNK) * HASH_LENGTH;
+    for (int i = 0; i < HASH_LENGTH; i++) {
+      int difference = (chunk.get(offset + i) & 0xFF) - (hash[i] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return 0;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Converts a downloaded corpus into the binary format read by this class. Accepted sources are the single
+   * ordered-by-hash text file ({@code HASH:COUNT} lines) or a directory of range files named after their five hex
+   * digit prefix ({@code SUFFIX:COUNT} lines), as written by the official downloader. The source must be sorted by hash.
+   *
+   * @param source the downloaded corpus
+   * @param target the binary file to write, replaced atomically once complete
+   * @return number of hashes written
+   */
+  public static long convert(File source, File target) throws IOException {
+    File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+    long[] starts = new long[PREFIXES + 1];
+    long count = 0;
+    try (RandomAccessFile output = new RandomAccessFile(temp, "rw")) {
+      output.setLength(0);
+      output.seek(HEADER);
+      DataOutputStream records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output.getFD()), 1 << 16));
+      byte[] previous = null;
+      File[] files = source.isDirectory() ? source.listFiles((dir, name) -> name.endsWith(".txt")) : new File[]{source};
+      if (files == null || files.length == 0) {
+        throw new IOException("No corpus found in " + source);
+      }
+      Arrays.sort(files);
+      for (File file : files) {
+        String prefix = source.isDirectory() ? file.getName().substring(0, file.getName().length() - 4) : "";
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            int colon = line.indexOf(':');
+            String hex = prefix + (colon < 0 ? line : line.substring(0, colon)).trim();
+            if (hex.isEmpty()) {
+              continue;
+            }
+            byte[] hash = parseHash(hex, file.getName());
+            if (previous != null && Arrays.compareUnsigned(previous, hash) >= 0) {
+              throw new IOException("The corpus is not sorted by hash at " + hex);
+            }
+            records.write(hash);
+            starts[((hash[0] & 0xFF) << 8 | hash[1] & 0xFF) + 1]++;
+            previous = hash;
+            count++;
+          }
+        }
+      }
+      records.flush();
+      // turn the per-prefix counts into the index of the first hash of every prefix
+      for (int i = 1; i <= PREFIXES; i++) {
+        starts[i] += starts[i - 1];
+      }
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      header.putInt(MAGIC).putInt(VERSION).putLong(count);
+      for (long start : starts) {
+        header.putLong(start);
+      }
+      output.seek(0);
+      output.write(header.array());
+      output.getFD().sync();
+    }
+    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return count;
+  }
+
+  private static byte[] parseHash(String hex, String fileName) throws IOException {
+    if (hex.length() != HASH_LENGTH * 2) {
+      throw new IOException(String.format("Not a SHA-1 hash in %s: %s", fileName, hex));
+    }
+    byte[] hash = new byte[HASH_LENGTH];
+    for (int i = 0; i < HASH_LENGTH; i++) {
+      int high = Character.digit(hex.charAt(i * 2), 16);
+      int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IOException(String.format("Not a SHA-1 hash in %s: %s", fileName, hex));
+      }
+      hash[i] = (byte) (high << 4 | low);
+    }
+    return hash;
+  }
+
+  private static byte[] sha1(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+}
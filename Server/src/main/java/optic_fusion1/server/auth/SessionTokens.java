@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.auth;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Signed, expiring session tokens that let a client log in again after a reconnect without sending its password, so a
+ * reconnect wave costs one HMAC per client instead of one bcrypt check.
+ * <p>
+ * A token is {@code base64(payload).base64(hmac)} where the payload holds the user, the time it was issued and the time
+ * it expires. Nothing is stored per token; instead every user has a revocation time, and tokens issued before it are
+ * refused. Revocations are written to disk so a restart does not bring revoked tokens back, and are dropped once every
+ * token they could refuse has expired anyway. The signing key is kept in a file next to them.
+ */
+public class SessionTokens {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final int KEY_LENGTH = 32;
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private final SecretKeySpec key;
+  private final long ttlMillis;
+  private final File revocationFile;
+  private final Map<UUID, Long> revokedBefore = new ConcurrentHashMap<>();
+  private final ThreadLocal<Mac> macs;
+
+  /**
+   * @param keyFile file holding the signing key, created if missing
+   * @param revocationFile file holding the revocation times, created on the first revocation
+   * @param ttlMillis how long a token stays valid
+   */
+  public SessionTokens(File keyFile, File revocationFile, long ttlMillis) throws IOException {
+    this.key = new SecretKeySpec(loadKey(keyFile), ALGORITHM);
+    this.ttlMillis = ttlMillis;
+    this.revocationFile = revocationFile;
+    this.macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(key);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(ALGORITHM + " is not available", e);
+      }
+    });
+    loadRevocations();
+  }
+
+  private static byte[] loadKey(File keyFile) throws IOException {
+    if (keyFile.exists()) {
+      byte[] key = Files.readAllBytes(keyFile.toPath());
+      if (key.length == KEY_LENGTH) {
+        return key;
+      }
+      LOGGER.warn(keyFile.getName() + " is damaged, issuing a new session key; every session token is invalidated");
+    }
+    byte[] key = new byte[KEY_LENGTH];
+    new SecureRandom().nextBytes(key);
+    File temp = new File(keyFile.getParentFile(), keyFile.getName() + ".tmp");
+    Files.write(temp.toPath(), key);
+    temp.setReadable(false, false);
+    temp.setReadable(true, true);
+    Files.move(temp.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return key;
+  }
+
+  /**
+   * @return a token for the user that is valid for the configured time
+   */
+  public String issue(UUID uniqueId, String username) {
+    long now = System.currentTimeMillis();
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(baos);
+      dos.writeLong(uniqueId.getMostSignificantBits());
+      dos.writeLong(uniqueId.getLeastSignificantBits());
+      dos.writeLong(now);
+      dos.writeLong(now + ttlMillis);
+      dos.writeUTF(username);
+      byte[] payload = baos.toByteArray();
+      return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(macs.get().doFinal(payload));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write a session token", e);
+    }
+  }
+
+  /**
+   * @return the session the token stands for, or null if it is forged, damaged, expired or revoked
+   */
+  public Session verify(String token) {
+    int dot = token.indexOf('.');
+    if (dot < 0) {
+      return null;
+    }
+    try {
+      byte[] payload = DECODER.decode(token.substring(0, dot));
+      byte[] signature = DECODER.decode(token.substring(dot + 1));
+      if (!MessageDigest.isEqual(signature, macs.get().doFinal(payload))) {
+        return null;
+      }
+      DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+      UUID uniqueId = new UUID(dis.readLong(), dis.readLong());
+      long issued = dis.readLong();
+      long expires = dis.readLong();
+      String username = dis.readUTF();
+      Long revoked = revokedBefore.get(uniqueId);
+      if (System.currentTimeMillis() >= expires || revoked != null && issued <= revoked) {
+        return null;
+      }
+      return new Session(uniqueId, username, expires);
+    } catch (IllegalArgumentException | IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Refuses every token issued to the user so far, for example after a password change.
+   */
+  public void revoke(UUID uniqueId) {
+    revokedBefore.put(uniqueId, System.currentTimeMillis());
+    saveRevocations();
+  }
+
+  private synchronized void saveRevocations() {
+    long horizon = System.currentTimeMillis() - ttlMillis;
+    // a revocation older than the lifetime of a token has nothing left to refuse
+    revokedBefore.values().removeIf(time -> time < horizon);
+    File temp = new File(revocationFile.getParentFile(), revocationFile.getName() + ".tmp");
+    try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(temp.toPath()))) {
+      Map<UUID, Long> snapshot = Map.copyOf(revokedBefore);
+      dos.writeInt(snapshot.size());
+      for (Map.Entry<UUID, Long> entry : snapshot.entrySet()) {
+        dos.writeLong(entry.getKey().getMostSignificantBits());
+        dos.writeLong(entry.getKey().getLeastSignificantBits());
+        dos.writeLong(entry.getValue());
+      }
+    } catch (IOException e) {
+      new IOException("Could not save session revocations", e).printStackTrace();
+      return;
+    }
+    try {
+      Files.move(temp.toPath(), revocationFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      new IOException("Could not save session revocations", e).printStackTrace();
+    }
+  }
+
+  private void loadRevocations() throws IOException {
+    if (!revocationFile.exists()) {
+      return;
+    }
+    try (DataInputStream dis = new DataInputStream(Files.newInputStream(revocationFile.toPath()))) {
+      int count = dis.readInt();
+      for (int i = 0; i < count; i++) {
+        revokedBefore.put(new UUID(dis.readLong(), dis.readLong()), dis.readLong());
+      }
+    }
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  /**
+   * @param uniqueId the user the token was issued to
+   * @param username the username at the time
+   * @param expires when the token expires, milliseconds since the epoch
+   */
+  public record Session(UUID uniqueId, String username, long expires) {
+  }
+}
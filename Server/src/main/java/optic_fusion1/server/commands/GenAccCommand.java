@@ -50,10 +50,11 @@ public class GenAccCommand extends Command {
     RandomString randomString = new RandomString();
     String username = randomString.nextString();
     String password = randomString.nextString();
-    boolean created = server.createAccount(sender, username, password);
-    if (created) {
-      sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "Username: " + username + " Password: " + password).serialize(), MessagePacket.MessageChatType.SYSTEM));
-    }
+    server.createAccount(sender, username, password).thenAccept(created -> {
+      if (created) {
+        sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "Username: " + username + " Password: " + password).serialize(), MessagePacket.MessageChatType.SYSTEM));
+      }
+    });
     return true;
   }
 
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.commands;
+
+import optic_fusion1.commands.command.Command;
+import optic_fusion1.commands.command.CommandPermissionLevel;
+import optic_fusion1.commands.command.CommandSender;
+import optic_fusion1.commands.command.CommandSide;
+import optic_fusion1.server.database.AccountImporter;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.SocketServer;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ImportAccountsCommand extends Command {
+
+  private static final int BATCH_SIZE = 1000;
+
+  private final SocketServer server;
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  public ImportAccountsCommand(SocketServer server) {
+    super("importaccounts", CommandSide.SERVER, CommandPermissionLevel.OPERATOR, true, false);
+    this.server = server;
+  }
+
+  @Override
+  public boolean execute(CommandSender sender, String commandLabel, List<String> args) {
+    if (sender instanceof ClientConnection) {
+      return false;
+    }
+
+    // TODO: allow any user with isOp permission to run the command
+    if (args.size() != 1) {
+      sender.sendMessage("Usage: /importaccounts <file.csv>");
+      return false;
+    }
+    File file = new File(args.get(0));
+    if (!file.isFile()) {
+      sender.sendMessage("No such file: " + file.getAbsolutePath());
+      return false;
+    }
+    if (!running.compareAndSet(false, true)) {
+      sender.sendMessage("An import is already running");
+      return false;
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    sender.sendMessage(String.format("Importing accounts from %s with %d hashing threads", file.getName(), threads));
+    new AccountImporter(server.getUserStore(), threads, BATCH_SIZE, server.getPasswordHasher().getCost()).importFile(file, sender::sendMessage).whenComplete((result, throwable) -> {
+      running.set(false);
+      if (throwable != null) {
+        sender.sendMessage("Account import failed: " + throwable.getLocalizedMessage());
+        return;
+      }
+      sender.sendMessage(String.format("Imported %d accounts in %.1fs, skipped %d taken and %d invalid lines", result.created(),
+          result.millis() / 1000D, result.taken(), result.invalid()));
+    });
+    return true;
+  }
+}
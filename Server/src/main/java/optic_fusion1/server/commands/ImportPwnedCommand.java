@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.commands;
+
+import optic_fusion1.commands.command.Command;
+import optic_fusion1.commands.command.CommandPermissionLevel;
+import optic_fusion1.commands.command.CommandSender;
+import optic_fusion1.commands.command.CommandSide;
+import optic_fusion1.server.auth.PwnedPasswords;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.SocketServer;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ImportPwnedCommand extends Command {
+
+  private final SocketServer server;
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  public ImportPwnedCommand(SocketServer server) {
+    super("importpwned", CommandSide.SERVER, CommandPermissionLevel.OPERATOR, true, false);
+    this.server = server;
+  }
+
+  @Override
+  public boolean execute(CommandSender sender, String commandLabel, List<String> args) {
+    if (sender instanceof ClientConnection) {
+      return false;
+    }
+
+    // TODO: allow any user with isOp permission to run the command
+    if (args.size() != 1) {
+      sender.sendMessage("Usage: /importpwned <hashes.txt | range directory>");
+      return false;
+    }
+    File source = new File(args.get(0));
+    if (!source.exists()) {
+      sender.sendMessage("No such file or directory: " + source.getAbsolutePath());
+      return false;
+    }
+    File target;
+    try {
+      target = server.getPwnedPasswordsFile();
+    } catch (URISyntaxException e) {
+      e.printStackTrace();
+      return false;
+    }
+    if (!running.compareAndSet(false, true)) {
+      sender.sendMessage("A corpus is already being imported");
+      return false;
+    }
+    sender.sendMessage("Converting " + source.getName() + ", registrations keep using the current check until it is done");
+    Thread thread = new Thread(() -> {
+      try {
+        long start = System.nanoTime();
+        long count = PwnedPasswords.convert(source, target);
+        server.setPwnedPasswords(new PwnedPasswords(target));
+        sender.sendMessage(String.format("Imported %d pwned password hashes in %.0fs", count, (System.nanoTime() - start) / 1_000_000_000D));
+      } catch (Exception e) {
+        new Exception("Could not import the pwned password corpus", e).printStackTrace();
+        sender.sendMessage("Could not import the pwned password corpus: " + e.getLocalizedMessage());
+      } finally {
+        running.set(false);
+      }
+    }, "Pwned-Import");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.commands;
+
+import optic_fusion1.commands.command.Command;
+import optic_fusion1.commands.command.CommandSender;
+import optic_fusion1.commands.command.CommandSide;
+import optic_fusion1.common.data.Message;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.ServerCommandSender;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.SocketServer;
+import optic_fusion1.server.rooms.Room;
+import optic_fusion1.server.rooms.RoomManager;
+
+import java.util.List;
+
+public class LeaveCommand extends Command {
+
+    private final SocketServer server;
+
+    public LeaveCommand(SocketServer server) {
+        super("leave", CommandSide.SERVER, false, true);
+        this.server = server;
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String commandLabel, List<String> args) {
+        if (sender instanceof ServerCommandSender) {
+            sender.sendMessage("The server cannot use this command");
+            return false;
+        }
+
+        ClientConnection clientConnection = (ClientConnection) sender;
+        if (!clientConnection.isLoggedIn()) {
+            clientConnection.sendPacket(new MessagePacket(OpCode.LOGIN_REQUIRED, "", MessagePacket.MessageChatType.SYSTEM));
+            return false;
+        }
+        Room current = clientConnection.getRoom();
+        if (current == null || current.getName().equals(RoomManager.DEFAULT_ROOM)) {
+            sendMessage(clientConnection, "You are not in a room you can leave");
+            return false;
+        }
+        // leaving a room always drops the user back into the default room
+        server.getRoomManager().join(clientConnection, RoomManager.DEFAULT_ROOM);
+        sendMessage(clientConnection, String.format("You left %s and are back in %s", current.getName(), RoomManager.DEFAULT_ROOM));
+        return true;
+    }
+
+    private void sendMessage(ClientConnection clientConnection, String msg) {
+        clientConnection.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, msg).serialize(), MessagePacket.MessageChatType.SYSTEM));
+    }
+}
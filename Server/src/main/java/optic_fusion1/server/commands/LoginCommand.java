@@ -22,24 +22,34 @@ import optic_fusion1.commands.command.CommandSide;
 import optic_fusion1.common.data.Message;
 import optic_fusion1.packets.OpCode;
 import optic_fusion1.packets.impl.MessagePacket;
-import optic_fusion1.server.Database;
 import optic_fusion1.server.ServerCommandSender;
+import optic_fusion1.server.auth.LoginThrottle;
+import optic_fusion1.server.auth.PasswordHasher;
+import optic_fusion1.server.database.UserRecord;
+import optic_fusion1.server.database.UserRepository;
 import optic_fusion1.server.network.ClientConnection;
 import optic_fusion1.server.network.SocketServer;
 
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 public class LoginCommand extends Command {
 
-    private int loginAttempts = 0;
     private final SocketServer server;
-    private final Database database;
+    private final UserRepository userRepository;
+    private final LoginThrottle loginThrottle;
+    private final PasswordHasher passwordHasher;
+    private final ExecutorService loginExecutor;
 
     public LoginCommand(SocketServer server) {
         super("login", CommandSide.SERVER, false, true);
         this.server = server;
-        database = server.getDatabase();
+        userRepository = server.getUserRepository();
+        loginThrottle = server.getLoginThrottle();
+        passwordHasher = server.getPasswordHasher();
+        loginExecutor = server.getLoginExecutor();
     }
 
     @Override
@@ -50,10 +60,6 @@ public class LoginCommand extends Command {
         }
 
         ClientConnection clientConnection = (ClientConnection) sender;
-        if (loginAttempts == 3) {
-            sendMessage(clientConnection, "You need to wait 10 seconds before trying to login again");
-            return false;
-        }
         if (args.size() != 2) {
             sendMessage(clientConnection, "Usage: /login <username> <password>");
             return false;
@@ -64,31 +70,58 @@ public class LoginCommand extends Command {
         }
         String username = args.get(0);
         String password = args.get(1);
-        if (!database.containsUser(username)) {
-            sendMessage(clientConnection, "Invalid username or password");
-            ratelimit(clientConnection);
+        LoginThrottle.Attempt attempt = loginThrottle.tryAcquire(clientConnection, username);
+        if (!attempt.isAllowed()) {
+            sendMessage(clientConnection, String.format("You need to wait %d seconds before trying to login again", attempt.getSecondsToWait()));
             return false;
         }
-        if (!database.isPasswordCorrect(username, password)) {
-            sendMessage(clientConnection, "Invalid username or password");
-            ratelimit(clientConnection);
+        if (!clientConnection.beginAuthentication()) {
+            attempt.refund();
+            sendMessage(clientConnection, "Your previous login is still being checked");
             return false;
         }
-        clientConnection.login(username);
+        // the lookup runs on the database threads, the bcrypt check on the hashing threads and the login on the login
+        // threads, never on this socket thread
+        userRepository.findCredentials(username).thenCompose(user -> {
+            if (user.isEmpty()) {
+                return CompletableFuture.completedFuture(user);
+            }
+            return passwordHasher.verify(password, user.get().passwordHash()).thenApply(matches -> matches ? user : Optional.<UserRecord>empty());
+        }).thenAcceptAsync(user -> {
+            if (user.isEmpty()) {
+                sendMessage(clientConnection, "Invalid username or password");
+                return;
+            }
+            attempt.refund();
+            if (clientConnection.isTerminated()) {
+                return;
+            }
+            clientConnection.login(user.get().uniqueId(), user.get().username());
+            if (passwordHasher.needsRehash(user.get().passwordHash())) {
+                // only a successful login knows the password, so this is the one chance to raise the cost of the hash;
+                // a password reset that lands in between wins
+                userRepository.rehashPassword(user.get().uniqueId(), password, user.get().passwordHash()).exceptionally(throwable -> false);
+            }
+        }, loginExecutor).whenComplete((ignored, throwable) -> {
+            clientConnection.endAuthentication();
+            if (throwable != null) {
+                // the password was never checked, so the attempt does not count
+                attempt.refund();
+            }
+            if (throwable != null && PasswordHasher.isBusy(throwable)) {
+                sendMessage(clientConnection, "The server is busy, please retry your login in a moment");
+            } else if (throwable != null) {
+                new Exception("Could not log in " + username, throwable).printStackTrace();
+                sendMessage(clientConnection, "Could not log you in, please try again later");
+            }
+        });
         return true;
     }
 
-    private void ratelimit(ClientConnection clientConnection) {
-        loginAttempts++;
-        if (loginAttempts == 3) {
-            server.getExecutorService().schedule(() -> {
-                loginAttempts = 0;
-                sendMessage(clientConnection, "You can try to login again");
-            }, 10, TimeUnit.SECONDS);
-        }
-    }
-
     private void sendMessage(ClientConnection clientConnection, String msg) {
+        if (clientConnection.isTerminated()) {
+            return;
+        }
         clientConnection.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, msg).serialize(), MessagePacket.MessageChatType.SYSTEM));
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.commands;
+
+import optic_fusion1.commands.command.Command;
+import optic_fusion1.commands.command.CommandSender;
+import optic_fusion1.commands.command.CommandSide;
+import optic_fusion1.common.data.Message;
+import optic_fusion1.common.data.User;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.SocketServer;
+import optic_fusion1.server.offline.OfflineMessages;
+
+import java.util.List;
+
+public class MsgCommand extends Command {
+
+    private final SocketServer server;
+
+    public MsgCommand(SocketServer server) {
+        super("msg", CommandSide.SERVER, true, true);
+        this.server = server;
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String commandLabel, List<String> args) {
+        User from = null;
+        if (sender instanceof ClientConnection clientConnection) {
+            if (!clientConnection.isLoggedIn()) {
+                clientConnection.sendPacket(new MessagePacket(OpCode.LOGIN_REQUIRED, "", MessagePacket.MessageChatType.SYSTEM));
+                return false;
+            }
+            from = clientConnection.getClient();
+        }
+        if (args.size() < 2) {
+            sendMessage(sender, "Usage: /msg <user> <message>");
+            return false;
+        }
+        String content = String.join(" ", args.subList(1, args.size()));
+        if (sender instanceof ClientConnection clientConnection && !server.getFloodControl().allow(clientConnection, content.length())) {
+            return false;
+        }
+        String message = new Message(from, content).serialize();
+        ClientConnection recipient = server.getOnlineUsers().getByName(args.get(0));
+        if (recipient == null) {
+            return queueOffline(sender, args.get(0), message);
+        }
+        recipient.sendPacket(new MessagePacket(OpCode.MESSAGE, message, MessagePacket.MessageChatType.DIRECT));
+        sendMessage(sender, String.format("To %s: %s", recipient.getUsername(), content));
+        return true;
+    }
+
+    private boolean queueOffline(CommandSender sender, String username, String message) {
+        OfflineMessages offlineMessages = server.getOfflineMessages();
+        if (offlineMessages == null) {
+            sendMessage(sender, String.format("%s is not online", username));
+            return false;
+        }
+        server.getUserRepository().findCredentials(username).thenAccept(user -> {
+            if (user.isEmpty()) {
+                sendMessage(sender, String.format("%s is not online", username));
+            } else if (!offlineMessages.offer(user.get().uniqueId(), message)) {
+                sendMessage(sender, String.format("%s is offline and cannot receive more messages", username));
+            } else {
+                sendMessage(sender, String.format("%s is offline, they will get your message when they log in", username));
+            }
+        }).whenComplete((ignored, throwable) -> {
+            if (throwable != null) {
+                new Exception("Could not store a message for " + username, throwable).printStackTrace();
+                sendMessage(sender, String.format("Could not store your message for %s, please try again later", username));
+            }
+        });
+        return true;
+    }
+
+    private void sendMessage(CommandSender sender, String msg) {
+        if (sender instanceof ClientConnection clientConnection && clientConnection.isTerminated()) {
+            return;
+        }
+        sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, msg).serialize(), MessagePacket.MessageChatType.SYSTEM));
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.commands;
+
+import optic_fusion1.commands.command.Command;
+import optic_fusion1.commands.command.CommandSender;
+import optic_fusion1.commands.command.CommandSide;
+import optic_fusion1.common.data.Message;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.network.SocketServer;
+
+import java.util.List;
+
+public class OnlineCommand extends Command {
+
+    private final SocketServer server;
+
+    public OnlineCommand(SocketServer server) {
+        super("online", CommandSide.SERVER, true, true);
+        this.server = server;
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String commandLabel, List<String> args) {
+        if (args.size() == 1) {
+            boolean online = server.getOnlineUsers().getByName(args.get(0)) != null;
+            sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, String.format("%s is %s", args.get(0), online ? "online" : "offline")).serialize(), MessagePacket.MessageChatType.SYSTEM));
+            return true;
+        }
+        int count = server.getOnlineUsers().size();
+        sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, String.format("%d %s online", count, count == 1 ? "user is" : "users are")).serialize(), MessagePacket.MessageChatType.SYSTEM));
+        return true;
+    }
+}
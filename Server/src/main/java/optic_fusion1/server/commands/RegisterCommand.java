@@ -33,6 +33,9 @@ public class RegisterCommand extends Command {
 
     private final SocketServer server;
 
+    // keeps presence and chat frames of a user small
+    private static final int MAX_USERNAME_LENGTH = 32;
+
     private final ArrayList<String> restrictedUsernames = new ArrayList<>(Arrays.asList("admin", "sysadmin", "system", "server", "serveradmin", "systemadmin", "administrator"));
 
     public RegisterCommand(SocketServer server) {
@@ -50,6 +53,10 @@ public class RegisterCommand extends Command {
             sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "Passwords do not match").serialize(), MessagePacket.MessageChatType.SYSTEM));
             return false;
         }
+        if (args.get(0).length() > MAX_USERNAME_LENGTH) {
+            sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, String.format("Usernames can be at most %d characters long", MAX_USERNAME_LENGTH)).serialize(), MessagePacket.MessageChatType.SYSTEM));
+            return false;
+        }
         if (restrictedUsernames.contains(args.get(0).toLowerCase())) {
             sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "Username is not allowed, please choose a different one.").serialize(), MessagePacket.MessageChatType.SYSTEM));
             return false;
@@ -21,7 +21,6 @@ import optic_fusion1.commands.command.CommandPermissionLevel;
 import optic_fusion1.commands.command.CommandSender;
 import optic_fusion1.commands.command.CommandSide;
 import optic_fusion1.common.data.Message;
-import optic_fusion1.common.utils.BCrypt;
 import optic_fusion1.packets.OpCode;
 import optic_fusion1.packets.impl.MessagePacket;
 import optic_fusion1.server.network.ClientConnection;
@@ -52,12 +51,26 @@ public class ResetPassword extends Command {
     }
 
     // TODO: allow any user with isOp permission to run the command
-    UUID uuid = UUID.fromString(args.get(0));
+    UUID uuid;
+    try {
+      uuid = UUID.fromString(args.get(0));
+    } catch (IllegalArgumentException e) {
+      sender.sendMessage("Usage: /resetpasswd <uuid> <new password>");
+      return false;
+    }
     String password = args.get(1);
-    String hashedPassword = BCrypt.hashpw(password, BCrypt.gensalt());
-    server.getDatabase().updatePassword(uuid, hashedPassword);
     // TODO: if the user is currently connected, disconnect them and have them login again?
-    sender.sendMessage(String.format("Password updated for user with UUID %s", uuid));
+    server.getUserRepository().changePassword(uuid, password).whenComplete((ignored, throwable) -> {
+      if (throwable != null) {
+        new Exception("Could not update the password of " + uuid, throwable).printStackTrace();
+        return;
+      }
+      // sessions started with the old password must not outlive it
+      if (server.getSessionTokens() != null) {
+        server.getSessionTokens().revoke(uuid);
+      }
+      sender.sendMessage(String.format("Password updated for user with UUID %s", uuid));
+    });
     return true;
   }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.commands;
+
+import optic_fusion1.commands.command.Command;
+import optic_fusion1.commands.command.CommandSender;
+import optic_fusion1.commands.command.CommandSide;
+import optic_fusion1.common.data.Message;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.ServerCommandSender;
+import optic_fusion1.server.auth.SessionTokens;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.ResumableSession;
+import optic_fusion1.server.network.ResumableSessions;
+import optic_fusion1.server.network.SocketServer;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Logs a client in with the session token it was given at its last login, see {@link SessionTokens}. Checking a token
+ * is an HMAC and a map lookup, so unlike {@code /login} it needs no bcrypt work.
+ * <p>
+ * A client that also names its stream and the last frame it received continues its {@link ResumableSession} instead:
+ * it only gets the frames it missed, and nobody else notices it was gone.
+ */
+public class ResumeCommand extends Command {
+
+    private final SocketServer server;
+
+    public ResumeCommand(SocketServer server) {
+        super("resume", CommandSide.SERVER, false, true);
+        this.server = server;
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String commandLabel, List<String> args) {
+        if (sender instanceof ServerCommandSender) {
+            sender.sendMessage("The server cannot use this command");
+            return false;
+        }
+
+        ClientConnection clientConnection = (ClientConnection) sender;
+        if (args.size() != 1 && args.size() != 3) {
+            sendMessage(clientConnection, "Usage: /resume <session token> [stream] [sequence]");
+            return false;
+        }
+        if (clientConnection.isLoggedIn()) {
+            sendMessage(clientConnection, "You are already logged in");
+            return false;
+        }
+        SessionTokens sessionTokens = server.getSessionTokens();
+        SessionTokens.Session session = sessionTokens == null ? null : sessionTokens.verify(args.get(0));
+        if (session == null) {
+            sendMessage(clientConnection, "Your session has expired, please log in with your password");
+            clientConnection.sendPacket(new MessagePacket(OpCode.LOGIN_REQUIRED, "", MessagePacket.MessageChatType.SYSTEM));
+            return false;
+        }
+        if (!clientConnection.beginAuthentication()) {
+            sendMessage(clientConnection, "Your previous login is still being checked");
+            return false;
+        }
+        if (args.size() == 3 && resumeStream(clientConnection, session, args.get(1), args.get(2))) {
+            clientConnection.endAuthentication();
+            return true;
+        }
+        // joining rooms and delivering offline messages can block, keep it off this socket thread like /login does
+        CompletableFuture.runAsync(() -> {
+            if (!clientConnection.isTerminated()) {
+                clientConnection.login(session.uniqueId(), session.username());
+            }
+        }, server.getLoginExecutor()).whenComplete((ignored, throwable) -> {
+            clientConnection.endAuthentication();
+            if (throwable != null) {
+                new Exception("Could not resume the session of " + session.username(), throwable).printStackTrace();
+                sendMessage(clientConnection, "Could not log you in, please try again later");
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return whether the stream was continued, otherwise the client has to log in afresh
+     */
+    private boolean resumeStream(ClientConnection clientConnection, SessionTokens.Session session, String streamId, String sequence) {
+        ResumableSessions resumableSessions = server.getResumableSessions();
+        ResumableSession stream = resumableSessions == null ? null : resumableSessions.get(streamId);
+        if (stream == null || !stream.getUniqueId().equals(session.uniqueId())) {
+            return false;
+        }
+        try {
+            if (clientConnection.resume(stream, Long.parseLong(sequence))) {
+                return true;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        // too much was missed, the fresh login below announces the user and sends the room again
+        server.closeSession(stream);
+        return false;
+    }
+
+    private void sendMessage(ClientConnection clientConnection, String msg) {
+        if (clientConnection.isTerminated()) {
+            return;
+        }
+        clientConnection.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, msg).serialize(), MessagePacket.MessageChatType.SYSTEM));
+    }
+}
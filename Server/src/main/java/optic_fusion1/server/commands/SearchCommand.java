@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2021 Optic_Fusion1
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.commands;
+
+import optic_fusion1.commands.command.Command;
+import optic_fusion1.commands.command.CommandPermissionLevel;
+import optic_fusion1.commands.command.CommandSender;
+import optic_fusion1.commands.command.CommandSide;
+import optic_fusion1.common.data.Message;
+import optic_fusion1.server.history.ChatRecord;
+import optic_fusion1.server.history.SearchIndex;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.SocketServer;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SearchCommand extends Command {
+
+  private static final int MAX_RESULTS = 20;
+  private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+  private final SocketServer server;
+
+  public SearchCommand(SocketServer server) {
+    super("search", CommandSide.SERVER, CommandPermissionLevel.OPERATOR, true, false);
+    this.server = server;
+  }
+
+  @Override
+  public boolean execute(CommandSender sender, String commandLabel, List<String> args) {
+    if (sender instanceof ClientConnection) {
+      return false;
+    }
+
+    // TODO: allow any user with isOp permission to run the command
+    SearchIndex searchIndex = server.getSearchIndex();
+    if (searchIndex == null) {
+      sender.sendMessage("Chat history is not available");
+      return false;
+    }
+    String from = null;
+    List<String> terms = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("from:") && arg.length() > 5) {
+        from = arg.substring(5);
+      } else {
+        terms.add(arg);
+      }
+    }
+    if (terms.isEmpty()) {
+      sender.sendMessage("Usage: /search [from:<user>] <terms>");
+      return false;
+    }
+    List<ChatRecord> records = searchIndex.search(terms, from, MAX_RESULTS);
+    for (ChatRecord record : records) {
+      Message message = Message.deserialize(record.message());
+      LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(record.timestamp()), ZoneId.systemDefault());
+      sender.sendMessage(String.format("#%d [%s] [%s] %s: %s", record.sequence(), TIME.format(time), record.room(),
+          message.getUser() == null ? "Server" : message.getUser().getUsername(), message.getContent()));
+    }
+    sender.sendMessage(String.format("%d results in messages #%d to #%d", records.size(), searchIndex.getMinSequence(), searchIndex.getIndexedSequence()));
+    return true;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+* Copyright (C) 2021 Optic_Fusion1
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.commands;
+
+import com.google.common.cache.CacheStats;
+import optic_fusion1.commands.command.Command;
+import optic_fusion1.commands.command.CommandPermissionLevel;
+import optic_fusion1.commands.command.CommandSender;
+import optic_fusion1.commands.command.CommandSide;
+import optic_fusion1.server.Database;
+import optic_fusion1.server.auth.PasswordHasher;
+import optic_fusion1.server.database.InMemoryUserStore;
+import optic_fusion1.server.network.BroadcastFanout;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.OutboundQueue;
+import optic_fusion1.server.network.ResumableSessions;
+import optic_fusion1.server.network.SocketServer;
+
+import java.util.List;
+
+public class StatsCommand extends Command {
+
+  private final SocketServer server;
+
+  public StatsCommand(SocketServer server) {
+    super("stats", CommandSide.SERVER, CommandPermissionLevel.OPERATOR, true, false);
+    this.server = server;
+  }
+
+  @Override
+  public boolean execute(CommandSender sender, String commandLabel, List<String> args) {
+    if (sender instanceof ClientConnection) {
+      return false;
+    }
+
+    BroadcastFanout fanout = server.getFanout();
+    for (int stripe = 0; stripe < fanout.getStripeCount(); stripe++) {
+      sender.sendMessage(String.format("Fanout stripe %d: last %.3f ms, max %.3f ms", stripe, fanout.getLastLatency(stripe) / 1_000_000D, fanout.getMaxLatency(stripe) / 1_000_000D));
+    }
+    for (OutboundQueue.Lane lane : OutboundQueue.Lane.values()) {
+      long total = 0;
+      int max = 0;
+      for (ClientConnection clientConnection : server.getClients()) {
+        int depth = clientConnection.getOutboundQueue().getDepth(lane);
+        total += depth;
+        max = Math.max(max, depth);
+      }
+      sender.sendMessage(String.format("%s lane: %d queued, deepest connection %d", lane, total, max));
+    }
+    long dropped = 0;
+    for (ClientConnection clientConnection : server.getClients()) {
+      dropped += clientConnection.getOutboundQueue().getDroppedBulk();
+    }
+    sender.sendMessage(String.format("Bulk frames dropped for slow clients: %d", dropped));
+    ResumableSessions resumableSessions = server.getResumableSessions();
+    if (resumableSessions != null) {
+      sender.sendMessage(String.format("Resumable sessions: %d, %d waiting for their client, %d bytes buffered for replay",
+          resumableSessions.size(), resumableSessions.getDetachedCount(), resumableSessions.getBufferedBytes()));
+    }
+    PasswordHasher hasher = server.getPasswordHasher();
+    sender.sendMessage(String.format("Password hashing (cost %d): %d/%d threads busy, %d/%d queued, %d rejected, %d done, avg %.1f ms, last %.1f ms, max %.1f ms",
+        hasher.getCost(), hasher.getActiveCount(), hasher.getThreadCount(), hasher.getQueueDepth(), hasher.getQueueLimit(), hasher.getRejected(), hasher.getCompleted(),
+        hasher.getAverageNanos() / 1_000_000D, hasher.getLastNanos() / 1_000_000D, hasher.getMaxNanos() / 1_000_000D));
+    if (server.getUserStore() instanceof Database database) {
+      sender.sendMessage(String.format("Database statements cached: %d", database.getCachedStatementCount()));
+      CacheStats userCache = database.getUserCache().getStats();
+      sender.sendMessage(String.format("User cache: %d users, %.1f%% hits, %d database lookups, %d evictions", database.getUserCache().size(),
+          userCache.hitRate() * 100, userCache.loadCount(), userCache.evictionCount()));
+    } else if (server.getUserStore() instanceof InMemoryUserStore memoryStore) {
+      sender.sendMessage(String.format("In-memory user store: %d users", memoryStore.size()));
+    }
+    return true;
+  }
+}
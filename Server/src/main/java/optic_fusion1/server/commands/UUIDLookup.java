@@ -27,7 +27,6 @@ import optic_fusion1.server.network.ClientConnection;
 import optic_fusion1.server.network.SocketServer;
 
 import java.util.List;
-import java.util.UUID;
 
 public class UUIDLookup extends Command {
 
@@ -51,12 +50,13 @@ public class UUIDLookup extends Command {
 
     // TODO: allow any user with isOp permission to run the command
     String username = args.get(0);
-    UUID uuid = server.getDatabase().getUUID(username);
-    if(uuid != null) {
-      sender.sendMessage(String.format("UUID for user %s is %s", username, uuid));
-    } else {
-      sender.sendMessage("Failed to find a user by that username");
-    }
+    server.getUserRepository().findCredentials(username).thenAccept(user -> {
+      if (user.isPresent()) {
+        sender.sendMessage(String.format("UUID for user %s is %s", user.get().username(), user.get().uniqueId()));
+      } else {
+        sender.sendMessage("Failed to find a user by that username");
+      }
+    });
     return true;
   }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import optic_fusion1.common.utils.BCrypt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Creates accounts in bulk from a CSV file of {@code username,password} lines.
+ * <p>
+ * Hashing is what makes an account expensive, so passwords are hashed on one thread per core while a single import
+ * thread reads the file and writes the hashed accounts with {@link UserStore#insertUsers(List)}, one transaction per
+ * batch. Only a bounded number of accounts are hashed ahead of the writer, so the file is never held in memory.
+ * Usernames that already exist or appear twice in the file are skipped before they are hashed.
+ */
+public class AccountImporter {
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final UserStore store;
+    private final int hashThreads;
+    private final int batchSize;
+    private final int cost;
+
+    /**
+     * @param store the store to add the accounts to
+     * @param hashThreads number of threads hashing passwords
+     * @param batchSize accounts inserted per transaction
+     * @param cost bcrypt cost factor of the hashes
+     */
+    public AccountImporter(UserStore store, int hashThreads, int batchSize, int cost) {
+        this.store = store;
+        this.hashThreads = Math.max(1, hashThreads);
+        this.batchSize = Math.max(1, batchSize);
+        this.cost = cost;
+    }
+
+    /**
+     * Imports the file on a thread of its own.
+     *
+     * @param file CSV file with a {@code username,password} line per account, an optional header and {@code #} comments
+     * @param progress receives a progress line every few seconds
+     * @return the outcome once every line has been handled
+     */
+    public CompletableFuture<Result> importFile(File file, Consumer<String> progress) {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                future.complete(run(file, progress));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, "Account-Import");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    private Result run(File file, Consumer<String> progress) throws IOException, InterruptedException, ExecutionException {
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService hashers = Executors.newFixedThreadPool(hashThreads, runnable -> {
+            Thread thread = new Thread(runnable, "Account-Hasher-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<UserRecord> hashed = new ExecutorCompletionService<>(hashers);
+        Progress counts = new Progress(System.nanoTime());
+        // keeps every hasher busy while the previous batch is written
+        int maxPending = batchSize + hashThreads * 2;
+        int pending = 0;
+        List<UserRecord> batch = new ArrayList<>(batchSize);
+        Set<String> seen = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            boolean first = true;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                boolean header = first && line.equalsIgnoreCase("username,password");
+                first = false;
+                if (header || line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                // usernames cannot contain a comma, passwords can
+                int comma = line.indexOf(',');
+                String username = comma < 0 ? "" : line.substring(0, comma).strip();
+                String password = comma < 0 ? "" : line.substring(comma + 1);
+                if (username.isEmpty() || password.isEmpty() || username.chars().anyMatch(Character::isWhitespace)) {
+                    counts.invalid++;
+                    continue;
+                }
+                if (!seen.add(username.toLowerCase(Locale.ROOT)) || store.isUsernameTaken(username)) {
+                    counts.taken++;
+                    continue;
+                }
+                hashed.submit(() -> new UserRecord(UUID.randomUUID(), username, BCrypt.hashpw(password, BCrypt.gensalt(cost)), false));
+                if (++pending >= maxPending) {
+                    batch.add(hashed.take().get());
+                    pending--;
+                    if (batch.size() >= batchSize) {
+                        insert(batch, counts, progress);
+                    }
+                }
+            }
+            for (; pending > 0; pending--) {
+                batch.add(hashed.take().get());
+                if (batch.size() >= batchSize) {
+                    insert(batch, counts, progress);
+                }
+            }
+            insert(batch, counts, progress);
+        } finally {
+            hashers.shutdownNow();
+        }
+        return new Result(counts.created, counts.taken, counts.invalid, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - counts.start));
+    }
+
+    private void insert(List<UserRecord> batch, Progress counts, Consumer<String> progress) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int created = store.insertUsers(batch);
+        counts.created += created;
+        // a username registered by someone else while the import ran
+        counts.taken += batch.size() - created;
+        batch.clear();
+        long now = System.nanoTime();
+        if (now - counts.lastReport >= PROGRESS_INTERVAL) {
+            counts.lastReport = now;
+            double seconds = (now - counts.start) / 1_000_000_000D;
+            progress.accept(String.format("Imported %d accounts (%d taken, %d invalid) in %.0fs, %.1f accounts/s",
+                    counts.created, counts.taken, counts.invalid, seconds, counts.created / seconds));
+        }
+    }
+
+    /**
+     * @param created accounts added
+     * @param taken lines skipped because the username already exists
+     * @param invalid lines skipped because they are not a username and a password
+     * @param millis time the import took
+     */
+    public record Result(int created, int taken, int invalid, long millis) {
+    }
+
+    private static final class Progress {
+
+        private final long start;
+        private long lastReport;
+        private int created;
+        private int taken;
+        private int invalid;
+
+        private Progress(long start) {
+            this.start = start;
+            this.lastReport = start;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQLite connections for the server database: one writer and a fixed number of read-only readers.
+ * <p>
+ * The database runs in WAL mode, so readers never wait for the writer and the writer only waits for other writers.
+ * SQLite allows a single writer at a time anyway, so writes are serialized here instead of spinning on
+ * {@code SQLITE_BUSY}; the busy timeout only covers other processes holding the database.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static final int BUSY_TIMEOUT_MS = 5000;
+    // negative means KiB, so 8 MiB of page cache per connection
+    private static final int CACHE_SIZE = -8192;
+
+    private final PooledConnection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> connections = new ArrayList<>();
+
+    /**
+     * @param file the database file
+     * @param readerCount number of read connections
+     */
+    public ConnectionPool(File file, int readerCount) throws SQLException {
+        String url = "jdbc:sqlite:" + file.toURI();
+        this.writer = open(url, false);
+        // WAL is stored in the database file, readers opened afterwards pick it up
+        writer.execute("PRAGMA journal_mode=WAL");
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+        for (int i = 0; i < Math.max(1, readerCount); i++) {
+            readers.add(open(url, true));
+        }
+    }
+
+    private PooledConnection open(String url, boolean readOnly) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        PooledConnection pooled = new PooledConnection(connection);
+        connections.add(pooled);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+            // with WAL a commit is still atomic and consistent at NORMAL, only the last commits may be lost on power loss
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.execute("PRAGMA cache_size=" + CACHE_SIZE);
+            statement.execute("PRAGMA temp_store=MEMORY");
+            if (readOnly) {
+                statement.execute("PRAGMA query_only=true");
+            }
+        }
+        return pooled;
+    }
+
+    /**
+     * Runs a query on one of the read connections, waiting for one to become free.
+     */
+    public <T> T read(SqlFunction<T> function) throws SQLException {
+        PooledConnection connection;
+        try {
+            connection = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        try {
+            return function.apply(connection);
+        } finally {
+            readers.add(connection);
+        }
+    }
+
+    /**
+     * Runs an update on the write connection, one at a time.
+     */
+    public <T> T write(SqlFunction<T> function) throws SQLException {
+        writeLock.lock();
+        try {
+            return function.apply(writer);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return statements prepared on the write connection and on every read connection
+     */
+    public int getCachedStatementCount() {
+        int count = 0;
+        for (PooledConnection connection : connections) {
+            count += connection.getCachedStatementCount();
+        }
+        return count;
+    }
+
+    public int getReaderCount() {
+        return connections.size() - 1;
+    }
+
+    @Override
+    public void close() {
+        for (PooledConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    @FunctionalInterface
+    public interface SqlFunction<T> {
+
+        T apply(PooledConnection connection) throws SQLException;
+    }
+}
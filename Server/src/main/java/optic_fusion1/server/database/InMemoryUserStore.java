@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * {@link UserStore} that only lives in memory, for load tests that should measure the server instead of the disk.
+ * Accounts are lost when the server stops.
+ * <p>
+ * Users are spread over {@link #STRIPES} maps by lowercase username, each behind its own read-write lock, so logins
+ * for different users never contend. Updates by UUID go through a concurrent UUID to username index.
+ */
+public class InMemoryUserStore implements UserStore {
+
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Map<UUID, String> usernames = new ConcurrentHashMap<>();
+
+    public InMemoryUserStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public UserRecord findUser(String username) {
+        String key = normalize(username);
+        Stripe stripe = stripe(key);
+        stripe.lock.readLock().lock();
+        try {
+            Account account = stripe.accounts.get(key);
+            return account == null ? null : account.user();
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isUsernameTaken(String username) {
+        return findUser(username) != null;
+    }
+
+    @Override
+    public boolean insertUser(UserRecord user) {
+        String key = normalize(user.username());
+        Stripe stripe = stripe(key);
+        stripe.lock.writeLock().lock();
+        try {
+            if (stripe.accounts.containsKey(key) || usernames.putIfAbsent(user.uniqueId(), key) != null) {
+                return false;
+            }
+            stripe.accounts.put(key, new Account(user, null));
+            return true;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int insertUsers(List<UserRecord> users) {
+        int inserted = 0;
+        for (UserRecord user : users) {
+            if (insertUser(user)) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+
+    @Override
+    public void updateNickname(UUID uniqueId, String nickname) {
+        update(uniqueId, account -> new Account(account.user(), nickname));
+    }
+
+    @Override
+    public void updatePassword(UUID uniqueId, String password) {
+        update(uniqueId, account -> new Account(new UserRecord(account.user().uniqueId(), account.user().username(), password, account.user().op()), account.nickname()));
+    }
+
+    @Override
+    public boolean replacePassword(UUID uniqueId, String expected, String password) {
+        boolean[] replaced = new boolean[1];
+        update(uniqueId, account -> {
+            if (!account.user().passwordHash().equals(expected)) {
+                return account;
+            }
+            replaced[0] = true;
+            return new Account(new UserRecord(account.user().uniqueId(), account.user().username(), password, account.user().op()), account.nickname());
+        });
+        return replaced[0];
+    }
+
+    private void update(UUID uniqueId, UnaryOperator<Account> change) {
+        String key = usernames.get(uniqueId);
+        if (key == null) {
+            return;
+        }
+        Stripe stripe = stripe(key);
+        stripe.lock.writeLock().lock();
+        try {
+            stripe.accounts.computeIfPresent(key, (k, account) -> change.apply(account));
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return usernames.size();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Stripe stripe(String key) {
+        return stripes[Math.floorMod(key.hashCode(), STRIPES)];
+    }
+
+    private static String normalize(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    private record Account(UserRecord user, String nickname) {
+    }
+
+    private static final class Stripe {
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, Account> accounts = new HashMap<>();
+    }
+}
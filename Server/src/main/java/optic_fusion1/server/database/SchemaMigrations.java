@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Versioned schema changes, applied in order at startup. The versions already applied are kept in the
+ * {@code schema_version} table; every migration runs in its own transaction together with the row that records it, so
+ * a migration that fails leaves the database at the previous version, the server refuses to start and the migration
+ * is tried again on the next start.
+ * <p>
+ * Migrations are only ever appended to {@link #MIGRATIONS}, an applied migration must not be changed.
+ */
+public class SchemaMigrations {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int COPY_BATCH = 10_000;
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "create users table", connection ->
+                    connection.execute("CREATE TABLE IF NOT EXISTS `users` (`username` TEXT NOT NULL PRIMARY KEY, `uuid` BINARY(16) NOT NULL, `pass` CHAR(60) NOT NULL, `isGlobalOp` BOOLEAN NOT NULL DEFAULT false, `nickname` TEXT)")),
+            new Migration(2, "unique case-insensitive username index", SchemaMigrations::indexUsernames),
+            new Migration(3, "store uuids as 16-byte blobs", SchemaMigrations::storeUuidsAsBlobs)
+    );
+
+    private final ConnectionPool pool;
+
+    public SchemaMigrations(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Applies every migration newer than the current schema version.
+     *
+     * @throws SQLException if a migration failed, the database is then left at the last version that succeeded
+     */
+    public void migrate() throws SQLException {
+        pool.write(connection -> {
+            connection.execute("CREATE TABLE IF NOT EXISTS `schema_version` (`version` INTEGER NOT NULL PRIMARY KEY, `description` TEXT NOT NULL, `applied` INTEGER NOT NULL)");
+            int current = currentVersion(connection);
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version() > current) {
+                    apply(connection, migration);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static int currentVersion(PooledConnection connection) throws SQLException {
+        try (PreparedStatement statement = connection.getConnection().prepareStatement("SELECT MAX(`version`) FROM `schema_version`");
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private static void apply(PooledConnection pooled, Migration migration) throws SQLException {
+        Connection connection = pooled.getConnection();
+        long start = System.nanoTime();
+        connection.setAutoCommit(false);
+        try {
+            migration.step().apply(pooled);
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO `schema_version` (`version`, `description`, `applied`) VALUES (?, ?, ?)")) {
+                statement.setInt(1, migration.version());
+                statement.setString(2, migration.description());
+                statement.setLong(3, System.currentTimeMillis());
+                statement.executeUpdate();
+            }
+            connection.commit();
+        } catch (SQLException | RuntimeException ex) {
+            connection.rollback();
+            throw new SQLException(String.format("Schema migration %d (%s) failed", migration.version(), migration.description()), ex);
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        LOGGER.info(String.format("Applied schema migration %d (%s) in %d ms", migration.version(), migration.description(),
+                (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * Lookups ignore case, so two usernames that only differ in case cannot both be reachable. Earlier versions did not
+     * prevent that; the first account keeps its name and later ones get their row id, and a counter if that name is
+     * taken too, appended before the index is built.
+     */
+    private static void indexUsernames(PooledConnection pooled) throws SQLException {
+        Connection connection = pooled.getConnection();
+        // one sorted pass; a correlated lookup would be quadratic as there is no case-insensitive index yet
+        try (PreparedStatement select = connection.prepareStatement("SELECT `id`, `username` FROM (SELECT `rowid` AS `id`, `username`, "
+                + "row_number() OVER (PARTITION BY `username` COLLATE NOCASE ORDER BY `rowid`) AS `n` FROM `users`) WHERE `n` > 1");
+             PreparedStatement rename = connection.prepareStatement("UPDATE `users` SET `username` = ? WHERE `rowid` = ?");
+             PreparedStatement taken = connection.prepareStatement("SELECT 1 FROM `users` WHERE `username` = ? COLLATE NOCASE LIMIT 1");
+             ResultSet resultSet = select.executeQuery()) {
+            while (resultSet.next()) {
+                long rowId = resultSet.getLong(1);
+                String username = resultSet.getString(2);
+                // someone may already be called name_rowid, or an earlier rename took it
+                String renamed = username + "_" + rowId;
+                for (int attempt = 2; isTaken(taken, renamed); attempt++) {
+                    renamed = username + "_" + rowId + "_" + attempt;
+                }
+                LOGGER.warn(String.format("Username %s differs from an older one only in case, renaming it to %s", username, renamed));
+                rename.setString(1, renamed);
+                rename.setLong(2, rowId);
+                rename.executeUpdate();
+            }
+        }
+        pooled.execute("CREATE UNIQUE INDEX IF NOT EXISTS `users_username_nocase` ON `users` (`username` COLLATE NOCASE)");
+    }
+
+    private static boolean isTaken(PreparedStatement taken, String username) throws SQLException {
+        taken.setString(1, username);
+        try (ResultSet resultSet = taken.executeQuery()) {
+            return resultSet.next();
+        }
+    }
+
+    /**
+     * SQLite cannot change the type of a column, so the table is rebuilt with the UUID as a blob and copied over. The
+     * username keeps its case-insensitive unique index by being a {@code NOCASE} primary key.
+     */
+    private static void storeUuidsAsBlobs(PooledConnection pooled) throws SQLException {
+        Connection connection = pooled.getConnection();
+        pooled.execute("CREATE TABLE `users_new` (`username` TEXT NOT NULL PRIMARY KEY COLLATE NOCASE, `uuid` BLOB NOT NULL, `pass` CHAR(60) NOT NULL, `isGlobalOp` BOOLEAN NOT NULL DEFAULT false, `nickname` TEXT)");
+        int copied = 0;
+        try (PreparedStatement select = connection.prepareStatement("SELECT `username`, `uuid`, `pass`, `isGlobalOp`, `nickname` FROM `users`");
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO `users_new` (`username`, `uuid`, `pass`, `isGlobalOp`, `nickname`) VALUES (?, ?, ?, ?, ?)");
+             ResultSet resultSet = select.executeQuery()) {
+            while (resultSet.next()) {
+                insert.setString(1, resultSet.getString(1));
+                insert.setBytes(2, UuidCodec.toBytes(UUID.fromString(resultSet.getString(2))));
+                insert.setString(3, resultSet.getString(3));
+                insert.setBoolean(4, resultSet.getBoolean(4));
+                insert.setString(5, resultSet.getString(5));
+                insert.addBatch();
+                if (++copied % COPY_BATCH == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        pooled.execute("DROP TABLE `users`");
+        pooled.execute("ALTER TABLE `users_new` RENAME TO `users`");
+        pooled.execute("CREATE UNIQUE INDEX `users_uuid` ON `users` (`uuid`)");
+    }
+
+    private record Migration(int version, String description, Step step) {
+    }
+
+    @FunctionalInterface
+    private interface Step {
+
+        void apply(PooledConnection connection) throws SQLException;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of {@link UserRecord}s by lowercase username, including usernames that do not exist. Entries
+ * expire after a fixed time so changes made to the database file from outside the server show up eventually; changes
+ * made through {@link optic_fusion1.server.Database} invalidate the entry straight away, once they are committed.
+ * <p>
+ * A load can still be reading the row while such a change commits. Every invalidation bumps a generation, and a load
+ * that sees the generation change while it runs does not keep its result.
+ */
+public class UserCache {
+
+    private final Cache<String, Optional<UserRecord>> cache;
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param maximumSize maximum number of usernames kept
+     * @param ttlSeconds seconds after which an entry is loaded again
+     */
+    public UserCache(long maximumSize, long ttlSeconds) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param username the username, in any case
+     * @param loader looks the user up in the database on a miss
+     * @return the user, or empty if there is no such user
+     */
+    public Optional<UserRecord> get(String username, Loader loader) throws SQLException {
+        String key = normalize(username);
+        long started = generation.get();
+        boolean[] loaded = new boolean[1];
+        try {
+            Optional<UserRecord> user = cache.get(key, () -> {
+                loaded[0] = true;
+                return Optional.ofNullable(loader.load(username));
+            });
+            if (loaded[0] && generation.get() != started) {
+                // may have been read before the change that invalidated it, good for this caller but not for the ttl
+                cache.asMap().remove(key, user);
+            }
+            return user;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw new SQLException("Could not load user " + username, e.getCause());
+        }
+    }
+
+    public void invalidate(String username) {
+        generation.incrementAndGet();
+        cache.invalidate(normalize(username));
+    }
+
+    public void invalidate(UUID uniqueId) {
+        generation.incrementAndGet();
+        // only password and nickname changes look users up by UUID, a scan is fine for those
+        cache.asMap().values().removeIf(user -> user.isPresent() && user.get().uniqueId().equals(uniqueId));
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static String normalize(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    @FunctionalInterface
+    public interface Loader {
+
+        UserRecord load(String username) throws SQLException;
+    }
+}
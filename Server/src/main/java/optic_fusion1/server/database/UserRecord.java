@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import java.util.UUID;
+
+/**
+ * The parts of a user account needed to log in.
+ *
+ * @param uniqueId the user's UUID
+ * @param username the username as it was registered
+ * @param passwordHash bcrypt hash of the password
+ * @param op whether the user is a global operator
+ */
+public record UserRecord(UUID uniqueId, String username, String passwordHash, boolean op) {
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import optic_fusion1.server.auth.PasswordHasher;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous access to user accounts. Every call runs on a dedicated pool of database threads, so network threads
+ * never wait for the {@link UserStore}. Continuations that do more blocking work should use the {@code *Async} variants with
+ * {@link #getExecutor()} instead of running on whatever thread completed the future.
+ */
+public class UserRepository {
+
+    private final UserStore store;
+    private final PasswordHasher passwordHasher;
+    private final ExecutorService executor;
+
+    /**
+     * @param store the accounts to query
+     * @param threads number of database threads, one per pooled connection is enough
+     * @param passwordHasher hashes new passwords
+     */
+    public UserRepository(UserStore store, int threads, PasswordHasher passwordHasher) {
+        this.store = store;
+        this.passwordHasher = passwordHasher;
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "Database-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Looks up everything needed to log a user in with a single query, served from the {@link UserCache} when
+     * possible.
+     *
+     * @param username the username, in any case
+     * @return the user, or empty if there is no such user
+     */
+    public CompletableFuture<Optional<UserRecord>> findCredentials(String username) {
+        return CompletableFuture.supplyAsync(() -> Optional.ofNullable(store.findUser(username)), executor);
+    }
+
+    /**
+     * @return whether the user was added, false if the username is taken
+     */
+    public CompletableFuture<Boolean> insertUser(String username, UUID uniqueId, String hashedPassword) {
+        return CompletableFuture.supplyAsync(() -> store.insertUser(new UserRecord(uniqueId, username, hashedPassword, false)), executor);
+    }
+
+    /**
+     * Hashes a new password on the {@link PasswordHasher} and stores it.
+     */
+    public CompletableFuture<Void> changePassword(UUID uniqueId, String password) {
+        return passwordHasher.hash(password).thenAcceptAsync(hash -> store.updatePassword(uniqueId, hash), executor);
+    }
+
+    /**
+     * Replaces a password hash with one of the current cost, unless the password was changed since the hash was read.
+     *
+     * @param verifiedHash the hash the password was just checked against
+     * @return whether the hash was replaced
+     */
+    public CompletableFuture<Boolean> rehashPassword(UUID uniqueId, String password, String verifiedHash) {
+        return passwordHasher.hash(password).thenApplyAsync(hash -> store.replacePassword(uniqueId, verifiedHash, hash), executor);
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Storage for user accounts, their credentials and nicknames. Implementations must be safe to call from many threads
+ * at once; they block, so the server calls them through {@link UserRepository} rather than from network threads.
+ * <p>
+ * Usernames are unique ignoring case and every lookup by username ignores case.
+ */
+public interface UserStore extends AutoCloseable {
+
+    /**
+     * @param username the username, in any case
+     * @return the user, or null if there is no such user
+     */
+    UserRecord findUser(String username);
+
+    /**
+     * Like {@link #findUser(String)} != null, but must not disturb any cache, for bulk work that checks many names.
+     */
+    boolean isUsernameTaken(String username);
+
+    /**
+     * @return whether the user was added, false if the username or UUID is taken
+     */
+    boolean insertUser(UserRecord user);
+
+    /**
+     * Adds many users at once, as cheaply as the backend allows.
+     *
+     * @return number of users added, users whose username or UUID is taken are skipped
+     */
+    int insertUsers(List<UserRecord> users);
+
+    void updateNickname(UUID uniqueId, String nickname);
+
+    /**
+     * @param password the new bcrypt hash
+     */
+    void updatePassword(UUID uniqueId, String password);
+
+    /**
+     * Replaces the password only if it is still the given hash, so a concurrent change is never overwritten.
+     *
+     * @param expected the bcrypt hash the password must still have
+     * @param password the new bcrypt hash
+     * @return whether the password was replaced
+     */
+    boolean replacePassword(UUID uniqueId, String expected, String password);
+
+    @Override
+    void close();
+}
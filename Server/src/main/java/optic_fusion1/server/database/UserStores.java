@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import optic_fusion1.common.utils.BCrypt;
+import optic_fusion1.server.Database;
+import optic_fusion1.server.utils.RandomString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.UUID;
+
+/**
+ * Opens the {@link UserStore} named by the {@code user-store} server property and makes sure it has a server admin.
+ * <ul>
+ *   <li>{@code sqlite} (default): {@link Database}, stored in {@code data/database.db}</li>
+ *   <li>{@code memory}: {@link InMemoryUserStore}, for load tests; nothing is kept across restarts</li>
+ * </ul>
+ */
+public final class UserStores {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private UserStores() {
+    }
+
+    /**
+     * @param type value of the {@code user-store} property
+     * @param readers number of read connections for SQLite
+     * @param cacheSize maximum number of usernames in the SQLite {@link UserCache}
+     * @param cacheTtlSeconds seconds a cached user is kept
+     * @param hashCost bcrypt cost factor of the admin password
+     */
+    public static UserStore open(String type, int readers, long cacheSize, long cacheTtlSeconds, int hashCost) {
+        UserStore store;
+        if ("memory".equalsIgnoreCase(type)) {
+            LOGGER.warn("Accounts are kept in memory only and will be lost when the server stops");
+            store = new InMemoryUserStore();
+        } else {
+            if (!"sqlite".equalsIgnoreCase(type)) {
+                LOGGER.fatal("Unknown user-store '" + type + "', using sqlite");
+            }
+            store = new Database(readers, cacheSize, cacheTtlSeconds);
+        }
+        if (store.findUser("admin") == null) {
+            LOGGER.debug("A server user does not exist, creating one...");
+            createServerOpUser(store, hashCost);
+        } else {
+            LOGGER.debug("A server user has already been created.");
+        }
+        return store;
+    }
+
+    private static void createServerOpUser(UserStore store, int hashCost) {
+        final String adminPassword = new RandomString().nextString();
+        String hashedPassword = BCrypt.hashpw(adminPassword, BCrypt.gensalt(hashCost));
+        if (!store.insertUser(new UserRecord(UUID.randomUUID(), "admin", hashedPassword, true))) {
+            return;
+        }
+        LOGGER.info("------------------------------");
+        LOGGER.info("Server admin user has been created, do not loose these credentials!!");
+        LOGGER.info(String.format("Username: admin; Password: %s", adminPassword));
+        LOGGER.info("------------------------------");
+    }
+}
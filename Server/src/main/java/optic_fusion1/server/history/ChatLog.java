@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.history;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Append-only chat history made of memory-mapped segment files that are rolled at a size limit.
+ * <p>
+ * {@link #append(String, String)} only queues the message. A single writer thread drains the queue, writes every
+ * queued message and then forces the segment once, so one fsync covers the whole batch (group commit).
+ * <p>
+ * Reads seek through the sparse index of each segment and scan forward from there; a single read looks at no more
+ * than {@link #MAX_SCAN} records, so a filter that rarely matches cannot walk the whole history.
+ */
+public class ChatLog {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final int QUEUE_CAPACITY = 65536;
+  private static final int MAX_BATCH = 4096;
+  private static final int MAX_SCAN = 100_000;
+  private static final int BACKWARD_WINDOW = 512;
+
+  private final File directory;
+  private final int segmentSize;
+  private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+  private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+  private volatile boolean running = true;
+  private long nextSequence;
+
+  public ChatLog(File directory, int segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Could not create history directory " + directory);
+    }
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(LogSegment.EXTENSION));
+    if (files != null) {
+      Arrays.sort(files);
+      long floorTimestamp = Long.MIN_VALUE;
+      for (File file : files) {
+        LogSegment segment = LogSegment.open(file, segmentSize, floorTimestamp);
+        segments.add(segment);
+        floorTimestamp = segment.getMaxTimestamp();
+      }
+    }
+    if (segments.isEmpty()) {
+      segments.add(LogSegment.create(directory, 1, segmentSize, Long.MIN_VALUE));
+    }
+    this.nextSequence = getLastSequence() + 1;
+    LOGGER.info(String.format("Chat history has %d messages in %d segments", nextSequence - 1, segments.size()));
+
+    this.writer = new Thread(this::writeLoop, "Chat-Log-Writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Queues a relayed message for the log. Never blocks; if the writer has fallen far behind the message is dropped
+   * from the history rather than stalling the broadcast.
+   *
+   * @param room room the message was sent to
+   * @param message the serialized message
+   */
+  public void append(String room, String message) {
+    if (!queue.offer(new Pending(System.currentTimeMillis(), room, message))) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void writeLoop() {
+    List<Pending> batch = new ArrayList<>(MAX_BATCH);
+    while (running || !queue.isEmpty()) {
+      try {
+        Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH - 1);
+        LogSegment active = activeSegment();
+        for (Pending pending : batch) {
+          byte[] payload = pending.encode();
+          if (!active.append(nextSequence, pending.timestamp(), payload)) {
+            active.force();
+            active = roll();
+            if (!active.append(nextSequence, pending.timestamp(), payload)) {
+              LOGGER.warn("Dropped a chat message that is larger than a history segment");
+              continue;
+            }
+          }
+          nextSequence++;
+        }
+        active.force();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Throwable t) {
+        new IOException("Could not write chat history", t).printStackTrace();
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private LogSegment activeSegment() {
+    return segments.get(segments.size() - 1);
+  }
+
+  private LogSegment roll() throws IOException {
+    LogSegment segment = LogSegment.create(directory, nextSequence, segmentSize, activeSegment().getMaxTimestamp());
+    segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * @param sequence sequence number to start after
+   * @param limit maximum number of records
+   * @param filter records to return
+   * @return matching records with a greater sequence number, oldest first
+   */
+  public List<ChatRecord> readAfter(long sequence, int limit, Predicate<ChatRecord> filter) {
+    List<ChatRecord> records = new ArrayList<>();
+    scan(sequence + 1, Long.MAX_VALUE, limit, filter, records);
+    return records;
+  }
+
+  /**
+   * @param sequence sequence number to end before
+   * @param limit maximum number of records
+   * @param filter records to return
+   * @return the latest matching records with a smaller sequence number, oldest first
+   */
+  public List<ChatRecord> readBefore(long sequence, int limit, Predicate<ChatRecord> filter) {
+    // records only link forwards, so walk back in windows and scan each window forwards
+    Deque<List<ChatRecord>> windows = new ArrayDeque<>();
+    long end = Math.min(sequence, getLastSequence() + 1);
+    long first = segments.get(0).getBaseSequence();
+    int found = 0;
+    long scanned = 0;
+    while (found < limit && end > first && scanned < MAX_SCAN) {
+      long start = Math.max(first, end - Math.max(limit, BACKWARD_WINDOW));
+      List<ChatRecord> window = new ArrayList<>();
+      scan(start, end, Integer.MAX_VALUE, filter, window);
+      windows.addFirst(window);
+      found += window.size();
+      scanned += end - start;
+      end = start;
+    }
+    List<ChatRecord> records = new ArrayList<>(found);
+    windows.forEach(records::addAll);
+    return records.subList(Math.max(0, records.size() - limit), records.size());
+  }
+
+  /**
+   * @param timestamp milliseconds since the epoch
+   * @param limit maximum number of records
+   * @param filter records to return
+   * @return matching records sent at or after the timestamp, oldest first
+   */
+  public List<ChatRecord> readSince(long timestamp, int limit, Predicate<ChatRecord> filter) {
+    List<ChatRecord> records = new ArrayList<>();
+    // timestamps in the index never decrease, so the first segment that reaches the timestamp holds the first match
+    int low = 0;
+    int high = segments.size() - 1;
+    int segmentIndex = segments.size();
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (segments.get(mid).getMaxTimestamp() >= timestamp) {
+        segmentIndex = mid;
+        high = mid - 1;
+      } else {
+        low = mid + 1;
+      }
+    }
+    if (segmentIndex == segments.size()) {
+      return records;
+    }
+    LogSegment segment = segments.get(segmentIndex);
+    int offset = segment.floorOffsetByTime(timestamp);
+    if (offset >= segment.getPosition()) {
+      return records;
+    }
+    scan(segmentIndex, offset, Long.MAX_VALUE, limit, record -> record.timestamp() >= timestamp && filter.test(record), records);
+    return records;
+  }
+
+  private void scan(long from, long to, int limit, Predicate<ChatRecord> filter, List<ChatRecord> records) {
+    int segmentIndex = segmentIndexOf(from);
+    LogSegment segment = segments.get(segmentIndex);
+    int offset = segment.floorOffset(from);
+    // skip the records between the index entry and the first one asked for without decoding them
+    while (offset < segment.getPosition() && segment.sequenceAt(offset) < from) {
+      offset = segment.next(offset);
+    }
+    scan(segmentIndex, offset, to, limit, filter, records);
+  }
+
+  private void scan(int segmentIndex, int offset, long to, int limit, Predicate<ChatRecord> filter, List<ChatRecord> records) {
+    int scanned = 0;
+    while (segmentIndex < segments.size() && records.size() < limit && scanned < MAX_SCAN) {
+      LogSegment segment = segments.get(segmentIndex);
+      if (offset >= segment.getPosition()) {
+        segmentIndex++;
+        offset = 0;
+        continue;
+      }
+      if (segment.sequenceAt(offset) >= to) {
+        return;
+      }
+      try {
+        ChatRecord record = segment.read(offset);
+        if (record != null && filter.test(record)) {
+          records.add(record);
+        }
+      } catch (IOException e) {
+        LOGGER.warn(String.format("Skipped an unreadable history record in %s at %d", segment.getFile().getName(), offset));
+      }
+      offset = segment.next(offset);
+      scanned++;
+    }
+  }
+
+  /**
+   * @return index of the segment that holds the sequence, or the closest one
+   */
+  private int segmentIndexOf(long sequence) {
+    int low = 0;
+    int high = segments.size() - 1;
+    int segmentIndex = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (segments.get(mid).getBaseSequence() <= sequence) {
+        segmentIndex = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return segmentIndex;
+  }
+
+  public long getLastSequence() {
+    return activeSegment().getLastSequence();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public void close() {
+    running = false;
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (LogSegment segment : segments) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        LOGGER.warn("Could not close history segment " + segment.getFile().getName());
+      }
+    }
+  }
+
+  private record Pending(long timestamp, String room, String message) {
+
+    private byte[] encode() throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(message.length() + room.length() + 8);
+      DataOutputStream dos = new DataOutputStream(baos);
+      dos.writeUTF(room);
+      dos.writeUTF(message);
+      return baos.toByteArray();
+    }
+  }
+}
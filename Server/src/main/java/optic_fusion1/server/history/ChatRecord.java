@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.history;
+
+/**
+ * A relayed chat message as it is stored in the history log.
+ *
+ * @param sequence position of the message in the log, starting at 1
+ * @param timestamp time the message was relayed, in milliseconds since the epoch
+ * @param room room the message was sent to
+ * @param message the serialized {@link optic_fusion1.common.data.Message}
+ */
+public record ChatRecord(long sequence, long timestamp, String room, String message) {
+}
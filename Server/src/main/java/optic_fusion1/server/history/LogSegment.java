@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One memory-mapped file of the chat history log. Records are laid out as
+ * {@code [int length][long sequence][long timestamp][payload]}; the length is written last, so a record that was torn
+ * by a crash reads as the end of the segment.
+ * <p>
+ * Next to every segment lives a sparse index ({@code .idx}) of fixed-width {@code [long sequence][long timestamp][int
+ * offset]} entries, one for roughly every {@link #INDEX_INTERVAL} bytes of records. The timestamp is the highest one
+ * seen up to that record, so both columns only grow and can be binary searched. The index is derived data: on open
+ * every entry is checked against the record it points at and the index is rebuilt from the first bad entry onwards.
+ */
+final class LogSegment {
+
+  static final String EXTENSION = ".log";
+  static final String INDEX_EXTENSION = ".idx";
+  static final int RECORD_HEADER = 4 + 8 + 8;
+  static final int INDEX_INTERVAL = 4096;
+  static final int INDEX_ENTRY = 8 + 8 + 4;
+
+  private final File file;
+  private final long baseSequence;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final FileChannel indexChannel;
+  private final MappedByteBuffer index;
+  private final int indexCapacity;
+  private volatile int position;
+  private volatile long lastSequence;
+  private volatile long maxTimestamp;
+  private volatile int indexEntries;
+  private int lastIndexedOffset;
+  private int dirtyFrom;
+
+  private LogSegment(File file, long baseSequence, int size, long floorTimestamp) throws IOException {
+    this.file = file;
+    this.baseSequence = baseSequence;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+    // a new entry needs at least INDEX_INTERVAL bytes of records since the previous one
+    this.indexCapacity = buffer.capacity() / INDEX_INTERVAL + 1;
+    this.indexChannel = FileChannel.open(indexFile(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) indexCapacity * INDEX_ENTRY);
+    this.lastSequence = baseSequence - 1;
+    this.maxTimestamp = floorTimestamp;
+  }
+
+  /**
+   * @param floorTimestamp highest timestamp in the previous segment, keeps timestamps in the index increasing
+   */
+  static LogSegment create(File directory, long baseSequence, int size, long floorTimestamp) throws IOException {
+    return new LogSegment(new File(directory, fileName(baseSequence)), baseSequence, size, floorTimestamp);
+  }
+
+  /**
+   * Opens an existing segment, finds the end of its data and repairs its index.
+   *
+   * @param floorTimestamp highest timestamp in the previous segment, keeps timestamps in the index increasing
+   */
+  static LogSegment open(File file, int size, long floorTimestamp) throws IOException {
+    String name = file.getName();
+    LogSegment segment = new LogSegment(file, Long.parseLong(name.substring(0, name.length() - EXTENSION.length())), size, floorTimestamp);
+    segment.recover();
+    return segment;
+  }
+
+  static String fileName(long baseSequence) {
+    return String.format("%020d%s", baseSequence, EXTENSION);
+  }
+
+  private static File indexFile(File file) {
+    String name = file.getName();
+    return new File(file.getParentFile(), name.substring(0, name.length() - EXTENSION.length()) + INDEX_EXTENSION);
+  }
+
+  private void recover() {
+    int entries = validIndexEntries();
+    // entries past the valid prefix are stale, clear them so they are not picked up again on the next open
+    for (int i = entries; i < indexCapacity && index.getLong(i * INDEX_ENTRY) != 0; i++) {
+      index.putLong(i * INDEX_ENTRY, 0);
+    }
+    int offset = 0;
+    long sequence = baseSequence - 1;
+    if (entries > 0) {
+      int last = (entries - 1) * INDEX_ENTRY;
+      offset = index.getInt(last + 16);
+      sequence = index.getLong(last) - 1;
+      maxTimestamp = Math.max(maxTimestamp, index.getLong(last + 8));
+      // the scan below starts at the last indexed record, which is within the interval of itself and not indexed twice
+      lastIndexedOffset = offset;
+    }
+    indexEntries = entries;
+    while (offset + RECORD_HEADER <= buffer.capacity()) {
+      int length = buffer.getInt(offset);
+      if (length < RECORD_HEADER - 4 || offset + 4 + length > buffer.capacity()
+          || buffer.getLong(offset + 4) != sequence + 1) {
+        break;
+      }
+      sequence++;
+      maxTimestamp = Math.max(maxTimestamp, buffer.getLong(offset + 12));
+      indexRecord(offset, sequence);
+      offset += 4 + length;
+    }
+    this.position = offset;
+    this.dirtyFrom = offset;
+    this.lastSequence = sequence;
+  }
+
+  /**
+   * @return length of the prefix of the index whose entries point at the records they claim to
+   */
+  private int validIndexEntries() {
+    long previousSequence = baseSequence - 1;
+    long previousTimestamp = Long.MIN_VALUE;
+    int previousOffset = -1;
+    for (int i = 0; i < indexCapacity; i++) {
+      int entry = i * INDEX_ENTRY;
+      long sequence = index.getLong(entry);
+      long timestamp = index.getLong(entry + 8);
+      int offset = index.getInt(entry + 16);
+      boolean valid = sequence > previousSequence && timestamp >= previousTimestamp && offset > previousOffset
+          && (i > 0 || offset == 0) && offset + RECORD_HEADER <= buffer.capacity()
+          && buffer.getInt(offset) >= RECORD_HEADER - 4 && buffer.getLong(offset + 4) == sequence;
+      if (!valid) {
+        return i;
+      }
+      previousSequence = sequence;
+      previousTimestamp = timestamp;
+      previousOffset = offset;
+    }
+    return indexCapacity;
+  }
+
+  /**
+   * @return whether the record fit into this segment
+   */
+  boolean append(long sequence, long timestamp, byte[] payload) {
+    int offset = position;
+    int length = RECORD_HEADER - 4 + payload.length;
+    if (offset + 4 + length > buffer.capacity()) {
+      return false;
+    }
+    buffer.putLong(offset + 4, sequence);
+    buffer.putLong(offset + 12, timestamp);
+    buffer.put(offset + RECORD_HEADER, payload);
+    buffer.putInt(offset, length);
+    maxTimestamp = Math.max(maxTimestamp, timestamp);
+    indexRecord(offset, sequence);
+    lastSequence = sequence;
+    position = offset + 4 + length;
+    return true;
+  }
+
+  private void indexRecord(int offset, long sequence) {
+    int entries = indexEntries;
+    if (entries > 0 && offset - lastIndexedOffset < INDEX_INTERVAL || entries >= indexCapacity) {
+      return;
+    }
+    int entry = entries * INDEX_ENTRY;
+    index.putLong(entry + 8, maxTimestamp);
+    index.putInt(entry + 16, offset);
+    // the sequence marks the entry as present, so it goes last
+    index.putLong(entry, sequence);
+    lastIndexedOffset = offset;
+    indexEntries = entries + 1;
+  }
+
+  /**
+   * Writes everything appended since the last call to disk. The index is not forced, it is repaired on open.
+   */
+  void force() {
+    int end = position;
+    if (end > dirtyFrom) {
+      buffer.force(dirtyFrom, end - dirtyFrom);
+      dirtyFrom = end;
+    }
+  }
+
+  /**
+   * @param sequence a sequence number in this segment
+   * @return offset of an indexed record at or before the sequence, scanning forward from it reaches the sequence
+   */
+  int floorOffset(long sequence) {
+    int low = 0;
+    int high = indexEntries - 1;
+    int offset = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entry = mid * INDEX_ENTRY;
+      if (index.getLong(entry) <= sequence) {
+        offset = index.getInt(entry + 16);
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * @param timestamp milliseconds since the epoch
+   * @return offset of an indexed record before which every record is older than the timestamp
+   */
+  int floorOffsetByTime(long timestamp) {
+    int low = 0;
+    int high = indexEntries - 1;
+    int offset = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entry = mid * INDEX_ENTRY;
+      if (index.getLong(entry + 8) < timestamp) {
+        offset = index.getInt(entry + 16);
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return offset;
+  }
+
+  long sequenceAt(int offset) {
+    return buffer.getLong(offset + 4);
+  }
+
+  long timestampAt(int offset) {
+    return buffer.getLong(offset + 12);
+  }
+
+  /**
+   * @param offset start of a record
+   * @return the record, or null if there is no complete record at the offset
+   */
+  ChatRecord read(int offset) throws IOException {
+    if (offset + RECORD_HEADER > position) {
+      return null;
+    }
+    ByteBuffer view = buffer.duplicate();
+    int length = view.getInt(offset);
+    long sequence = view.getLong(offset + 4);
+    long timestamp = view.getLong(offset + 12);
+    byte[] payload = new byte[length - (RECORD_HEADER - 4)];
+    view.get(offset + RECORD_HEADER, payload);
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+    return new ChatRecord(sequence, timestamp, dis.readUTF(), dis.readUTF());
+  }
+
+  /**
+   * @param offset start of a record
+   * @return start of the record after it
+   */
+  int next(int offset) {
+    return offset + 4 + buffer.getInt(offset);
+  }
+
+  int getPosition() {
+    return position;
+  }
+
+  long getBaseSequence() {
+    return baseSequence;
+  }
+
+  long getLastSequence() {
+    return lastSequence;
+  }
+
+  long getMaxTimestamp() {
+    return maxTimestamp;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  void close() throws IOException {
+    force();
+    index.force();
+    channel.close();
+    indexChannel.close();
+  }
+}
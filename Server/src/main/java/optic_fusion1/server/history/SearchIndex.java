@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.history;
+
+import optic_fusion1.common.data.Message;
+import optic_fusion1.common.data.User;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index from lowercase tokens to the messages in the {@link ChatLog} that contain them.
+ * <p>
+ * A background thread follows the log, so relaying a message never waits for the index. Every posting is
+ * {@code [sequence][timestamp][user]}, delta and varint encoded against the previous posting of the same token. When
+ * the postings outgrow their memory budget the oldest half of the indexed messages is dropped from the index. The
+ * index is saved periodically and on shutdown, and after a restart only messages logged since the last save are
+ * indexed again.
+ */
+public class SearchIndex {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final int MAGIC = 0x43485349;
+  private static final int VERSION = 1;
+  private static final int BATCH = 4096;
+  private static final long POLL_INTERVAL = 500;
+  private static final long SAVE_INTERVAL = TimeUnit.MINUTES.toNanos(5);
+  private static final int MIN_TOKEN_LENGTH = 2;
+  private static final int MAX_TOKEN_LENGTH = 32;
+  // rough cost of a token's map entry, key and postings object on top of the posting bytes
+  private static final int TOKEN_OVERHEAD = 96;
+
+  private final ChatLog chatLog;
+  private final File file;
+  private final long maxBytes;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, Postings> postings = new HashMap<>();
+  private final Map<UUID, Integer> userIds = new HashMap<>();
+  // user id 0 is a message without a user, id n is users.get(n - 1)
+  private final List<User> users = new ArrayList<>();
+  private final Thread indexer;
+  private volatile boolean running = true;
+  private volatile long indexedSequence;
+  private volatile long minSequence = 1;
+  private long bytes;
+  private boolean dirty;
+  private long lastSave = System.nanoTime();
+
+  /**
+   * @param chatLog the log to index
+   * @param file where the index is saved
+   * @param maxBytes memory budget for the postings
+   */
+  public SearchIndex(ChatLog chatLog, File file, long maxBytes) {
+    this.chatLog = chatLog;
+    this.file = file;
+    this.maxBytes = maxBytes;
+    load();
+    this.indexer = new Thread(this::indexLoop, "Chat-Search-Indexer");
+    this.indexer.setDaemon(true);
+    this.indexer.start();
+  }
+
+  /**
+   * @param terms words that all have to be in a message
+   * @param from only messages from this username, or null for everyone
+   * @param limit maximum number of messages
+   * @return the latest matching messages, oldest first
+   */
+  public List<ChatRecord> search(List<String> terms, String from, int limit) {
+    Set<String> tokens = new LinkedHashSet<>();
+    for (String term : terms) {
+      tokens.addAll(tokenize(term));
+    }
+    if (tokens.isEmpty()) {
+      return new ArrayList<>();
+    }
+    long[] matches;
+    lock.readLock().lock();
+    try {
+      Set<Integer> fromIds = null;
+      if (from != null) {
+        fromIds = new HashSet<>();
+        for (int i = 0; i < users.size(); i++) {
+          if (users.get(i).getUsername().equalsIgnoreCase(from)) {
+            fromIds.add(i + 1);
+          }
+        }
+      }
+      List<Postings> lists = new ArrayList<>();
+      for (String token : tokens) {
+        Postings list = postings.get(token);
+        if (list == null) {
+          return new ArrayList<>();
+        }
+        lists.add(list);
+      }
+      lists.sort((a, b) -> Integer.compare(a.size, b.size));
+      matches = intersect(lists, fromIds);
+    } finally {
+      lock.readLock().unlock();
+    }
+    List<ChatRecord> records = new ArrayList<>();
+    for (int i = Math.max(0, matches.length - limit); i < matches.length; i++) {
+      List<ChatRecord> record = chatLog.readAfter(matches[i] - 1, 1, r -> true);
+      if (!record.isEmpty() && record.get(0).sequence() == matches[i]) {
+        records.add(record.get(0));
+      }
+    }
+    return records;
+  }
+
+  /**
+   * @param lists postings of every token, shortest first
+   * @param fromIds users to keep, or null for all
+   * @return sequence numbers in every list, ascending
+   */
+  private static long[] intersect(List<Postings> lists, Set<Integer> fromIds) {
+    long[] candidates = new long[lists.get(0).count];
+    int size = 0;
+    Cursor cursor = lists.get(0).cursor();
+    while (cursor.next()) {
+      if (fromIds == null || fromIds.contains(cursor.user)) {
+        candidates[size++] = cursor.sequence;
+      }
+    }
+    for (int i = 1; i < lists.size() && size > 0; i++) {
+      Cursor other = lists.get(i).cursor();
+      int kept = 0;
+      boolean more = other.next();
+      for (int j = 0; j < size && more; j++) {
+        while (more && other.sequence < candidates[j]) {
+          more = other.next();
+        }
+        if (more && other.sequence == candidates[j]) {
+          candidates[kept++] = candidates[j];
+        }
+      }
+      size = kept;
+    }
+    return Arrays.copyOf(candidates, size);
+  }
+
+  private void indexLoop() {
+    while (running) {
+      try {
+        List<ChatRecord> records = chatLog.readAfter(indexedSequence, BATCH, record -> true);
+        if (!records.isEmpty()) {
+          lock.writeLock().lock();
+          try {
+            for (ChatRecord record : records) {
+              index(record);
+            }
+            if (bytes > maxBytes) {
+              evict();
+            }
+          } finally {
+            lock.writeLock().unlock();
+          }
+        }
+        if (dirty && System.nanoTime() - lastSave >= SAVE_INTERVAL) {
+          save();
+        }
+        if (records.size() < BATCH) {
+          Thread.sleep(POLL_INTERVAL);
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (Throwable t) {
+        new Exception("Could not update the search index", t).printStackTrace();
+      }
+    }
+  }
+
+  private void index(ChatRecord record) {
+    indexedSequence = record.sequence();
+    dirty = true;
+    Message message;
+    try {
+      message = Message.deserialize(record.message());
+    } catch (RuntimeException e) {
+      return;
+    }
+    int user = userId(message.getUser());
+    for (String token : tokenize(message.getContent())) {
+      Postings list = postings.get(token);
+      if (list == null) {
+        list = new Postings();
+        postings.put(token, list);
+        bytes += TOKEN_OVERHEAD + token.length() * 2L + list.data.length;
+      }
+      int capacity = list.data.length;
+      list.add(record.sequence(), record.timestamp(), user);
+      bytes += list.data.length - capacity;
+    }
+  }
+
+  private int userId(User user) {
+    if (user == null) {
+      return 0;
+    }
+    Integer id = userIds.get(user.getUuid());
+    if (id == null) {
+      users.add(user);
+      id = users.size();
+      userIds.put(user.getUuid(), id);
+    }
+    return id;
+  }
+
+  /**
+   * Drops the older half of the indexed messages until the postings fit the budget again.
+   */
+  private void evict() {
+    while (bytes > maxBytes && minSequence <= indexedSequence) {
+      minSequence += (indexedSequence - minSequence) / 2 + 1;
+      bytes = 0;
+      postings.replaceAll((token, list) -> list.retainFrom(minSequence));
+      postings.values().removeIf(list -> list.count == 0);
+      postings.forEach((token, list) -> bytes += TOKEN_OVERHEAD + token.length() * 2L + list.data.length);
+    }
+    LOGGER.info(String.format("Search index is over its memory budget, now covering messages from #%d", minSequence));
+  }
+
+  static Set<String> tokenize(String text) {
+    Set<String> tokens = new LinkedHashSet<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (letter && start < 0) {
+        start = i;
+      } else if (!letter && start >= 0) {
+        int length = i - start;
+        if (length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH) {
+          tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        }
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * @return sequence number of the oldest message that can still be found
+   */
+  public long getMinSequence() {
+    return minSequence;
+  }
+
+  public long getIndexedSequence() {
+    return indexedSequence;
+  }
+
+  private void save() {
+    File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+    lock.readLock().lock();
+    try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeLong(indexedSequence);
+      dos.writeLong(minSequence);
+      dos.writeInt(users.size());
+      for (User user : users) {
+        dos.writeLong(user.getUuid().getMostSignificantBits());
+        dos.writeLong(user.getUuid().getLeastSignificantBits());
+        dos.writeUTF(user.getUsername());
+      }
+      dos.writeInt(postings.size());
+      for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+        Postings list = entry.getValue();
+        dos.writeUTF(entry.getKey());
+        dos.writeLong(list.lastSequence);
+        dos.writeLong(list.lastTimestamp);
+        dos.writeInt(list.count);
+        dos.writeInt(list.size);
+        dos.write(list.data, 0, list.size);
+      }
+      dirty = false;
+    } catch (IOException e) {
+      new IOException("Could not save the search index", e).printStackTrace();
+      return;
+    } finally {
+      lastSave = System.nanoTime();
+      lock.readLock().unlock();
+    }
+    try {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      new IOException("Could not replace the search index", e).printStackTrace();
+    }
+  }
+
+  private void load() {
+    if (!file.exists()) {
+      return;
+    }
+    try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+        throw new IOException("Unknown search index format");
+      }
+      long indexed = dis.readLong();
+      if (indexed > chatLog.getLastSequence()) {
+        throw new IOException("Search index is ahead of the chat history");
+      }
+      long min = dis.readLong();
+      int userCount = dis.readInt();
+      for (int i = 0; i < userCount; i++) {
+        User user = new User(new UUID(dis.readLong(), dis.readLong()), dis.readUTF());
+        users.add(user);
+        userIds.put(user.getUuid(), users.size());
+      }
+      int tokenCount = dis.readInt();
+      for (int i = 0; i < tokenCount; i++) {
+        String token = dis.readUTF();
+        Postings list = new Postings();
+        list.lastSequence = dis.readLong();
+        list.lastTimestamp = dis.readLong();
+        list.count = dis.readInt();
+        list.size = dis.readInt();
+        list.data = new byte[Math.max(16, list.size)];
+        dis.readFully(list.data, 0, list.size);
+        postings.put(token, list);
+        bytes += TOKEN_OVERHEAD + token.length() * 2L + list.data.length;
+      }
+      indexedSequence = indexed;
+      minSequence = min;
+      LOGGER.info(String.format("Loaded search index of %d tokens up to message #%d", postings.size(), indexed));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Could not load the search index, rebuilding it from the chat history: " + e.getLocalizedMessage());
+      postings.clear();
+      users.clear();
+      userIds.clear();
+      bytes = 0;
+    }
+  }
+
+  public void close() {
+    running = false;
+    indexer.interrupt();
+    try {
+      indexer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    save();
+  }
+
+  private static final class Postings {
+
+    private byte[] data = new byte[16];
+    private int size;
+    private int count;
+    private long lastSequence;
+    private long lastTimestamp;
+
+    private void add(long sequence, long timestamp, int user) {
+      if (size + 30 > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, size + 30));
+      }
+      writeVarLong(sequence - lastSequence);
+      long delta = timestamp - lastTimestamp;
+      // timestamps can step back with the clock, zigzag keeps small negative deltas small
+      writeVarLong((delta << 1) ^ (delta >> 63));
+      writeVarLong(user);
+      lastSequence = sequence;
+      lastTimestamp = timestamp;
+      count++;
+    }
+
+    private void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        data[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      data[size++] = (byte) value;
+    }
+
+    private Postings retainFrom(long minSequence) {
+      Postings retained = new Postings();
+      Cursor cursor = cursor();
+      while (cursor.next()) {
+        if (cursor.sequence >= minSequence) {
+          retained.add(cursor.sequence, cursor.timestamp, cursor.user);
+        }
+      }
+      return retained;
+    }
+
+    private Cursor cursor() {
+      return new Cursor(this);
+    }
+  }
+
+  private static final class Cursor {
+
+    private final Postings postings;
+    private int position;
+    private long sequence;
+    private long timestamp;
+    private int user;
+
+    private Cursor(Postings postings) {
+      this.postings = postings;
+    }
+
+    private boolean next() {
+      if (position >= postings.size) {
+        return false;
+      }
+      sequence += readVarLong();
+      long zigzag = readVarLong();
+      timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+      user = (int) readVarLong();
+      return true;
+    }
+
+    private long readVarLong() {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = postings.data[position++];
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import optic_fusion1.packets.IPacket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends broadcasts from a fixed set of worker threads. Every recipient is pinned to one stripe (by connection id) and
+ * every stripe is a single thread, so a recipient always sees broadcasts in the order they were submitted.
+ */
+public class BroadcastFanout {
+
+  private final SocketServer server;
+  private final Stripe[] stripes;
+
+  public BroadcastFanout(SocketServer server, int threads) {
+    this.server = server;
+    this.stripes = new Stripe[Math.max(1, threads)];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(i);
+    }
+  }
+
+  public void broadcastPacket(final Collection<ClientConnection> recipients, final IPacket packet) {
+    if (server.isBatchingEnabled() && OutboundBatcher.isBatchable(packet)) {
+      // every recipient has its own batcher, so the packet is handed over unserialized
+      submit(recipients, packet, null);
+      return;
+    }
+    byte[] data;
+    try {
+      data = server.serializePacket(packet);
+    } catch (IOException e) {
+      new IOException("Could not serialize broadcast packet", e).printStackTrace();
+      return;
+    }
+    submit(recipients, packet, data);
+  }
+
+  /**
+   * Same as {@link #broadcastPacket(Collection, IPacket)} for a packet the caller has already serialized.
+   */
+  public void broadcastPacket(final Collection<ClientConnection> recipients, final IPacket packet, final byte[] data) {
+    submit(recipients, packet, server.isBatchingEnabled() && OutboundBatcher.isBatchable(packet) ? null : data);
+  }
+
+  public void broadcastRawPacket(final Collection<ClientConnection> recipients, final byte[] data) {
+    submit(recipients, null, data);
+  }
+
+  private void submit(final Collection<ClientConnection> recipients, final IPacket packet, final byte[] data) {
+    OutboundQueue.Lane lane = packet == null ? OutboundQueue.Lane.BULK : OutboundQueue.laneOf(packet);
+    List<List<ClientConnection>> partitions = new ArrayList<>(stripes.length);
+    for (int i = 0; i < stripes.length; i++) {
+      partitions.add(new ArrayList<>());
+    }
+    for (ClientConnection clientConnection : recipients) {
+      partitions.get(Math.floorMod(clientConnection.getConnectionId(), stripes.length)).add(clientConnection);
+    }
+    long submitted = System.nanoTime();
+    for (int i = 0; i < stripes.length; i++) {
+      List<ClientConnection> partition = partitions.get(i);
+      if (!partition.isEmpty()) {
+        stripes[i].submit(partition, packet, data, lane, submitted);
+      }
+    }
+  }
+
+  public int getStripeCount() {
+    return stripes.length;
+  }
+
+  /**
+   * @param stripe stripe index
+   * @return time in nanoseconds from submitting the last broadcast until it was queued for its last recipient in the stripe
+   */
+  public long getLastLatency(int stripe) {
+    return stripes[stripe].lastLatency.get();
+  }
+
+  /**
+   * @param stripe stripe index
+   * @return the highest time-to-last-recipient in nanoseconds the stripe has seen
+   */
+  public long getMaxLatency(int stripe) {
+    return stripes[stripe].maxLatency.get();
+  }
+
+  public void shutdown() {
+    for (Stripe stripe : stripes) {
+      stripe.executor.shutdown();
+    }
+  }
+
+  private static final class Stripe {
+
+    private final ExecutorService executor;
+    private final AtomicLong lastLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    private Stripe(int index) {
+      this.executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Broadcast-Fanout-" + index);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+
+    private void submit(List<ClientConnection> recipients, IPacket packet, byte[] data, OutboundQueue.Lane lane, long submitted) {
+      try {
+        executor.execute(() -> {
+          for (ClientConnection clientConnection : recipients) {
+            try {
+              if (data != null) {
+                clientConnection.sendRawPacket(lane, data);
+              } else {
+                clientConnection.sendPacket(packet);
+              }
+            } catch (Exception e) {
+              new Exception("Could not broadcast packet to client " + clientConnection.getAddress().getHostAddress(), e).printStackTrace();
+            }
+          }
+          long latency = System.nanoTime() - submitted;
+          lastLatency.set(latency);
+          maxLatency.accumulateAndGet(latency, Math::max);
+        });
+      } catch (RejectedExecutionException ignored) {
+        // the server is shutting down
+      }
+    }
+  }
+}
@@ -21,12 +21,15 @@ import optic_fusion1.common.data.User;
 import optic_fusion1.packets.IPacket;
 import optic_fusion1.packets.OpCode;
 import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.packets.impl.PingPacket;
 import optic_fusion1.packets.utils.RSACrypter;
 import optic_fusion1.server.Main;
+import optic_fusion1.server.rooms.Room;
+import optic_fusion1.server.rooms.RoomManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -35,12 +38,14 @@ import java.net.Socket;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ClientConnection implements CommandSender {
 
   private static final Logger LOGGER = LogManager.getLogger();
 
   private final SocketServer server;
+  private final int connectionId;
   private final Socket socket;
   private final InetAddress address;
   private final DataInputStream dataInputStream;
@@ -52,28 +57,47 @@ public class ClientConnection implements CommandSender {
   private boolean useEncryption;
 
   private long ping = -1;
-  private boolean terminated = false;
+  private volatile boolean terminated = false;
+  private final OutboundQueue outboundQueue;
+  private final OutboundBatcher batcher;
+  private final FloodControl.Limits floodLimits;
 
   // Optic_Fusion1 start
-  private boolean loggedIn;
+  private volatile boolean loggedIn;
+  // set while a login of this connection is being checked on the database threads
+  private final AtomicBoolean authenticating = new AtomicBoolean();
   private UUID uniqueId;
   private String username;
   private User user;
+  private volatile Room room;
+  private volatile ResumableSession session;
   // Optic_Fusion1 end
 
   public ClientConnection(final SocketServer server, final Socket socket) {
     this.server = server;
+    this.connectionId = server.nextConnectionId();
     this.socket = socket;
     this.address = socket.getInetAddress();
     try {
       this.dataInputStream = new DataInputStream(socket.getInputStream());
-      this.dataOutputStream = new DataOutputStream(socket.getOutputStream());
+      this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     } catch (Exception e) {
       this.terminateConnection();
       throw new IllegalStateException("Socket is closed or not ready yet", e);
     }
     this.aesKeyLength = 256;
     this.useEncryption = true;
+    this.outboundQueue = new OutboundQueue(this, server.getBulkQueueLimit(), server.getOutboundWriters());
+    this.batcher = server.isBatchingEnabled() ? server.createBatcher(this) : null;
+    this.floodLimits = server.getFloodControl().createLimits();
+  }
+
+  public SocketServer getServer() {
+    return this.server;
+  }
+
+  public int getConnectionId() {
+    return this.connectionId;
   }
 
   public Socket getSocket() {
@@ -94,6 +118,9 @@ public class ClientConnection implements CommandSender {
 
   public boolean terminateConnection() {
     this.terminated = true;
+    if (this.outboundQueue != null) {
+      this.outboundQueue.close();
+    }
     try {
       this.dataInputStream.close();
       this.dataOutputStream.close();
@@ -104,6 +131,10 @@ public class ClientConnection implements CommandSender {
     return false;
   }
 
+  public boolean isTerminated() {
+    return this.terminated;
+  }
+
   public void updatePing(final long ping) {
     this.ping = ping;
   }
@@ -157,10 +188,50 @@ public class ClientConnection implements CommandSender {
   }
 
   public void sendRawPacket(byte[] data) throws IOException {
+    this.sendRawPacket(OutboundQueue.Lane.BULK, data);
+  }
+
+  /**
+   * Encrypts a frame on the calling thread and queues it on the given lane. Once the connection is logged in the frame
+   * goes through its {@link ResumableSession}, which numbers it and keeps it for replay even while the client is away.
+   *
+   * @param lane lane the frame is queued on
+   * @param data serialized packet
+   */
+  public void sendRawPacket(OutboundQueue.Lane lane, byte[] data) throws IOException {
+    ResumableSession session = this.session;
+    if (session != null) {
+      session.send(lane, data);
+      return;
+    }
+    this.sendFrame(lane, data);
+  }
+
+  private void sendFrame(OutboundQueue.Lane lane, byte[] data) {
     if (this.terminated) {
       throw new IllegalStateException("Client connection has been terminated");
     }
+    this.outboundQueue.offer(lane, this.encrypt(data));
+  }
+
+  byte[] serializePacket(IPacket packet) throws IOException {
+    return this.server.serializePacket(packet);
+  }
+
+  /**
+   * Queues a numbered frame of the session without waking the writer.
+   *
+   * @return false if the outbound queue shed the frame
+   */
+  boolean queueFrame(OutboundQueue.Lane lane, long sequence, byte[] data) {
+    if (this.terminated) {
+      // kept by the session until the client resumes
+      return true;
+    }
+    return this.outboundQueue.enqueue(lane, sequence, this.encrypt(data));
+  }
 
+  private byte[] encrypt(byte[] data) {
     if (this.encryptionKey != null && this.useEncryption) {
       try {
         data = RSACrypter.encrypt(this.encryptionKey, data, aesKeyLength);
@@ -171,22 +242,48 @@ public class ClientConnection implements CommandSender {
     if (data.length > this.server.getMaxPacketSize()) {
       throw new RuntimeException("Packet size over maximum: " + data.length + " > " + this.server.getMaxPacketSize());
     }
+    return data;
+  }
+
+  // Only called by the drain of the outbound queue, which never runs twice at once
+  void writeFrame(long sequence, byte[] data) throws IOException {
     this.dataOutputStream.writeInt(data.length);
+    // outside the payload, so a broadcast is serialized once and shared by the replay buffers of all its recipients
+    this.dataOutputStream.writeLong(sequence);
     this.dataOutputStream.write(data);
   }
 
+  void flushFrames() throws IOException {
+    this.dataOutputStream.flush();
+  }
+
+  public FloodControl.Limits getFloodLimits() {
+    return this.floodLimits;
+  }
+
+  public OutboundQueue getOutboundQueue() {
+    return this.outboundQueue;
+  }
+
   @Override
   public void sendPacket(final IPacket packet) {
-    if (this.terminated) {
+    if (this.terminated && this.session == null) {
       throw new IllegalStateException("Client connection has been terminated");
     }
 
+    if (this.batcher != null && OutboundBatcher.isBatchable(packet)) {
+      this.batcher.add((MessagePacket) packet);
+      return;
+    }
+
     try {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      DataOutputStream dos = new DataOutputStream(baos);
-      dos.writeUTF(this.server.getPacketRegister().getPacketLabel(packet.getClass()));
-      packet.writePacketData(dos);
-      this.sendRawPacket(baos.toByteArray());
+      byte[] data = this.server.serializePacket(packet);
+      if (packet instanceof PingPacket) {
+        // pings belong to the socket, not to the stream of the session
+        this.sendFrame(OutboundQueue.laneOf(packet), data);
+      } else {
+        this.sendRawPacket(OutboundQueue.laneOf(packet), data);
+      }
     } catch (Exception e) {
       new IOException("Could not serialize packet for " + this.address.getHostAddress(), e).printStackTrace();
     }
@@ -202,23 +299,100 @@ public class ClientConnection implements CommandSender {
     return loggedIn;
   }
 
-  public void login(String username) {
+  /**
+   * Starts checking a login, unless one is already being checked for this connection.
+   *
+   * @return false if a login is already in progress
+   */
+  public boolean beginAuthentication() {
+    return authenticating.compareAndSet(false, true);
+  }
+
+  public void endAuthentication() {
+    authenticating.set(false);
+  }
+
+  public void login(UUID uniqueId, String username) {
     this.loggedIn = true;
     this.username = username;
-    this.uniqueId = server.getDatabase().getUUID(username);
+    this.uniqueId = uniqueId;
 
     this.user = new User(uniqueId, username);
+    if (server.getResumableSessions() != null) {
+      ResumableSession session = server.getResumableSessions().open(this);
+      // sent before the stream starts, every frame after it is numbered
+      this.sendPacket(new MessagePacket(OpCode.STREAM, session.getId(), MessagePacket.MessageChatType.SYSTEM));
+      this.session = session;
+    }
+    server.getOnlineUsers().add(this);
 
     LOGGER.info(String.format("%s has logged in from %s", username, getAddress()));
 
     // send the client their user information
     this.sendPacket(new MessagePacket(OpCode.LOGGED_IN, user.serialize(), MessagePacket.MessageChatType.SYSTEM));
 
-    // broadcast to everyone that the client has joined
-    server.broadcastPacket(new MessagePacket(OpCode.LOGIN, user.serialize(), MessagePacket.MessageChatType.SYSTEM));
+    // tell the client who is online, everyone else learns about the join with the next presence delta
+    server.getPresence().announce(this);
+
+    server.getRoomManager().join(this, RoomManager.DEFAULT_ROOM);
+
+    // lets the client log in again after a reconnect without its password
+    if (server.getSessionTokens() != null) {
+      this.sendPacket(new MessagePacket(OpCode.SESSION, server.getSessionTokens().issue(uniqueId, username), MessagePacket.MessageChatType.SYSTEM));
+    }
+
+    if (server.getOfflineMessages() != null) {
+      server.getOfflineMessages().deliver(this);
+    }
+  }
+
+  /**
+   * Continues the stream of a session on this connection after a reconnect. The user never went offline for anyone
+   * else, so there is no presence change, no room join and no offline delivery; the client only gets the frames it
+   * missed.
+   *
+   * @param session the session the client had before
+   * @param sequence last sequence the client has received every frame up to
+   * @return false if the session has expired or no longer holds the frames after the sequence
+   */
+  public boolean resume(ResumableSession session, long sequence) {
+    ClientConnection previous = session.resume(this, sequence);
+    if (previous == null) {
+      return false;
+    }
+    server.getOnlineUsers().add(this);
+    server.getRoomManager().takeOver(previous, this);
+    if (previous != this && !previous.isTerminated()) {
+      // the old socket is half open and the server has not noticed yet
+      previous.terminateConnection();
+    }
+    LOGGER.info(String.format("%s has resumed their session from %s", username, getAddress()));
+    // the client forgets a token once it has presented it, so hand it a fresh one for the next reconnect
+    if (server.getSessionTokens() != null) {
+      this.sendPacket(new MessagePacket(OpCode.SESSION, server.getSessionTokens().issue(uniqueId, username), MessagePacket.MessageChatType.SYSTEM));
+    }
+    return true;
+  }
+
+  // Only called by the session while it holds its lock
+  void attachSession(ResumableSession session, ClientConnection previous) {
+    this.username = previous.username;
+    this.uniqueId = previous.uniqueId;
+    this.user = previous.user;
+    this.loggedIn = true;
+    this.session = session;
   }
 
   public void logout() {
+    if (session != null) {
+      server.getResumableSessions().close(session);
+      session = null;
+    }
+    server.getOnlineUsers().remove(this);
+    if (loggedIn) {
+      server.getPresence().leave(user);
+    }
+    server.getRoomManager().leave(this);
     username = "";
     uniqueId = null;
     loggedIn = false;
@@ -228,7 +402,7 @@ public class ClientConnection implements CommandSender {
 //  public void setNickname(String nickname) {
 //    String oldNickname = this.nickname.isEmpty() ? username : this.nickname;
 //    this.nickname = nickname;
-//    server.getDatabase().updateNickname(uniqueId, nickname);
+//    server.getUserStore().updateNickname(uniqueId, nickname);
 //    LOGGER.info(oldNickname + " changed their name to " + nickname);
 //  }
    */
@@ -244,5 +418,20 @@ public class ClientConnection implements CommandSender {
     return user;
   }
 
+  public Room getRoom() {
+    return room;
+  }
+
+  public void setRoom(Room room) {
+    this.room = room;
+  }
+
+  /**
+   * @return the session the frames of this login are numbered in, or null if it is not logged in or resuming is off
+   */
+  public ResumableSession getSession() {
+    return session;
+  }
+
   // Optic_Fusion1 - end
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import optic_fusion1.common.data.Message;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.utils.RateLimiter;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inbound chat limits, checked per connection and per account before a message is broadcast.
+ */
+public class FloodControl {
+
+  public enum Action {
+    DROP,
+    WARN,
+    DELAY
+  }
+
+  private static final long WARN_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+  private static final long MAX_DELAY = TimeUnit.SECONDS.toNanos(2);
+  private static final int MAX_ACCOUNTS = 10000;
+  private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+  private final double messagesPerSecond;
+  private final long messageBurst;
+  private final double bytesPerSecond;
+  private final long bytesBurst;
+  private final Action action;
+  private final Map<UUID, Limits> accounts = new ConcurrentHashMap<>();
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+  public FloodControl(Properties properties) {
+    messagesPerSecond = Double.parseDouble(properties.getProperty("flood-messages-per-second", "5"));
+    messageBurst = Long.parseLong(properties.getProperty("flood-message-burst", "10"));
+    bytesPerSecond = Double.parseDouble(properties.getProperty("flood-bytes-per-second", "4096"));
+    bytesBurst = Long.parseLong(properties.getProperty("flood-bytes-burst", "16384"));
+    action = Action.valueOf(properties.getProperty("flood-action", "WARN").toUpperCase(Locale.ROOT));
+  }
+
+  public Limits createLimits() {
+    return new Limits();
+  }
+
+  /**
+   * Charges a chat message against the connection's and the account's buckets, all of them or none.
+   *
+   * @param clientConnection the sender
+   * @param bytes size of the message
+   * @return whether the message may be broadcast
+   */
+  public boolean allow(ClientConnection clientConnection, int bytes) {
+    Limits connection = clientConnection.getFloodLimits();
+    Limits account = accountLimits(clientConnection.getUniqueId());
+    long now = System.nanoTime();
+    if (tryAcquire(connection, account, now, bytes)) {
+      return true;
+    }
+    switch (action) {
+      case WARN -> {
+        // one warning per second at most, otherwise the warnings become the flood
+        long lastWarning = connection.lastWarning;
+        if (now - lastWarning >= WARN_INTERVAL) {
+          connection.lastWarning = now;
+          clientConnection.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "You are sending messages too fast, slow down").serialize(), MessagePacket.MessageChatType.SYSTEM));
+        }
+      }
+      case DELAY -> {
+        // holding the reader thread pushes back on the client through TCP
+        long wait = Math.max(connection.nanosUntilAvailable(now, bytes), account.nanosUntilAvailable(now, bytes));
+        if (wait <= MAX_DELAY) {
+          try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+          now = System.nanoTime();
+          return tryAcquire(connection, account, now, bytes);
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean tryAcquire(Limits connection, Limits account, long now, int bytes) {
+    if (!connection.tryAcquire(now, bytes)) {
+      return false;
+    }
+    if (!account.tryAcquire(now, bytes)) {
+      // a message the account may not send must not use up the connection's allowance either
+      connection.refund(bytes);
+      return false;
+    }
+    return true;
+  }
+
+  private Limits accountLimits(UUID uniqueId) {
+    Limits limits = accounts.get(uniqueId);
+    if (limits != null) {
+      return limits;
+    }
+    if (accounts.size() >= MAX_ACCOUNTS) {
+      sweep(System.nanoTime());
+    }
+    return accounts.computeIfAbsent(uniqueId, key -> new Limits());
+  }
+
+  /**
+   * Drops the limits of accounts that have refilled completely, at most once per {@link #SWEEP_INTERVAL} so a full map
+   * does not turn every new account into a scan.
+   */
+  private void sweep(long now) {
+    long last = lastSweep.get();
+    if (now - last >= SWEEP_INTERVAL && lastSweep.compareAndSet(last, now)) {
+      accounts.values().removeIf(existing -> existing.isIdle(now));
+    }
+  }
+
+  public final class Limits {
+
+    private final RateLimiter messages = new RateLimiter(messagesPerSecond, messageBurst);
+    private final RateLimiter bytes = new RateLimiter(bytesPerSecond, bytesBurst);
+    private volatile long lastWarning = System.nanoTime() - WARN_INTERVAL;
+
+    private Limits() {
+    }
+
+    private boolean tryAcquire(long now, int size) {
+      if (!messages.tryAcquire(now, 1)) {
+        return false;
+      }
+      if (!bytes.tryAcquire(now, size)) {
+        messages.refund(1);
+        return false;
+      }
+      return true;
+    }
+
+    private void refund(int size) {
+      messages.refund(1);
+      bytes.refund(size);
+    }
+
+    private long nanosUntilAvailable(long now, int size) {
+      return Math.max(messages.nanosUntilAvailable(now, 1), bytes.nanosUntilAvailable(now, size));
+    }
+
+    private boolean isIdle(long now) {
+      return messages.isIdle(now) && bytes.isIdle(now);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directory of logged in connections by lowercase username and by UUID. Lookups are lock-free, updates lock the
+ * directory so both indexes always change together.
+ */
+public class OnlineUsers {
+
+  private final Map<String, ClientConnection> byName = new ConcurrentHashMap<>();
+  private final Map<UUID, ClientConnection> byUniqueId = new ConcurrentHashMap<>();
+
+  synchronized void add(ClientConnection clientConnection) {
+    ClientConnection previous = byUniqueId.put(clientConnection.getUniqueId(), clientConnection);
+    if (previous != null) {
+      byName.remove(normalize(previous.getUsername()), previous);
+    }
+    byName.put(normalize(clientConnection.getUsername()), clientConnection);
+  }
+
+  synchronized void remove(ClientConnection clientConnection) {
+    UUID uniqueId = clientConnection.getUniqueId();
+    if (uniqueId == null || !byUniqueId.remove(uniqueId, clientConnection)) {
+      return;
+    }
+    byName.remove(normalize(clientConnection.getUsername()), clientConnection);
+  }
+
+  public ClientConnection getByName(String username) {
+    return byName.get(normalize(username));
+  }
+
+  public ClientConnection getByUniqueId(UUID uniqueId) {
+    return byUniqueId.get(uniqueId);
+  }
+
+  public boolean isOnline(UUID uniqueId) {
+    return byUniqueId.containsKey(uniqueId);
+  }
+
+  public Collection<ClientConnection> getConnections() {
+    return byUniqueId.values();
+  }
+
+  public int size() {
+    return byUniqueId.size();
+  }
+
+  private static String normalize(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import optic_fusion1.packets.IPacket;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessageBatchPacket;
+import optic_fusion1.packets.impl.MessagePacket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds outbound chat for a connection for up to {@code maxDelay} milliseconds, {@code maxMessages} messages or
+ * {@code maxBytes} encoded bytes and then ships it as a single {@link MessageBatchPacket}.
+ */
+public class OutboundBatcher {
+
+  // the JSON envelope and length prefix around each message in the batch
+  private static final int MESSAGE_OVERHEAD = 64;
+  // what the RSA wrapped key and the AES padding add to a frame, for keys up to 4096 bits
+  private static final int ENCRYPTION_OVERHEAD = 1024;
+
+  private final ClientConnection clientConnection;
+  private final ScheduledExecutorService scheduler;
+  private final long maxDelay;
+  private final int maxMessages;
+  private final int maxBytes;
+
+  private List<MessagePacket> pending = new ArrayList<>();
+  private int pendingBytes;
+  private ScheduledFuture<?> flushTask;
+
+  public OutboundBatcher(ClientConnection clientConnection, ScheduledExecutorService scheduler, long maxDelay, int maxMessages, int maxBytes) {
+    this.clientConnection = clientConnection;
+    this.scheduler = scheduler;
+    this.maxDelay = maxDelay;
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Only user chat is batched, control packets and system messages such as login responses are always sent directly.
+   *
+   * @param packet the outbound packet
+   * @return whether the packet may be delayed by a batcher
+   */
+  public static boolean isBatchable(IPacket packet) {
+    return packet instanceof MessagePacket messagePacket
+        && messagePacket.getOpCode() == OpCode.MESSAGE
+        && messagePacket.getChatType() == MessagePacket.MessageChatType.USER;
+  }
+
+  public synchronized void add(MessagePacket packet) {
+    int size = encodedSize(packet.getMessage()) + MESSAGE_OVERHEAD;
+    if (!pending.isEmpty() && pendingBytes + size > maxBytes) {
+      flush();
+    }
+    pending.add(packet);
+    pendingBytes += size;
+    if (pending.size() >= maxMessages || pendingBytes >= maxBytes) {
+      flush();
+    } else if (flushTask == null) {
+      try {
+        flushTask = scheduler.schedule(this::flush, maxDelay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * Sends everything that is pending. The frame is queued while holding the lock so a size triggered flush and a
+   * timer triggered flush can never overtake each other.
+   */
+  public synchronized void flush() {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+      flushTask = null;
+    }
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<MessagePacket> batch = pending;
+    pending = new ArrayList<>();
+    pendingBytes = 0;
+    send(batch);
+  }
+
+  private void send(List<MessagePacket> batch) {
+    try {
+      IPacket packet = batch.size() == 1 ? batch.get(0) : new MessageBatchPacket(batch);
+      byte[] data = clientConnection.getServer().serializePacket(packet);
+      if (batch.size() > 1 && data.length + ENCRYPTION_OVERHEAD > clientConnection.getServer().getMaxPacketSize()) {
+        // escaping made the batch larger than estimated, halves always fit eventually
+        split(batch);
+        return;
+      }
+      clientConnection.sendRawPacket(data);
+    } catch (IOException | IllegalStateException e) {
+      new IOException("Could not flush message batch for " + clientConnection.getAddress().getHostAddress(), e).printStackTrace();
+    } catch (RuntimeException e) {
+      if (batch.size() > 1) {
+        split(batch);
+        return;
+      }
+      new IOException("Could not send message to " + clientConnection.getAddress().getHostAddress(), e).printStackTrace();
+    }
+  }
+
+  private void split(List<MessagePacket> batch) {
+    int half = batch.size() / 2;
+    send(new ArrayList<>(batch.subList(0, half)));
+    send(new ArrayList<>(batch.subList(half, batch.size())));
+  }
+
+  /**
+   * @return length of the string in the modified UTF-8 that {@link java.io.DataOutputStream#writeUTF} writes
+   */
+  static int encodedSize(String string) {
+    int size = 0;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        size++;
+      } else if (c <= 0x07FF) {
+        size += 2;
+      } else {
+        size += 3;
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import optic_fusion1.packets.IPacket;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.packets.impl.PingPacket;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound frames of a single connection, split into a control lane and a bulk lane. The control lane is always
+ * drained first, so pings and login responses never wait behind a chat backlog.
+ * <p>
+ * The blocking socket writes run on a writer pool shared by all connections. Senders, such as the broadcast fanout
+ * threads, only queue a frame and wake the queue, which schedules one drain of it on the pool; a drain writes at most
+ * {@link #DRAIN_BATCH} frames before it hands the thread to the next connection. A client that stops reading holds a
+ * writer thread in a blocked write, so the server cuts off every connection that {@link #isStalled(long, long) stalls}
+ * longer than its write timeout, and the pool only has to be larger than the number of clients stalling at once.
+ */
+public class OutboundQueue {
+
+  public enum Lane {
+    CONTROL,
+    BULK
+  }
+
+  private static final int DRAIN_BATCH = 256;
+
+  private final ClientConnection clientConnection;
+  private final int bulkLimit;
+  private final Executor writers;
+  private final Queue<Frame> control = new ConcurrentLinkedQueue<>();
+  private final Queue<Frame> bulk = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger controlDepth = new AtomicInteger();
+  private final AtomicInteger bulkDepth = new AtomicInteger();
+  private final AtomicLong droppedBulk = new AtomicLong();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile long drainStarted;
+  private volatile boolean running = true;
+
+  /**
+   * @param writers pool the frames are written on, shared with the other connections
+   */
+  public OutboundQueue(ClientConnection clientConnection, int bulkLimit, Executor writers) {
+    this.clientConnection = clientConnection;
+    this.bulkLimit = bulkLimit;
+    this.writers = writers;
+  }
+
+  public static Lane laneOf(IPacket packet) {
+    if (packet instanceof PingPacket) {
+      return Lane.CONTROL;
+    }
+    if (packet instanceof MessagePacket messagePacket) {
+      return switch (messagePacket.getOpCode()) {
+        // system replies such as "Invalid username or password" answer the client, they are not chat traffic
+        case MESSAGE -> messagePacket.getChatType() == MessagePacket.MessageChatType.SYSTEM ? Lane.CONTROL : Lane.BULK;
+        case JOIN_ROOM, LEAVE_ROOM -> Lane.BULK;
+        default -> Lane.CONTROL;
+      };
+    }
+    return Lane.BULK;
+  }
+
+  /**
+   * Queues a frame that is not part of a session stream and wakes the writer.
+   */
+  public void offer(Lane lane, byte[] frame) {
+    if (enqueue(lane, 0, frame)) {
+      wake();
+    }
+  }
+
+  /**
+   * Queues a frame without waking the queue. Lets a caller queue several frames while holding a lock of its own and
+   * {@link #wake()} the queue once afterwards.
+   *
+   * @param sequence number of the frame in the stream of its session, written in the frame header; 0 for none
+   * @return false if the frame was shed because the bulk lane is full
+   */
+  public boolean enqueue(Lane lane, long sequence, byte[] frame) {
+    if (lane == Lane.CONTROL) {
+      control.add(new Frame(sequence, frame));
+      controlDepth.incrementAndGet();
+    } else {
+      if (bulkDepth.incrementAndGet() > bulkLimit) {
+        // the client is not keeping up, shed chat instead of growing without bound
+        bulkDepth.decrementAndGet();
+        droppedBulk.incrementAndGet();
+        return false;
+      }
+      bulk.add(new Frame(sequence, frame));
+    }
+    return true;
+  }
+
+  /**
+   * Schedules a drain on the writer pool, unless one is already scheduled or running.
+   */
+  public void wake() {
+    if (running && scheduled.compareAndSet(false, true)) {
+      try {
+        writers.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        // the server is stopping
+        scheduled.set(false);
+      }
+    }
+  }
+
+  private void drain() {
+    drainStarted = System.nanoTime();
+    try {
+      Frame frame;
+      boolean wrote = false;
+      int written = 0;
+      while (running && written < DRAIN_BATCH) {
+        written++;
+        if ((frame = control.poll()) != null) {
+          controlDepth.decrementAndGet();
+          // control frames are pushed to the socket right away instead of waiting for the buffer to fill
+          clientConnection.writeFrame(frame.sequence(), frame.data());
+          clientConnection.flushFrames();
+          continue;
+        }
+        if ((frame = bulk.poll()) == null) {
+          break;
+        }
+        bulkDepth.decrementAndGet();
+        clientConnection.writeFrame(frame.sequence(), frame.data());
+        wrote = true;
+      }
+      if (wrote) {
+        clientConnection.flushFrames();
+      }
+    } catch (IOException e) {
+      close();
+      clientConnection.terminateConnection();
+      return;
+    } finally {
+      drainStarted = 0;
+      scheduled.set(false);
+    }
+    // a frame queued while this drain was still scheduled did not schedule one of its own, and a full batch leaves
+    // frames behind
+    if (!control.isEmpty() || !bulk.isEmpty()) {
+      wake();
+    }
+  }
+
+  /**
+   * @param now current {@link System#nanoTime()}
+   * @param timeout nanoseconds a drain may take
+   * @return whether a drain has been writing for longer than the timeout, i.e. the client stopped reading
+   */
+  public boolean isStalled(long now, long timeout) {
+    long started = drainStarted;
+    return started != 0 && now - started > timeout;
+  }
+
+  /**
+   * Stops writing and discards whatever is still queued.
+   */
+  public void close() {
+    running = false;
+    control.clear();
+    bulk.clear();
+    controlDepth.set(0);
+    bulkDepth.set(0);
+  }
+
+  public int getDepth(Lane lane) {
+    return lane == Lane.CONTROL ? controlDepth.get() : bulkDepth.get();
+  }
+
+  public long getDroppedBulk() {
+    return droppedBulk.get();
+  }
+
+  private record Frame(long sequence, byte[] data) {
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import optic_fusion1.common.data.User;
+import optic_fusion1.packets.impl.PresencePacket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Coalesces joins and leaves into periodic {@link PresencePacket} deltas, so a reconnect wave costs one broadcast per
+ * interval instead of one broadcast per user.
+ */
+public class PresenceBroadcaster {
+
+  // type, both list sizes and room for the encryption, see OutboundBatcher
+  private static final int PACKET_OVERHEAD = 1 + 4 + 4 + 1024;
+  // UUID of a joined or left user
+  private static final int UUID_SIZE = 16;
+
+  private final SocketServer server;
+  private Map<UUID, User> joined = new LinkedHashMap<>();
+  private Set<UUID> left = new HashSet<>();
+
+  public PresenceBroadcaster(SocketServer server) {
+    this.server = server;
+  }
+
+  public synchronized void join(User user) {
+    // a leave followed by a join inside one interval is no change for anyone who saw the user before
+    if (!left.remove(user.getUuid())) {
+      joined.put(user.getUuid(), user);
+    }
+  }
+
+  public synchronized void leave(User user) {
+    // a join followed by a leave inside one interval was never announced
+    if (joined.remove(user.getUuid()) == null) {
+      left.add(user.getUuid());
+    }
+  }
+
+  /**
+   * Tells a connection that just logged in who is already online and queues its own join for the next delta.
+   * <p>
+   * Users whose join is still pending are left out of the snapshot, the delta announces them once. The snapshot is
+   * taken and queued on the connection under the lock, and the control lane is FIFO, so every delta taken after it
+   * reaches the connection after it. A delta taken before it may arrive on either side: its joins may then be
+   * announced twice, which the client treats as no change, and its leaves are not in the snapshot because a user is
+   * taken offline before the leave is recorded. The own join is queued with the snapshot, so the client never learns
+   * about itself from a delta first.
+   *
+   * @param clientConnection the connection that just logged in
+   */
+  public synchronized void announce(ClientConnection clientConnection) {
+    List<User> users = new ArrayList<>();
+    for (ClientConnection online : server.getOnlineUsers().getConnections()) {
+      User user = online.getClient();
+      if (!joined.containsKey(user.getUuid())) {
+        users.add(user);
+      }
+    }
+    if (users.isEmpty()) {
+      clientConnection.sendPacket(new PresencePacket(PresencePacket.PresenceType.SNAPSHOT, users, Collections.emptyList()));
+    }
+    int index = 0;
+    while (index < users.size()) {
+      int end = fill(users, index, maxBytes());
+      clientConnection.sendPacket(new PresencePacket(PresencePacket.PresenceType.SNAPSHOT, users.subList(index, end), Collections.emptyList()));
+      index = end;
+    }
+    join(clientConnection.getClient());
+  }
+
+  public void flush() {
+    List<User> joinedUsers;
+    List<UUID> leftUsers;
+    synchronized (this) {
+      if (joined.isEmpty() && left.isEmpty()) {
+        return;
+      }
+      joinedUsers = new ArrayList<>(joined.values());
+      leftUsers = new ArrayList<>(left);
+      joined = new LinkedHashMap<>();
+      left = new HashSet<>();
+    }
+    int maxBytes = maxBytes();
+    int joinedIndex = 0;
+    int leftIndex = 0;
+    while (joinedIndex < joinedUsers.size() || leftIndex < leftUsers.size()) {
+      int joinedEnd = fill(joinedUsers, joinedIndex, maxBytes);
+      int joinedBytes = 0;
+      for (User user : joinedUsers.subList(joinedIndex, joinedEnd)) {
+        joinedBytes += entrySize(user);
+      }
+      int leftEnd = Math.min(leftUsers.size(), leftIndex + Math.max(0, maxBytes - joinedBytes) / UUID_SIZE);
+      if (joinedEnd == joinedIndex && leftEnd == leftIndex) {
+        leftEnd = leftIndex + 1;
+      }
+      PresencePacket packet = new PresencePacket(PresencePacket.PresenceType.DELTA, joinedUsers.subList(joinedIndex, joinedEnd), leftUsers.subList(leftIndex, leftEnd));
+      server.getFanout().broadcastPacket(server.getOnlineUsers().getConnections(), packet);
+      joinedIndex = joinedEnd;
+      leftIndex = leftEnd;
+    }
+  }
+
+  /**
+   * @return the end of the longest run of users from {@code start} that fits the budget, at least one user
+   */
+  private static int fill(List<User> users, int start, int maxBytes) {
+    int end = start;
+    int bytes = 0;
+    while (end < users.size()) {
+      int size = entrySize(users.get(end));
+      if (end > start && bytes + size > maxBytes) {
+        break;
+      }
+      bytes += size;
+      end++;
+    }
+    return end;
+  }
+
+  private static int entrySize(User user) {
+    return UUID_SIZE + 2 + OutboundBatcher.encodedSize(user.getUsername());
+  }
+
+  private int maxBytes() {
+    return server.getMaxPacketSize() - PACKET_OVERHEAD;
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import com.google.gson.JsonObject;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.packets.impl.PingPacket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * The stream of frames sent to one login, kept across reconnects. Every frame gets the next sequence number, which is
+ * written in the frame header, and is kept in a replay buffer until the client acknowledges it in a
+ * {@link PingPacket}. A client that reconnects within the grace period presents the last sequence it has and gets
+ * exactly the frames after it; it is not announced again, rejoins no room and needs no history query.
+ * <p>
+ * The buffer holds the serialized packet the sender passed in, which for a broadcast is the same array for every
+ * recipient. Its size is bounded by {@link ResumableSessions#getBufferLimit()}. When a client stops acknowledging the
+ * oldest frames are dropped, and a resume from before them fails so the client falls back to a normal login.
+ * <p>
+ * Bulk frames the outbound queue sheds for a slow client are never numbered, so the acknowledgements of the client never
+ * wait for them. Instead the next frame that gets through, or the next resume, is followed by an
+ * {@link OpCode#GAP} notice that tells the client how many frames it missed since when, so it can fetch the history.
+ */
+public class ResumableSession {
+
+  // what a buffered frame costs besides its payload: the record and its slot in the deque
+  static final int FRAME_OVERHEAD = 48;
+
+  private final ResumableSessions sessions;
+  private final String id;
+  private final UUID uniqueId;
+  private final String username;
+  private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+  private long bufferedBytes;
+  private long lastSequence;
+  // frames shed since the client was last told, and when the first of them was shed
+  private long shedFrames;
+  private long shedSince;
+  // the connection the stream is written to, it stays set while the client is away
+  private ClientConnection connection;
+  private long detachedAt;
+  private boolean closed;
+
+  ResumableSession(ResumableSessions sessions, String id, ClientConnection connection) {
+    this.sessions = sessions;
+    this.id = id;
+    this.uniqueId = connection.getUniqueId();
+    this.username = connection.getUsername();
+    this.connection = connection;
+  }
+
+  /**
+   * Numbers a frame, keeps it for replay and queues it on the current connection. Frames sent while the client is
+   * away are only kept.
+   *
+   * @param lane lane the frame is queued on
+   * @param data serialized packet
+   */
+  void send(OutboundQueue.Lane lane, byte[] data) {
+    ClientConnection target;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      long sequence = lastSequence + 1;
+      target = connection;
+      if (!target.queueFrame(lane, sequence, data)) {
+        // shed like any other bulk frame for a slow client, the gap notice follows once frames get through again
+        if (shedFrames++ == 0) {
+          shedSince = System.currentTimeMillis();
+        }
+        return;
+      }
+      keep(sequence, data);
+      queueGap(target);
+    }
+    if (!target.isTerminated()) {
+      target.getOutboundQueue().wake();
+    }
+  }
+
+  private void keep(long sequence, byte[] data) {
+    lastSequence = sequence;
+    frames.addLast(new Frame(sequence, data));
+    bufferedBytes += data.length + FRAME_OVERHEAD;
+    long limit = sessions.getBufferLimit();
+    while (bufferedBytes > limit && !frames.isEmpty()) {
+      bufferedBytes -= frames.removeFirst().data().length + FRAME_OVERHEAD;
+    }
+  }
+
+  /**
+   * Tells the client about the frames shed since it was last told, in a numbered frame on the control lane that is
+   * itself never shed and is replayed like any other.
+   */
+  private void queueGap(ClientConnection target) {
+    if (shedFrames == 0) {
+      return;
+    }
+    JsonObject gap = new JsonObject();
+    gap.addProperty("dropped", shedFrames);
+    gap.addProperty("since", shedSince);
+    byte[] data;
+    try {
+      data = target.serializePacket(new MessagePacket(OpCode.GAP, gap.toString(), MessagePacket.MessageChatType.SYSTEM));
+    } catch (IOException e) {
+      new IOException("Could not serialize a gap notice", e).printStackTrace();
+      return;
+    }
+    long sequence = lastSequence + 1;
+    target.queueFrame(OutboundQueue.Lane.CONTROL, sequence, data);
+    keep(sequence, data);
+    shedFrames = 0;
+  }
+
+  /**
+   * Drops the frames the client has confirmed.
+   *
+   * @param clientConnection connection the acknowledgement came from
+   * @param sequence cumulative acknowledgement
+   */
+  synchronized void acknowledge(ClientConnection clientConnection, long sequence) {
+    if (clientConnection != connection || sequence > lastSequence) {
+      return;
+    }
+    trim(sequence);
+  }
+
+  private void trim(long sequence) {
+    Frame first;
+    while ((first = frames.peekFirst()) != null && first.sequence() <= sequence) {
+      bufferedBytes -= first.data().length + FRAME_OVERHEAD;
+      frames.removeFirst();
+    }
+  }
+
+  /**
+   * Moves the stream to a new connection and queues the frames after the given sequence on it. The frames go to the
+   * control lane so they are never shed, a gap in the sequence would stall the acknowledgements of the client.
+   *
+   * @param clientConnection the connection the client came back on
+   * @param sequence last sequence the client has received every frame up to
+   * @return the connection the stream was written to before, or null if the frames after the sequence are gone
+   */
+  ClientConnection resume(ClientConnection clientConnection, long sequence) {
+    ClientConnection previous;
+    synchronized (this) {
+      Frame first = frames.peekFirst();
+      long firstKept = first == null ? lastSequence + 1 : first.sequence();
+      if (closed || sequence > lastSequence || sequence + 1 < firstKept) {
+        return null;
+      }
+      previous = connection;
+      trim(sequence);
+      for (Frame frame : frames) {
+        clientConnection.queueFrame(OutboundQueue.Lane.CONTROL, frame.sequence(), frame.data());
+      }
+      queueGap(clientConnection);
+      // from here on every frame sent to this user, through either connection, goes after the replayed ones
+      connection = clientConnection;
+      detachedAt = 0;
+      clientConnection.attachSession(this, previous);
+    }
+    clientConnection.getOutboundQueue().wake();
+    return previous;
+  }
+
+  /**
+   * Called when the socket of a connection closes.
+   *
+   * @return whether the session still holds the login, in which case the user stays online until it expires
+   */
+  synchronized boolean detach(ClientConnection clientConnection) {
+    if (closed) {
+      return false;
+    }
+    if (clientConnection == connection) {
+      detachedAt = System.currentTimeMillis();
+    }
+    return true;
+  }
+
+  /**
+   * Closes the session if the client has been away for longer than the grace period.
+   *
+   * @return whether it was closed by this call
+   */
+  synchronized boolean expire(long now, long graceMillis) {
+    if (closed || detachedAt == 0 || now - detachedAt < graceMillis) {
+      return false;
+    }
+    close();
+    return true;
+  }
+
+  synchronized void close() {
+    closed = true;
+    frames.clear();
+    bufferedBytes = 0;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public UUID getUniqueId() {
+    return uniqueId;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public synchronized ClientConnection getConnection() {
+    return connection;
+  }
+
+  public synchronized boolean isDetached() {
+    return detachedAt != 0;
+  }
+
+  public synchronized long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  private record Frame(long sequence, byte[] data) {
+  }
+}
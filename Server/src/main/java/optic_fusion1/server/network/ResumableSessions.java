@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link ResumableSession}s of the logged in users by stream id. A stream id is random and only ever sent to its
+ * own client, resuming also needs a valid session token of the same user.
+ * <p>
+ * The replay buffers share one budget: a session may keep at most its fair share of the total, and never more than
+ * the per-session limit, so the heap they take stays bounded however many users are online.
+ */
+public class ResumableSessions {
+
+  private final long graceMillis;
+  private final long bufferSize;
+  private final long totalBufferSize;
+  private final Map<String, ResumableSession> sessions = new ConcurrentHashMap<>();
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * @param graceMillis how long a session waits for its client to come back
+   * @param bufferSize most bytes of unacknowledged frames kept per session
+   * @param totalBufferSize most bytes of unacknowledged frames kept by all sessions together
+   */
+  public ResumableSessions(long graceMillis, long bufferSize, long totalBufferSize) {
+    this.graceMillis = graceMillis;
+    this.bufferSize = bufferSize;
+    this.totalBufferSize = totalBufferSize;
+  }
+
+  ResumableSession open(ClientConnection clientConnection) {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    ResumableSession session = new ResumableSession(this, Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), clientConnection);
+    sessions.put(session.getId(), session);
+    return session;
+  }
+
+  /**
+   * @return bytes a single session may keep buffered right now
+   */
+  public long getBufferLimit() {
+    return Math.min(bufferSize, totalBufferSize / Math.max(1, sessions.size()));
+  }
+
+  public ResumableSession get(String id) {
+    return sessions.get(id);
+  }
+
+  void close(ResumableSession session) {
+    sessions.remove(session.getId(), session);
+    session.close();
+  }
+
+  /**
+   * Closes the sessions whose client has been away for longer than the grace period.
+   *
+   * @return the sessions that were closed
+   */
+  List<ResumableSession> expire() {
+    long now = System.currentTimeMillis();
+    List<ResumableSession> expired = new ArrayList<>();
+    for (ResumableSession session : sessions.values()) {
+      if (session.expire(now, graceMillis)) {
+        sessions.remove(session.getId(), session);
+        expired.add(session);
+      }
+    }
+    return expired;
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  public int getDetachedCount() {
+    int detached = 0;
+    for (ResumableSession session : sessions.values()) {
+      if (session.isDetached()) {
+        detached++;
+      }
+    }
+    return detached;
+  }
+
+  public long getBufferedBytes() {
+    long bytes = 0;
+    for (ResumableSession session : sessions.values()) {
+      bytes += session.getBufferedBytes();
+    }
+    return bytes;
+  }
+}
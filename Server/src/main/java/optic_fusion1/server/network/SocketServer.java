@@ -31,12 +31,22 @@ import optic_fusion1.packets.PacketRegister;
 import optic_fusion1.packets.impl.MessagePacket;
 import optic_fusion1.packets.impl.PingPacket;
 import optic_fusion1.packets.utils.RSACrypter;
-import optic_fusion1.server.Database;
 import optic_fusion1.server.Server;
 import optic_fusion1.server.ServerCommandSender;
+import optic_fusion1.server.auth.LoginThrottle;
+import optic_fusion1.server.auth.PasswordHasher;
+import optic_fusion1.server.auth.PwnedPasswords;
+import optic_fusion1.server.auth.SessionTokens;
 import optic_fusion1.server.commands.*;
+import optic_fusion1.server.database.UserRepository;
+import optic_fusion1.server.database.UserStore;
+import optic_fusion1.server.database.UserStores;
+import optic_fusion1.server.history.ChatLog;
+import optic_fusion1.server.history.SearchIndex;
+import optic_fusion1.server.offline.OfflineMessages;
 import optic_fusion1.server.network.events.CommandEvent;
 import optic_fusion1.server.network.listeners.ServerEventListener;
+import optic_fusion1.server.rooms.RoomManager;
 import optic_fusion1.server.utils.Utils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -45,10 +55,14 @@ import java.io.*;
 import java.net.*;
 import java.security.KeyPair;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SocketServer {
 
@@ -63,14 +77,59 @@ public class SocketServer {
   private final Map<ClientConnection, Thread> clients;
   private final List<ServerEventListener> eventListener;
   private final PacketRegister packetRegister;
+  private final AtomicInteger connectionIds = new AtomicInteger();
+  private final BroadcastFanout fanout;
+  private final RoomManager roomManager;
+  private final FloodControl floodControl;
+  private ChatLog chatLog;
+  private SearchIndex searchIndex;
+  private OfflineMessages offlineMessages;
+  private volatile PwnedPasswords pwnedPasswords;
+  private SessionTokens sessionTokens;
+  private ResumableSessions resumableSessions;
+  private final LoginThrottle loginThrottle = new LoginThrottle();
+  private final OnlineUsers onlineUsers = new OnlineUsers();
+  private final PresenceBroadcaster presence = new PresenceBroadcaster(this);
   // Optic_Fusion1 - start
   private static final ScheduledExecutorService EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor();
   private static final CommandHandler COMMAND_HANDLER = new CommandHandler();
   private static final Properties SERVER_PROPERTIES = new Properties();
-  private static final Database DATABASE = new Database();
+  private UserStore userStore;
+  private UserRepository userRepository;
+  private PasswordHasher passwordHasher;
   private boolean loginRequired = true;
   private String serverIP = "";
   private boolean allowInsecurePasswords = false;
+  private String pwnedPasswordsFile = "pwned-passwords.bin";
+  private int pwnedCheckThreads = 4;
+  private ExecutorService pwnedCheckExecutor;
+  private int loginThreads = Runtime.getRuntime().availableProcessors();
+  private ExecutorService loginExecutor;
+  private long sessionTokenTtlHours = 24;
+  private long resumeGraceSeconds = 60;
+  private long resumeBufferSize = 256 * 1024;
+  private long resumeBufferTotal = 64 * 1024 * 1024;
+  private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+  private long batchMaxDelay = 0;
+  private int batchMaxMessages = 32;
+  private int bulkQueueLimit = 10000;
+  private int outboundWriterThreads = 32;
+  private long outboundWriteTimeout = 10;
+  private ExecutorService outboundWriters;
+  private long presenceInterval = 250;
+  private int historySegmentSize = 64 * 1024 * 1024;
+  private long searchIndexMaxBytes = 64 * 1024 * 1024;
+  private int roomReplaySize = 50;
+  private long offlineMaxBytesPerUser = 4 * 1024 * 1024;
+  private int databaseReaders = Runtime.getRuntime().availableProcessors();
+  private long userCacheSize = 10000;
+  private long userCacheTtl = 300;
+  private String userStoreType = "sqlite";
+  private int passwordHashThreads = Runtime.getRuntime().availableProcessors();
+  private int passwordHashQueue = 64;
+  private int passwordHashCost = 0;
+  private long passwordHashTargetMillis = 250;
+  private ScheduledExecutorService batchScheduler;
 
   private final Server server;
   // Optic_Fusion1 - end
@@ -80,8 +139,69 @@ public class SocketServer {
     this.clients = new ConcurrentHashMap<>();
     this.eventListener = new CopyOnWriteArrayList<>();
     this.packetRegister = new PacketRegister();
-    registerCommands();
     loadPropertiesFile();
+    this.passwordHasher = new PasswordHasher(passwordHashThreads, passwordHashQueue, passwordHashCost());
+    this.userStore = UserStores.open(userStoreType, databaseReaders, userCacheSize, userCacheTtl, passwordHasher.getCost());
+    // one thread per pooled connection, the writer included
+    this.userRepository = new UserRepository(userStore, databaseReaders + 1, passwordHasher);
+    // the online check waits on the network, so it must not hold the database threads that logins need
+    AtomicInteger pwnedCheckThreadId = new AtomicInteger();
+    this.pwnedCheckExecutor = Executors.newFixedThreadPool(Math.max(1, pwnedCheckThreads), runnable -> {
+      Thread thread = new Thread(runnable, "Pwned-Check-" + pwnedCheckThreadId.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    // joining rooms and delivering offline messages after a login, so a login wave leaves the database threads to lookups
+    AtomicInteger loginThreadId = new AtomicInteger();
+    this.loginExecutor = Executors.newFixedThreadPool(Math.max(1, loginThreads), runnable -> {
+      Thread thread = new Thread(runnable, "Login-" + loginThreadId.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    // the blocking socket writes of every connection, a client that stops reading holds one thread until it is cut off
+    AtomicInteger outboundWriterThreadId = new AtomicInteger();
+    this.outboundWriters = Executors.newFixedThreadPool(Math.max(1, outboundWriterThreads), runnable -> {
+      Thread thread = new Thread(runnable, "Client-Writer-" + outboundWriterThreadId.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    registerCommands();
+    this.fanout = new BroadcastFanout(this, fanoutThreads);
+    if (isBatchingEnabled()) {
+      this.batchScheduler = Executors.newScheduledThreadPool(fanoutThreads);
+    }
+    this.roomManager = new RoomManager(fanout, roomReplaySize);
+    if (resumeGraceSeconds > 0) {
+      this.resumableSessions = new ResumableSessions(TimeUnit.SECONDS.toMillis(resumeGraceSeconds), resumeBufferSize, resumeBufferTotal);
+    }
+    this.floodControl = new FloodControl(SERVER_PROPERTIES);
+    try {
+      File historyFolder = new File(Utils.getFolder("data"), "history");
+      this.chatLog = new ChatLog(historyFolder, historySegmentSize);
+      this.searchIndex = new SearchIndex(chatLog, new File(historyFolder, "search.idx"), searchIndexMaxBytes);
+    } catch (IOException | URISyntaxException ex) {
+      LOGGER.fatal("Could not open the chat history, messages will not be stored: " + ex.getLocalizedMessage());
+    }
+    try {
+      this.offlineMessages = new OfflineMessages(new File(Utils.getFolder("data"), "offline"), offlineMaxBytesPerUser);
+    } catch (IOException | URISyntaxException ex) {
+      LOGGER.fatal("Could not open the offline message store, direct messages to offline users will be refused: " + ex.getLocalizedMessage());
+    }
+    try {
+      this.sessionTokens = new SessionTokens(Utils.getFile("data", "session.key"), Utils.getFile("data", "session-revocations.dat"),
+          TimeUnit.HOURS.toMillis(sessionTokenTtlHours));
+    } catch (IOException | URISyntaxException ex) {
+      LOGGER.fatal("Could not load the session key, clients will have to log in with their password after a reconnect: " + ex.getLocalizedMessage());
+    }
+    try {
+      File corpus = getPwnedPasswordsFile();
+      if (corpus.exists()) {
+        this.pwnedPasswords = new PwnedPasswords(corpus);
+        LOGGER.info(String.format("Loaded %d pwned password hashes", pwnedPasswords.getCount()));
+      }
+    } catch (IOException | URISyntaxException ex) {
+      LOGGER.fatal("Could not open the pwned password corpus, the online API will be used instead: " + ex.getLocalizedMessage());
+    }
   }
 
   public void bind() throws IOException {
@@ -164,6 +284,40 @@ public class SocketServer {
         }
       }
     }, 0, 10000);
+    EXECUTOR_SERVICE.scheduleAtFixedRate(() -> {
+      try {
+        presence.flush();
+      } catch (Throwable t) {
+        new Exception("Could not broadcast presence updates", t).printStackTrace();
+      }
+    }, presenceInterval, presenceInterval, TimeUnit.MILLISECONDS);
+    EXECUTOR_SERVICE.scheduleAtFixedRate(() -> {
+      try {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.SECONDS.toNanos(outboundWriteTimeout);
+        for (ClientConnection clientConnection : clients.keySet()) {
+          if (clientConnection.getOutboundQueue().isStalled(now, timeout)) {
+            // closing the socket ends the blocked write and gives the writer thread back to the other connections
+            LOGGER.info(String.format("%s stopped reading for %d seconds, disconnecting", clientConnection.getAddress(), outboundWriteTimeout));
+            clientConnection.terminateConnection();
+          }
+        }
+      } catch (Throwable t) {
+        new Exception("Could not check for stalled connections", t).printStackTrace();
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+    if (resumableSessions != null) {
+      EXECUTOR_SERVICE.scheduleAtFixedRate(() -> {
+        try {
+          for (ResumableSession session : resumableSessions.expire()) {
+            LOGGER.info(String.format("%s did not come back within %d seconds", session.getUsername(), resumeGraceSeconds));
+            removeLogin(session.getConnection());
+          }
+        } catch (Throwable t) {
+          new Exception("Could not expire resumable sessions", t).printStackTrace();
+        }
+      }, 1, 1, TimeUnit.SECONDS);
+    }
 
     handleInput();
   }
@@ -178,6 +332,25 @@ public class SocketServer {
       clientConnection.terminateConnection();
     }
     this.clients.clear();
+    this.fanout.shutdown();
+    this.outboundWriters.shutdown();
+    if (this.offlineMessages != null) {
+      this.offlineMessages.close();
+    }
+    if (this.searchIndex != null) {
+      this.searchIndex.close();
+    }
+    if (this.chatLog != null) {
+      this.chatLog.close();
+    }
+    this.pwnedCheckExecutor.shutdown();
+    this.loginExecutor.shutdown();
+    this.passwordHasher.shutdown();
+    this.userRepository.shutdown();
+    this.userStore.close();
+    if (this.batchScheduler != null) {
+      this.batchScheduler.shutdown();
+    }
 
     { //Call event
       for (ServerEventListener serverEventListener : this.eventListener.toArray(new ServerEventListener[0])) {
@@ -206,9 +379,117 @@ public class SocketServer {
     return this.packetRegister;
   }
 
+  int nextConnectionId() {
+    return this.connectionIds.incrementAndGet();
+  }
+
+  public RoomManager getRoomManager() {
+    return this.roomManager;
+  }
+
+  /**
+   * @return the chat history, or null if it could not be opened
+   */
+  public ChatLog getChatLog() {
+    return this.chatLog;
+  }
+
+  /**
+   * @return the chat history search index, or null if the chat history could not be opened
+   */
+  public SearchIndex getSearchIndex() {
+    return this.searchIndex;
+  }
+
+  /**
+   * @return the offline direct message store, or null if it could not be opened
+   */
+  public OfflineMessages getOfflineMessages() {
+    return this.offlineMessages;
+  }
+
+  /**
+   * @return the offline pwned password corpus, or null if none has been imported
+   */
+  public PwnedPasswords getPwnedPasswords() {
+    return pwnedPasswords;
+  }
+
+  /**
+   * @return the session token issuer, or null if its key could not be loaded
+   */
+  public SessionTokens getSessionTokens() {
+    return sessionTokens;
+  }
+
+  /**
+   * @return the sessions clients can resume after a reconnect, or null if resuming is turned off
+   */
+  public ResumableSessions getResumableSessions() {
+    return resumableSessions;
+  }
+
+  public void setPwnedPasswords(PwnedPasswords pwnedPasswords) {
+    this.pwnedPasswords = pwnedPasswords;
+  }
+
+  public File getPwnedPasswordsFile() throws URISyntaxException {
+    return new File(Utils.getFolder("data"), pwnedPasswordsFile);
+  }
+
+  public PresenceBroadcaster getPresence() {
+    return this.presence;
+  }
+
+  public OnlineUsers getOnlineUsers() {
+    return this.onlineUsers;
+  }
+
+  public LoginThrottle getLoginThrottle() {
+    return this.loginThrottle;
+  }
+
+  public FloodControl getFloodControl() {
+    return this.floodControl;
+  }
+
+  public BroadcastFanout getFanout() {
+    return this.fanout;
+  }
+
+  public int getBulkQueueLimit() {
+    return this.bulkQueueLimit;
+  }
+
+  public ExecutorService getOutboundWriters() {
+    return this.outboundWriters;
+  }
+
+  public boolean isBatchingEnabled() {
+    return this.batchMaxDelay > 0 && this.batchMaxMessages > 1;
+  }
+
+  OutboundBatcher createBatcher(final ClientConnection clientConnection) {
+    // leave room for the encryption envelope in the frame size limit
+    return new OutboundBatcher(clientConnection, this.batchScheduler, this.batchMaxDelay, this.batchMaxMessages, this.maxPacketSize / 2);
+  }
+
+  public byte[] serializePacket(final IPacket packet) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    dos.writeUTF(this.packetRegister.getPacketLabel(packet.getClass()));
+    packet.writePacketData(dos);
+    return baos.toByteArray();
+  }
+
   private void onClientDisconnect(final ClientConnection clientConnection) {
     clientConnection.terminateConnection();
     this.clients.remove(clientConnection);
+    ResumableSession session = clientConnection.getSession();
+    // a resumable login stays online, in its room, until the client is back or the grace period is over
+    if (session == null || !session.detach(clientConnection)) {
+      removeLogin(clientConnection);
+    }
 
     { //Call event
       for (ServerEventListener serverEventListener : this.eventListener.toArray(new ServerEventListener[0])) {
@@ -221,6 +502,26 @@ public class SocketServer {
     }
   }
 
+  private void removeLogin(final ClientConnection clientConnection) {
+    this.roomManager.leave(clientConnection);
+    boolean online = clientConnection.isLoggedIn() && this.onlineUsers.getByUniqueId(clientConnection.getUniqueId()) == clientConnection;
+    // offline before the leave is recorded, so no presence snapshot can list a user whose leave is already sent
+    this.onlineUsers.remove(clientConnection);
+    if (online) {
+      this.presence.leave(clientConnection.getClient());
+    }
+  }
+
+  /**
+   * Ends a session whose client could not resume it and takes its user offline, before the client logs in afresh.
+   *
+   * @param session the session to end
+   */
+  public void closeSession(final ResumableSession session) {
+    this.resumableSessions.close(session);
+    removeLogin(session.getConnection());
+  }
+
   private void onRawPacketReceive(final ClientConnection clientConnection, byte[] packet) {
     if (clientConnection.getEncryptionKey() == null && clientConnection.isUsingEncryption()) {
       try {
@@ -235,7 +536,7 @@ public class SocketServer {
           byte[] keyBytes = new byte[dis.readInt()];
           dis.read(keyBytes);
           KeyPair keyPair = RSACrypter.generateKeyPair(rsaKeyLength);
-          clientConnection.sendRawPacket(keyPair.getPublic().getEncoded());
+          clientConnection.sendRawPacket(OutboundQueue.Lane.CONTROL, keyPair.getPublic().getEncoded());
           clientConnection.setDecryptionKey(keyPair.getPrivate());
           clientConnection.setEncryptionKey(RSACrypter.initPublicKey(keyBytes));
         }
@@ -272,7 +573,12 @@ public class SocketServer {
       packetObject.readPacketData(dis);
 
       if (packetObject instanceof PingPacket) {
-        clientConnection.updatePing(System.currentTimeMillis() - ((PingPacket) packetObject).getSystemTime());
+        PingPacket pingPacket = (PingPacket) packetObject;
+        clientConnection.updatePing(System.currentTimeMillis() - pingPacket.getSystemTime());
+        ResumableSession session = clientConnection.getSession();
+        if (session != null) {
+          session.acknowledge(clientConnection, pingPacket.getAcknowledged());
+        }
         return;
       }
 
@@ -304,23 +610,11 @@ public class SocketServer {
   }
 
   public void broadcastRawPacket(final byte[] packet) {
-    for (ClientConnection clientConnection : this.clients.keySet()) {
-      try {
-        clientConnection.sendRawPacket(packet);
-      } catch (Exception e) {
-        new Exception("Could not broadcast raw packet to client " + clientConnection.getAddress().getHostAddress(), e).printStackTrace();
-      }
-    }
+    this.fanout.broadcastRawPacket(this.clients.keySet(), packet);
   }
 
   public void broadcastPacket(final IPacket packet) {
-    for (ClientConnection clientConnection : this.clients.keySet()) {
-      try {
-        clientConnection.sendPacket(packet);
-      } catch (Exception e) {
-        new Exception("Could not broadcast packet to client " + clientConnection.getAddress().getHostAddress(), e).printStackTrace();
-      }
-    }
+    this.fanout.broadcastPacket(this.clients.keySet(), packet);
   }
 
   // Optic_Fusion1 - start
@@ -330,10 +624,20 @@ public class SocketServer {
 
   public void registerCommands() {
     registerCommand(new LoginCommand(this));
+    registerCommand(new ResumeCommand(this));
     registerCommand(new RegisterCommand(this));
     registerCommand(new GenAccCommand(this));
     registerCommand(new ResetPassword(this));
     registerCommand(new UUIDLookup(this));
+    registerCommand(new JoinCommand(this));
+    registerCommand(new LeaveCommand(this));
+    registerCommand(new RoomsCommand(this));
+    registerCommand(new StatsCommand(this));
+    registerCommand(new MsgCommand(this));
+    registerCommand(new OnlineCommand(this));
+    registerCommand(new SearchCommand(this));
+    registerCommand(new ImportAccountsCommand(this));
+    registerCommand(new ImportPwnedCommand(this));
   }
 
   public void registerCommand(Command command) {
@@ -344,39 +648,114 @@ public class SocketServer {
     return COMMAND_HANDLER;
   }
 
-  public Database getDatabase() {
-    return DATABASE;
+  public UserStore getUserStore() {
+    return userStore;
   }
 
   public ScheduledExecutorService getExecutorService() {
     return EXECUTOR_SERVICE;
   }
 
-  public boolean createAccount(CommandSender sender, String userName, String password) {
-    if (DATABASE.containsUser(userName)) {
-      sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "The username '" + userName + "' is already taken").serialize(), MessagePacket.MessageChatType.SYSTEM));
-      LOGGER.info(userName + " is already set");
+  /**
+   * @return the threads that set up a connection once it is authenticated
+   */
+  public ExecutorService getLoginExecutor() {
+    return loginExecutor;
+  }
+
+  public UserRepository getUserRepository() {
+    return userRepository;
+  }
+
+  public PasswordHasher getPasswordHasher() {
+    return passwordHasher;
+  }
+
+  /**
+   * Registers a new account. The lookup, the password check and the insert run on the database threads and the hash on
+   * the {@link PasswordHasher}.
+   *
+   * @return whether the account was created
+   */
+  public CompletableFuture<Boolean> createAccount(CommandSender sender, String userName, String password) {
+    return userRepository.findCredentials(userName).thenApplyAsync(existing -> {
+      if (existing.isPresent()) {
+        sendAccountMessage(sender, "The username '" + userName + "' is already taken");
+        LOGGER.info(userName + " is already set");
+        return false;
+      }
+      return isPasswordAccepted(sender, password);
+    }, pwnedCheckExecutor).thenCompose(accepted -> {
+      if (!accepted) {
+        return CompletableFuture.completedFuture(false);
+      }
+      return passwordHasher.hash(password).thenCompose(hash -> userRepository.insertUser(userName, UUID.randomUUID(), hash)).thenApply(inserted -> {
+        if (!inserted) {
+          sendAccountMessage(sender, "The username '" + userName + "' is already taken");
+          return false;
+        }
+        sendAccountMessage(sender, "Registered the username " + userName);
+
+        // only log to the console if the console isnt the sender
+        if (sender instanceof ClientConnection) {
+          LOGGER.debug("Registered username " + userName);
+        }
+        return true;
+      });
+    }).exceptionally(throwable -> {
+      if (PasswordHasher.isBusy(throwable)) {
+        sendAccountMessage(sender, "The server is busy, please retry in a moment");
+      } else {
+        new Exception("Could not register " + userName, throwable).printStackTrace();
+      }
       return false;
+    });
+  }
+
+  /**
+   * Blocks on the online API when there is no offline corpus, so it only runs on the pwned check threads.
+   */
+  private boolean isPasswordAccepted(CommandSender sender, String password) {
+    if (allowInsecurePasswords) {
+      return true;
     }
-    if (!allowInsecurePasswords) {
+    PwnedPasswords corpus = pwnedPasswords;
+    boolean pwned;
+    if (corpus != null) {
+      pwned = corpus.isPwned(password);
+    } else {
       HaveIBeenPwndApi hibp = HaveIBeenPwndBuilder.create("HaveIBeenPwnd").build();
       try {
-        if (hibp.isPlainPasswordPwned(password)) {
-          sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "The password is insecure use something else").serialize(), MessagePacket.MessageChatType.SYSTEM));
-          return false;
-        }
+        pwned = hibp.isPlainPasswordPwned(password);
       } catch (HaveIBeenPwndException ex) {
         return false;
       }
     }
-    DATABASE.insertUser(userName, UUID.randomUUID(), BCrypt.hashpw(password, BCrypt.gensalt()));
-    sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "Registered the username " + userName).serialize(), MessagePacket.MessageChatType.SYSTEM));
+    if (pwned) {
+      sendAccountMessage(sender, "The password is insecure use something else");
+    }
+    return !pwned;
+  }
 
-    // only log to the console if the console isnt the sender
-    if (sender instanceof ClientConnection) {
-      LOGGER.debug("Registered username " + userName);
+
+  /**
+   * @return the configured bcrypt cost, or the one that meets the target latency on this machine if none is set
+   */
+  private int passwordHashCost() {
+    if (passwordHashCost > 0) {
+      return passwordHashCost;
     }
-    return true;
+    // never below the cost hashes were made with before calibration existed
+    int cost = BCrypt.calibrate(passwordHashTargetMillis, 10, 16);
+    LOGGER.info(String.format("Hashing passwords with bcrypt cost %d, the highest that takes at most %d ms here", cost, passwordHashTargetMillis));
+    return cost;
+  }
+
+  private void sendAccountMessage(CommandSender sender, String message) {
+    if (sender instanceof ClientConnection clientConnection && clientConnection.isTerminated()) {
+      return;
+    }
+    sender.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, message).serialize(), MessagePacket.MessageChatType.SYSTEM));
   }
 
   private void loadPropertiesFile() {
@@ -389,6 +768,32 @@ public class SocketServer {
       serverIP = SERVER_PROPERTIES.getProperty("server-ip");
       port = Integer.parseInt(SERVER_PROPERTIES.getProperty("server-port", "25565"));
       allowInsecurePasswords = Boolean.parseBoolean(SERVER_PROPERTIES.getProperty("allow-insecure-properties", "false"));
+      pwnedPasswordsFile = SERVER_PROPERTIES.getProperty("pwned-passwords-file", pwnedPasswordsFile);
+      loginThreads = Integer.parseInt(SERVER_PROPERTIES.getProperty("login-threads", String.valueOf(loginThreads)));
+      pwnedCheckThreads = Integer.parseInt(SERVER_PROPERTIES.getProperty("pwned-check-threads", String.valueOf(pwnedCheckThreads)));
+      sessionTokenTtlHours = Long.parseLong(SERVER_PROPERTIES.getProperty("session-token-ttl-hours", String.valueOf(sessionTokenTtlHours)));
+      resumeGraceSeconds = Long.parseLong(SERVER_PROPERTIES.getProperty("resume-grace-seconds", String.valueOf(resumeGraceSeconds)));
+      resumeBufferSize = Long.parseLong(SERVER_PROPERTIES.getProperty("resume-buffer-size", String.valueOf(resumeBufferSize)));
+      resumeBufferTotal = Long.parseLong(SERVER_PROPERTIES.getProperty("resume-buffer-total", String.valueOf(resumeBufferTotal)));
+      fanoutThreads = Integer.parseInt(SERVER_PROPERTIES.getProperty("fanout-threads", String.valueOf(fanoutThreads)));
+      batchMaxDelay = Long.parseLong(SERVER_PROPERTIES.getProperty("batch-max-delay-ms", "0"));
+      batchMaxMessages = Integer.parseInt(SERVER_PROPERTIES.getProperty("batch-max-messages", "32"));
+      bulkQueueLimit = Integer.parseInt(SERVER_PROPERTIES.getProperty("bulk-queue-limit", "10000"));
+      outboundWriterThreads = Integer.parseInt(SERVER_PROPERTIES.getProperty("outbound-writer-threads", String.valueOf(outboundWriterThreads)));
+      outboundWriteTimeout = Long.parseLong(SERVER_PROPERTIES.getProperty("outbound-write-timeout-seconds", String.valueOf(outboundWriteTimeout)));
+      presenceInterval = Long.parseLong(SERVER_PROPERTIES.getProperty("presence-interval-ms", "250"));
+      historySegmentSize = Integer.parseInt(SERVER_PROPERTIES.getProperty("history-segment-size", String.valueOf(historySegmentSize)));
+      searchIndexMaxBytes = Long.parseLong(SERVER_PROPERTIES.getProperty("search-index-max-bytes", String.valueOf(searchIndexMaxBytes)));
+      roomReplaySize = Integer.parseInt(SERVER_PROPERTIES.getProperty("room-replay-size", String.valueOf(roomReplaySize)));
+      offlineMaxBytesPerUser = Long.parseLong(SERVER_PROPERTIES.getProperty("offline-max-bytes-per-user", String.valueOf(offlineMaxBytesPerUser)));
+      databaseReaders = Integer.parseInt(SERVER_PROPERTIES.getProperty("database-readers", String.valueOf(databaseReaders)));
+      userCacheSize = Long.parseLong(SERVER_PROPERTIES.getProperty("user-cache-size", String.valueOf(userCacheSize)));
+      userCacheTtl = Long.parseLong(SERVER_PROPERTIES.getProperty("user-cache-ttl-seconds", String.valueOf(userCacheTtl)));
+      userStoreType = SERVER_PROPERTIES.getProperty("user-store", userStoreType).trim();
+      passwordHashThreads = Integer.parseInt(SERVER_PROPERTIES.getProperty("password-hash-threads", String.valueOf(passwordHashThreads)));
+      passwordHashQueue = Integer.parseInt(SERVER_PROPERTIES.getProperty("password-hash-queue", String.valueOf(passwordHashQueue)));
+      passwordHashCost = Integer.parseInt(SERVER_PROPERTIES.getProperty("password-hash-cost", String.valueOf(passwordHashCost)));
+      passwordHashTargetMillis = Long.parseLong(SERVER_PROPERTIES.getProperty("password-hash-target-ms", String.valueOf(passwordHashTargetMillis)));
     } catch (IOException | URISyntaxException ex) {
       LOGGER.fatal(ex.getLocalizedMessage());
     }
@@ -439,10 +844,6 @@ public class SocketServer {
     return SERVER_PROPERTIES;
   }
 
-  public static Database getDATABASE() {
-    return DATABASE;
-  }
-
   public String getServerIP() {
     return serverIP;
   }
@@ -42,8 +42,8 @@ public record ConnectionListener(SocketServer server) implements ServerEventList
   @Override
   public void onSocketDisconnect(ClientConnection clientConnection) {
     if (clientConnection.isLoggedIn()) {
+      // the other users are told by the next presence delta
       LOGGER.info(String.format("%s has disconnected from %s", clientConnection.getUsername(), clientConnection.getAddress()));
-      server.broadcastPacket(new MessagePacket(OpCode.DISCONNECT, clientConnection.getClient().serialize(), MessagePacket.MessageChatType.SYSTEM));
     } else {
       LOGGER.info(String.format("A User has disconnected from %s", clientConnection.getAddress()));
     }
@@ -16,21 +16,35 @@
  */
 package optic_fusion1.server.network.listeners;
 
+import com.google.gson.JsonObject;
 import net.lenni0451.asmevents.EventManager;
 import optic_fusion1.common.data.Message;
 import optic_fusion1.common.data.User;
 import optic_fusion1.packets.IPacket;
 import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.HistoryRequestPacket;
+import optic_fusion1.packets.impl.MessageBatchPacket;
 import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.history.ChatLog;
+import optic_fusion1.server.history.ChatRecord;
 import optic_fusion1.server.network.ClientConnection;
 import optic_fusion1.server.network.SocketServer;
 import optic_fusion1.server.network.events.CommandEvent;
+import optic_fusion1.server.rooms.Room;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
 public class PacketListener implements ServerEventListener {
 
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAX_HISTORY = 200;
+    // keeps a single history frame well below the max packet size
+    private static final int HISTORY_PER_PACKET = 50;
 
     private final SocketServer server;
 
@@ -40,6 +54,10 @@ public class PacketListener implements ServerEventListener {
 
     @Override
     public void onPacketReceive(ClientConnection clientConnection, IPacket packet) {
+        if (packet instanceof HistoryRequestPacket historyRequest) {
+            onHistoryRequest(clientConnection, historyRequest);
+            return;
+        }
         if (packet instanceof MessagePacket messagePacket) {
             OpCode opCode = messagePacket.getOpCode();
             LOGGER.debug("Type: " + opCode + "; Message: " + messagePacket.getMessage());
@@ -53,9 +71,22 @@ public class PacketListener implements ServerEventListener {
                     } else if(!clientConnection.isLoggedIn()){
                       clientConnection.sendPacket(new MessagePacket(OpCode.LOGIN_REQUIRED, "", MessagePacket.MessageChatType.SYSTEM));
                     } else {
-                        server.broadcastPacket(new MessagePacket(OpCode.MESSAGE, new Message(message.getUser(),
-                                content).serialize(), MessagePacket.MessageChatType.USER));
-                        LOGGER.info(clientConnection.getUsername() + ": " + content);
+                        Room room = clientConnection.getRoom();
+                        if (room == null || !server.getFloodControl().allow(clientConnection, content.length())) {
+                            return;
+                        }
+                        String relayed = new Message(message.getUser(), content).serialize();
+                        MessagePacket relayPacket = new MessagePacket(OpCode.MESSAGE, relayed, MessagePacket.MessageChatType.USER);
+                        try {
+                            room.broadcastChat(relayPacket, server.serializePacket(relayPacket));
+                        } catch (IOException e) {
+                            new IOException("Could not serialize chat message", e).printStackTrace();
+                            return;
+                        }
+                        if (server.getChatLog() != null) {
+                            server.getChatLog().append(room.getName(), relayed);
+                        }
+                        LOGGER.info("[" + room.getName() + "] " + clientConnection.getUsername() + ": " + content);
                     }
                 }
                 case DISCONNECT -> {
@@ -68,4 +99,41 @@ public class PacketListener implements ServerEventListener {
         }
     }
 
-}
+    private void onHistoryRequest(ClientConnection clientConnection, HistoryRequestPacket request) {
+        if (!clientConnection.isLoggedIn()) {
+            clientConnection.sendPacket(new MessagePacket(OpCode.LOGIN_REQUIRED, "", MessagePacket.MessageChatType.SYSTEM));
+            return;
+        }
+        ChatLog chatLog = server.getChatLog();
+        Room room = clientConnection.getRoom();
+        if (chatLog == null || room == null || !server.getFloodControl().allow(clientConnection, 0)) {
+            return;
+        }
+        // only the room the user is in, the log holds every room
+        String roomName = room.getName();
+        Predicate<ChatRecord> inRoom = record -> record.room().equals(roomName);
+        int limit = Math.max(1, Math.min(MAX_HISTORY, request.getLimit()));
+        List<ChatRecord> records = switch (request.getMode()) {
+            case AFTER -> chatLog.readAfter(request.getValue(), limit, inRoom);
+            case BEFORE -> chatLog.readBefore(request.getValue(), limit, inRoom);
+            case SINCE -> chatLog.readSince(request.getValue(), limit, inRoom);
+        };
+        if (records.isEmpty()) {
+            clientConnection.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "No messages found").serialize(), MessagePacket.MessageChatType.SYSTEM));
+            return;
+        }
+        for (int i = 0; i < records.size(); i += HISTORY_PER_PACKET) {
+            List<MessagePacket> messages = new ArrayList<>();
+            for (ChatRecord record : records.subList(i, Math.min(records.size(), i + HISTORY_PER_PACKET))) {
+                JsonObject object = new JsonObject();
+                object.addProperty("sequence", record.sequence());
+                object.addProperty("timestamp", record.timestamp());
+                object.addProperty("room", record.room());
+                object.addProperty("message", record.message());
+                messages.add(new MessagePacket(OpCode.HISTORY, object.toString(), MessagePacket.MessageChatType.USER));
+            }
+            clientConnection.sendPacket(new MessageBatchPacket(messages));
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.offline;
+
+import optic_fusion1.common.data.Message;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessageBatchPacket;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.OutboundQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct messages for users that are not online, kept in one append-only file per recipient.
+ * <p>
+ * {@link #offer(UUID, String)} only queues the message. A single thread owns all the files: it appends everything
+ * queued in one write and one sync per recipient every {@link #FLUSH_INTERVAL} ms, and on login streams the file back
+ * in chunks of {@link #CHUNK} messages, waiting whenever the recipient's outbound queue is backed up. How far delivery
+ * got is kept in a small {@code .ack} file, so a disconnect halfway through resumes at the next login.
+ */
+public class OfflineMessages {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final String EXTENSION = ".dm";
+  private static final String ACK_EXTENSION = ".ack";
+  private static final int CHUNK = 100;
+  private static final int MAX_QUEUED_FRAMES = 200;
+  private static final long FLUSH_INTERVAL = 100;
+  private static final long BACKOFF = 50;
+
+  private final File directory;
+  private final long maxBytesPerUser;
+  private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+  private final Map<UUID, AtomicLong> sizes = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "Offline-Messages");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * @param directory where the queues are stored
+   * @param maxBytesPerUser size at which a recipient's queue stops accepting messages
+   */
+  public OfflineMessages(File directory, long maxBytesPerUser) throws IOException {
+    this.directory = directory;
+    this.maxBytesPerUser = maxBytesPerUser;
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Could not create offline message directory " + directory);
+    }
+    executor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queues a direct message for a user that is not online.
+   *
+   * @param recipient the user the message is for
+   * @param message the serialized {@link Message}
+   * @return false if the recipient's queue is full
+   */
+  public boolean offer(UUID recipient, String message) {
+    byte[] record;
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(message.length() + 2);
+      new DataOutputStream(baos).writeUTF(message);
+      record = baos.toByteArray();
+    } catch (IOException e) {
+      return false;
+    }
+    AtomicLong size = sizes.computeIfAbsent(recipient, uniqueId -> new AtomicLong(file(uniqueId).length()));
+    if (size.addAndGet(record.length) > maxBytesPerUser) {
+      size.addAndGet(-record.length);
+      return false;
+    }
+    pending.add(new Pending(recipient, record));
+    return true;
+  }
+
+  /**
+   * Starts streaming the queued messages of a connection that just logged in.
+   *
+   * @param clientConnection the connection that logged in
+   */
+  public void deliver(ClientConnection clientConnection) {
+    UUID recipient = clientConnection.getUniqueId();
+    executor.execute(() -> {
+      flush();
+      if (file(recipient).exists()) {
+        clientConnection.sendPacket(new MessagePacket(OpCode.MESSAGE, new Message(null, "Messages you received while offline:").serialize(), MessagePacket.MessageChatType.SYSTEM));
+        deliverChunk(clientConnection, recipient);
+      }
+    });
+  }
+
+  private void deliverChunk(ClientConnection clientConnection, UUID recipient) {
+    if (!clientConnection.isLoggedIn() || !recipient.equals(clientConnection.getUniqueId())) {
+      return;
+    }
+    if (clientConnection.getOutboundQueue().getDepth(OutboundQueue.Lane.BULK) > MAX_QUEUED_FRAMES) {
+      // let the client catch up before queueing more
+      executor.schedule(() -> deliverChunk(clientConnection, recipient), BACKOFF, TimeUnit.MILLISECONDS);
+      return;
+    }
+    flush();
+    File file = file(recipient);
+    List<MessagePacket> messages = new ArrayList<>(CHUNK);
+    long offset = readAck(recipient);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      raf.seek(offset);
+      while (messages.size() < CHUNK && raf.getFilePointer() < raf.length()) {
+        messages.add(new MessagePacket(OpCode.MESSAGE, raf.readUTF(), MessagePacket.MessageChatType.DIRECT));
+        offset = raf.getFilePointer();
+      }
+    } catch (EOFException e) {
+      // a record torn by a crash, everything before it is delivered
+    } catch (IOException e) {
+      new IOException("Could not read offline messages of " + recipient, e).printStackTrace();
+      return;
+    }
+    if (messages.isEmpty()) {
+      sizes.remove(recipient);
+      // the position goes first, a stale one would skip messages queued into a new file
+      if (!ackFile(recipient).delete() || !file.delete()) {
+        LOGGER.warn("Could not delete the delivered offline messages of " + recipient);
+      }
+      return;
+    }
+    clientConnection.sendPacket(new MessageBatchPacket(messages));
+    writeAck(recipient, offset);
+    executor.execute(() -> deliverChunk(clientConnection, recipient));
+  }
+
+  private void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    Map<UUID, ByteArrayOutputStream> batches = new HashMap<>();
+    Pending next;
+    while ((next = pending.poll()) != null) {
+      batches.computeIfAbsent(next.recipient(), recipient -> new ByteArrayOutputStream()).writeBytes(next.record());
+    }
+    for (Map.Entry<UUID, ByteArrayOutputStream> batch : batches.entrySet()) {
+      try (FileOutputStream out = new FileOutputStream(file(batch.getKey()), true)) {
+        batch.getValue().writeTo(out);
+        out.getFD().sync();
+      } catch (IOException e) {
+        new IOException("Could not store offline messages for " + batch.getKey(), e).printStackTrace();
+      }
+    }
+  }
+
+  private long readAck(UUID recipient) {
+    File ack = ackFile(recipient);
+    if (!ack.exists()) {
+      return 0;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(ack, "r")) {
+      return raf.readLong();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private void writeAck(UUID recipient, long offset) {
+    try (RandomAccessFile raf = new RandomAccessFile(ackFile(recipient), "rw")) {
+      raf.writeLong(offset);
+    } catch (IOException e) {
+      new IOException("Could not store the offline message position of " + recipient, e).printStackTrace();
+    }
+  }
+
+  private File file(UUID recipient) {
+    return new File(directory, recipient + EXTENSION);
+  }
+
+  private File ackFile(UUID recipient) {
+    return new File(directory, recipient + ACK_EXTENSION);
+  }
+
+  public void close() {
+    executor.execute(this::flush);
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private record Pending(UUID recipient, byte[] record) {
+  }
+}
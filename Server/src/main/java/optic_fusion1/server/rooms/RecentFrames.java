@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.rooms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size ring of the latest serialized chat frames of a room. Every connection thread relaying into the room
+ * claims a sequence with a single atomic increment and publishes the frame with a compare-and-set, so neither writers
+ * nor readers ever lock or wait for each other.
+ * <p>
+ * A writer that stalls between the two steps may find its slot already reused by a writer one lap ahead. The
+ * compare-and-set only ever replaces an older frame, so the stalled writer gives up instead of overwriting the newer
+ * one; its frame has left the window anyway.
+ */
+final class RecentFrames {
+
+  private final AtomicReferenceArray<Frame> slots;
+  private final AtomicLong head = new AtomicLong();
+
+  RecentFrames(int capacity) {
+    this.slots = new AtomicReferenceArray<>(capacity);
+  }
+
+  void add(byte[] data) {
+    long sequence = head.getAndIncrement();
+    int index = (int) (sequence % slots.length());
+    Frame frame = new Frame(sequence, data);
+    Frame current = slots.get(index);
+    while (current == null || current.sequence() < sequence) {
+      if (slots.compareAndSet(index, current, frame)) {
+        return;
+      }
+      current = slots.get(index);
+    }
+  }
+
+  /**
+   * @return the frames still in the ring, oldest first. A frame whose slot was claimed but not yet published, or was
+   * already overwritten, is left out.
+   */
+  List<byte[]> snapshot() {
+    long end = head.get();
+    long start = Math.max(0, end - slots.length());
+    List<byte[]> frames = new ArrayList<>((int) (end - start));
+    for (long sequence = start; sequence < end; sequence++) {
+      Frame frame = slots.get((int) (sequence % slots.length()));
+      if (frame != null && frame.sequence() == sequence) {
+        frames.add(frame.data());
+      }
+    }
+    return frames;
+  }
+
+  private record Frame(long sequence, byte[] data) {
+  }
+}
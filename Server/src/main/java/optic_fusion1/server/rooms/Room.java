@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.rooms;
+
+import optic_fusion1.packets.IPacket;
+import optic_fusion1.server.network.BroadcastFanout;
+import optic_fusion1.server.network.ClientConnection;
+import optic_fusion1.server.network.OutboundQueue;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Room {
+
+  private final String name;
+  private final BroadcastFanout fanout;
+  // Subscribers keyed by connection id so that fanout only touches the members of this room
+  private final Map<Integer, ClientConnection> subscribers = new ConcurrentHashMap<>();
+  private final RecentFrames recent;
+
+  /**
+   * @param name name of the room
+   * @param fanout fanout used for broadcasts
+   * @param replaySize number of recent chat messages replayed to joining users, 0 to disable
+   */
+  public Room(String name, BroadcastFanout fanout, int replaySize) {
+    this.name = name;
+    this.fanout = fanout;
+    this.recent = replaySize > 0 ? new RecentFrames(replaySize) : null;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  boolean subscribe(ClientConnection clientConnection) {
+    return subscribers.putIfAbsent(clientConnection.getConnectionId(), clientConnection) == null;
+  }
+
+  boolean unsubscribe(ClientConnection clientConnection) {
+    return subscribers.remove(clientConnection.getConnectionId(), clientConnection);
+  }
+
+  public boolean isSubscribed(ClientConnection clientConnection) {
+    return subscribers.containsKey(clientConnection.getConnectionId());
+  }
+
+  public Collection<ClientConnection> getSubscribers() {
+    return subscribers.values();
+  }
+
+  public int size() {
+    return subscribers.size();
+  }
+
+  public boolean isEmpty() {
+    return subscribers.isEmpty();
+  }
+
+  public void broadcastPacket(final IPacket packet) {
+    fanout.broadcastPacket(subscribers.values(), packet);
+  }
+
+  /**
+   * Broadcasts a chat message and keeps its frame for replay to users joining later.
+   *
+   * @param packet the chat message
+   * @param data the packet, already serialized
+   */
+  public void broadcastChat(final IPacket packet, final byte[] data) {
+    if (recent != null) {
+      recent.add(data);
+    }
+    fanout.broadcastPacket(subscribers.values(), packet, data);
+  }
+
+  /**
+   * Sends the recent chat messages of this room to a connection. Runs on the caller's thread and only reads the ring,
+   * so it never holds up a broadcast. A message relayed while the connection subscribes may arrive twice.
+   *
+   * @param clientConnection the connection that joined
+   */
+  void replay(ClientConnection clientConnection) {
+    if (recent == null) {
+      return;
+    }
+    try {
+      for (byte[] data : recent.snapshot()) {
+        clientConnection.sendRawPacket(OutboundQueue.Lane.BULK, data);
+      }
+    } catch (IOException | IllegalStateException e) {
+      // the connection went away while joining
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.rooms;
+
+import com.google.gson.JsonObject;
+import optic_fusion1.common.data.User;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import optic_fusion1.server.network.BroadcastFanout;
+import optic_fusion1.server.network.ClientConnection;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class RoomManager {
+
+  public static final String DEFAULT_ROOM = "lobby";
+
+  private final BroadcastFanout fanout;
+  private final int replaySize;
+  private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+  /**
+   * @param fanout fanout used for broadcasts
+   * @param replaySize number of recent chat messages replayed to joining users, 0 to disable
+   */
+  public RoomManager(BroadcastFanout fanout, int replaySize) {
+    this.fanout = fanout;
+    this.replaySize = replaySize;
+    rooms.put(DEFAULT_ROOM, new Room(DEFAULT_ROOM, fanout, replaySize));
+  }
+
+  public Room getRoom(String name) {
+    return rooms.get(normalize(name));
+  }
+
+  public Collection<Room> getRooms() {
+    return rooms.values();
+  }
+
+  /**
+   * Moves a connection into a room, creating the room if it does not exist yet, and replays the recent chat of the
+   * room to it. Only the members of the old and the new room are told about the change.
+   *
+   * @param clientConnection the connection joining
+   * @param name name of the room
+   * @return the room that was joined
+   */
+  public Room join(ClientConnection clientConnection, String name) {
+    String key = normalize(name);
+    Room current = clientConnection.getRoom();
+    if (current != null && current.getName().equals(key)) {
+      return current;
+    }
+    leave(clientConnection);
+    // compute keeps the subscribe atomic with the removal of empty rooms in leave
+    Room room = rooms.compute(key, (roomName, existing) -> {
+      Room target = existing == null ? new Room(roomName, fanout, replaySize) : existing;
+      target.subscribe(clientConnection);
+      return target;
+    });
+    clientConnection.setRoom(room);
+    room.replay(clientConnection);
+    room.broadcastPacket(createDelta(OpCode.JOIN_ROOM, room, clientConnection.getClient()));
+    return room;
+  }
+
+  /**
+   * Removes a connection from its current room, if any. Empty rooms other than the default room are dropped.
+   *
+   * @param clientConnection the connection leaving
+   */
+  public void leave(ClientConnection clientConnection) {
+    Room room = clientConnection.getRoom();
+    if (room == null) {
+      return;
+    }
+    clientConnection.setRoom(null);
+    rooms.computeIfPresent(room.getName(), (roomName, existing) -> {
+      existing.unsubscribe(clientConnection);
+      return existing.isEmpty() && !roomName.equals(DEFAULT_ROOM) ? null : existing;
+    });
+    room.broadcastPacket(createDelta(OpCode.LEAVE_ROOM, room, clientConnection.getClient()));
+  }
+
+  /**
+   * Puts a connection in place of another one of the same user in its room, without telling the room. Used when a
+   * client resumes its session on a new socket.
+   *
+   * @param previous the connection being replaced
+   * @param clientConnection the connection taking its place
+   */
+  public void takeOver(ClientConnection previous, ClientConnection clientConnection) {
+    Room room = previous.getRoom();
+    if (room == null || previous == clientConnection) {
+      return;
+    }
+    previous.setRoom(null);
+    rooms.computeIfPresent(room.getName(), (roomName, existing) -> {
+      existing.unsubscribe(previous);
+      existing.subscribe(clientConnection);
+      return existing;
+    });
+    clientConnection.setRoom(room);
+  }
+
+  private MessagePacket createDelta(OpCode opCode, Room room, User user) {
+    JsonObject object = new JsonObject();
+    object.addProperty("room", room.getName());
+    object.addProperty("user", user == null ? null : user.serialize());
+    return new MessagePacket(opCode, object.toString(), MessagePacket.MessageChatType.SYSTEM);
+  }
+
+  private static String normalize(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket using the generic cell rate algorithm. The whole bucket state is a single
+ * "theoretical arrival time", so a check is one CAS and never allocates.
+ */
+public final class RateLimiter {
+
+  private final long emissionInterval;
+  private final long burst;
+  private final long tolerance;
+  private final AtomicLong theoreticalArrival;
+
+  /**
+   * @param ratePerSecond tokens added per second
+   * @param burst tokens that may be spent at once
+   */
+  public RateLimiter(double ratePerSecond, long burst) {
+    if (ratePerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("rate and burst must be positive");
+    }
+    this.emissionInterval = Math.max(1, (long) (1_000_000_000D / ratePerSecond));
+    this.burst = burst;
+    this.tolerance = emissionInterval * burst;
+    // start full even for a caller whose now was read before the bucket was created
+    this.theoreticalArrival = new AtomicLong(System.nanoTime() - tolerance);
+  }
+
+  /**
+   * @param now current {@link System#nanoTime()}
+   * @param cost tokens to take, anything above the burst size costs a full bucket
+   * @return whether the tokens were available and have been taken
+   */
+  public boolean tryAcquire(long now, long cost) {
+    long increment = Math.min(cost, burst) * emissionInterval;
+    while (true) {
+      long current = theoreticalArrival.get();
+      long next = (current - now < 0 ? now : current) + increment;
+      if (next - now > tolerance) {
+        return false;
+      }
+      if (theoreticalArrival.compareAndSet(current, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Gives back tokens taken by {@link #tryAcquire(long, long)} that were not spent after all, e.g. because the caller
+   * could not get tokens from every bucket it needs.
+   *
+   * @param cost tokens that were taken
+   */
+  public void refund(long cost) {
+    theoreticalArrival.addAndGet(-Math.min(cost, burst) * emissionInterval);
+  }
+
+  /**
+   * @param now current {@link System#nanoTime()}
+   * @param cost tokens that would be taken
+   * @return nanoseconds until {@code cost} tokens are available, 0 if they are available now
+   */
+  public long nanosUntilAvailable(long now, long cost) {
+    long current = theoreticalArrival.get();
+    long next = (current - now < 0 ? now : current) + Math.min(cost, burst) * emissionInterval;
+    return Math.max(0, next - now - tolerance);
+  }
+
+  /**
+   * @param now current {@link System#nanoTime()}
+   * @return nanoseconds until the bucket is full again
+   */
+  public long nanosUntilIdle(long now) {
+    return Math.max(0, theoreticalArrival.get() - now);
+  }
+
+  /**
+   * @param now current {@link System#nanoTime()}
+   * @return whether the bucket is full again, i.e. its state carries no information and can be discarded
+   */
+  public boolean isIdle(long now) {
+    return theoreticalArrival.get() - now <= 0;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server;
+
+import optic_fusion1.server.database.UserRecord;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * A million lookups must not grow the native memory of the process, which is where SQLite keeps its statements. Run
+ * with {@code mvn test -P soak}, which fixes the heap size and touches it up front so only native memory can move.
+ */
+@Tag("soak")
+class DatabaseSoakTest {
+
+    private static final int USERS = 10_000;
+    private static final int WARMUP = 100_000;
+    private static final int LOOKUPS = 1_000_000;
+    // a leaked statement or result set costs at least a few hundred bytes per lookup, hundreds of MiB over the run
+    private static final long MAX_GROWTH_KB = 32 * 1024;
+    private static final String HASH = "$2a$10$abcdefghijklmnopqrstuu5Xq9zUcvo6yqUq0mS0b0K8O0bq7l4xK";
+
+    @TempDir
+    File directory;
+
+    @Test
+    void lookupsKeepNativeMemoryFlat() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        assumeTrue(Files.isReadable(status), "needs /proc to read the resident set size");
+        Database database = new Database(new File(directory, "database.db"), 2, 0, 60);
+        try {
+            List<UserRecord> users = new ArrayList<>();
+            for (int i = 0; i < USERS; i++) {
+                users.add(new UserRecord(UUID.randomUUID(), "user" + i, HASH, false));
+            }
+            assertEquals(USERS, database.insertUsers(users));
+
+            lookUp(database, WARMUP);
+            int statements = database.getCachedStatementCount();
+            long before = residentKb(status);
+            for (int round = 1; round <= 10; round++) {
+                lookUp(database, LOOKUPS / 10);
+                assertEquals(statements, database.getCachedStatementCount());
+                System.out.printf("%,d lookups: resident %,d KiB%n", round * LOOKUPS / 10, residentKb(status));
+            }
+            long growth = residentKb(status) - before;
+            assertTrue(growth < MAX_GROWTH_KB, "resident set grew by " + growth + " KiB over " + LOOKUPS + " lookups");
+        } finally {
+            database.close();
+        }
+    }
+
+    private static void lookUp(Database database, int count) {
+        for (int i = 0; i < count; i++) {
+            // every tenth lookup misses, which runs the statement without a row to read
+            if (i % 10 == 0) {
+                assertNull(database.findUser("nobody" + i));
+            } else {
+                assertNotNull(database.findUser("USER" + i % USERS));
+            }
+        }
+    }
+
+    private static long residentKb(Path status) throws IOException {
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        }
+        throw new IOException("No VmRSS in " + status);
+    }
+}
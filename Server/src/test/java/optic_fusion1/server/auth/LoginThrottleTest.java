@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.auth;
+
+import optic_fusion1.server.network.ClientConnection;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+class LoginThrottleTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  void parallelAttemptsOnOneUsernameCannotPassTheLimitTogether() throws Exception {
+    LoginThrottle throttle = new LoginThrottle();
+    long now = System.nanoTime();
+    List<ClientConnection> connections = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      connections.add(connection(i, "10.0.0." + i));
+    }
+    AtomicInteger allowed = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (ClientConnection connection : connections) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (throttle.tryAcquire(connection, "Alice", now).isAllowed()) {
+          allowed.incrementAndGet();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(5, allowed.get());
+  }
+
+  @Test
+  void refusedAttemptTakesNothingFromTheOtherTables() throws Exception {
+    LoginThrottle throttle = new LoginThrottle();
+    long now = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      assertTrue(throttle.tryAcquire(connection(i, "10.0.0.1"), "alice", now).isAllowed());
+    }
+    // the username is locked out, the address has 5 of its 10 attempts left and must keep them
+    for (int i = 0; i < 20; i++) {
+      LoginThrottle.Attempt attempt = throttle.tryAcquire(connection(100, "10.0.0.1"), "alice", now);
+      assertFalse(attempt.isAllowed());
+      assertEquals(30, attempt.getSecondsToWait());
+    }
+    for (int i = 0; i < 3; i++) {
+      assertTrue(throttle.tryAcquire(connection(100, "10.0.0.1"), "bob", now).isAllowed());
+    }
+  }
+
+  @Test
+  void refundedAttemptsDoNotCount() throws Exception {
+    LoginThrottle throttle = new LoginThrottle();
+    ClientConnection connection = connection(1, "10.0.0.1");
+    long now = System.nanoTime();
+    for (int i = 0; i < 50; i++) {
+      LoginThrottle.Attempt attempt = throttle.tryAcquire(connection, "alice", now);
+      assertTrue(attempt.isAllowed());
+      attempt.refund();
+      attempt.refund();
+    }
+    for (int i = 0; i < 3; i++) {
+      assertTrue(throttle.tryAcquire(connection, "alice", now).isAllowed());
+    }
+    assertFalse(throttle.tryAcquire(connection, "alice", now).isAllowed());
+  }
+
+  @Test
+  void fullTablesDoNotLockOutNewUsers() throws Exception {
+    LoginThrottle throttle = new LoginThrottle(100);
+    long now = System.nanoTime();
+    for (int i = 0; i < 100; i++) {
+      assertTrue(throttle.tryAcquire(connection(i, "10.0." + i / 256 + "." + i % 256), "junk" + i, now + i).isAllowed());
+    }
+    // before the next sweep the new keys are not tracked, after it the oldest live buckets make room for them
+    assertTrue(throttle.tryAcquire(connection(1000, "192.168.0.1"), "alice", now + 100).isAllowed());
+    assertTrue(throttle.tryAcquire(connection(1001, "192.168.0.2"), "bob", now + 2 * SECOND).isAllowed());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(throttle.tryAcquire(connection(1002 + i, "192.168.0.3"), "bob", now + 2 * SECOND).isAllowed());
+    }
+    assertFalse(throttle.tryAcquire(connection(1010, "192.168.0.4"), "bob", now + 2 * SECOND).isAllowed());
+  }
+
+  private static ClientConnection connection(int id, String address) throws UnknownHostException {
+    ClientConnection connection = mock(ClientConnection.class, withSettings().stubOnly());
+    when(connection.getConnectionId()).thenReturn(id);
+    when(connection.getAddress()).thenReturn(InetAddress.getByName(address));
+    return connection;
+  }
+}
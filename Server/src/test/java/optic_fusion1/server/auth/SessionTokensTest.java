@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.auth;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionTokensTest {
+
+  private static final long TTL = 60_000;
+
+  @TempDir
+  File directory;
+
+  @Test
+  void verifiesTheTokensItIssued() throws IOException {
+    SessionTokens tokens = open(TTL);
+    UUID uniqueId = UUID.randomUUID();
+    long before = System.currentTimeMillis();
+
+    SessionTokens.Session session = tokens.verify(tokens.issue(uniqueId, "Alice"));
+
+    assertNotNull(session);
+    assertEquals(uniqueId, session.uniqueId());
+    assertEquals("Alice", session.username());
+    assertTrue(session.expires() >= before + TTL && session.expires() <= System.currentTimeMillis() + TTL);
+  }
+
+  @Test
+  void refusesTamperedTokens() throws IOException {
+    SessionTokens tokens = open(TTL);
+    String token = tokens.issue(UUID.randomUUID(), "Alice");
+    int dot = token.indexOf('.');
+    byte[] payload = Base64.getUrlDecoder().decode(token.substring(0, dot));
+    payload[payload.length - 1] ^= 1;
+    String tampered = Base64.getUrlEncoder().withoutPadding().encodeToString(payload) + token.substring(dot);
+
+    assertNull(tokens.verify(tampered));
+    assertNull(tokens.verify(token.substring(0, dot) + ".AAAA"));
+    assertNull(tokens.verify(token.substring(0, dot)));
+    assertNull(tokens.verify("not a token"));
+    assertNull(tokens.verify("!!!.???"));
+    assertNull(tokens.verify(""));
+  }
+
+  @Test
+  void refusesTokensFromAnotherKey() throws IOException {
+    String token = open(TTL).issue(UUID.randomUUID(), "Alice");
+    SessionTokens other = new SessionTokens(new File(directory, "other.key"), new File(directory, "other.dat"), TTL);
+
+    assertNull(other.verify(token));
+  }
+
+  @Test
+  void refusesExpiredTokens() throws IOException, InterruptedException {
+    SessionTokens tokens = open(20);
+    String token = tokens.issue(UUID.randomUUID(), "Alice");
+    Thread.sleep(50);
+
+    assertNull(tokens.verify(token));
+  }
+
+  @Test
+  void refusesRevokedTokensOnly() throws IOException, InterruptedException {
+    SessionTokens tokens = open(TTL);
+    UUID alice = UUID.randomUUID();
+    UUID bob = UUID.randomUUID();
+    String aliceToken = tokens.issue(alice, "Alice");
+    String bobToken = tokens.issue(bob, "Bob");
+
+    tokens.revoke(alice);
+    assertNull(tokens.verify(aliceToken));
+    assertNotNull(tokens.verify(bobToken));
+
+    Thread.sleep(5);
+    assertNotNull(tokens.verify(tokens.issue(alice, "Alice")), "tokens issued after a revocation are accepted");
+  }
+
+  @Test
+  void keepsTheKeyAndRevocationsAcrossRestarts() throws IOException {
+    SessionTokens tokens = open(TTL);
+    UUID alice = UUID.randomUUID();
+    UUID bob = UUID.randomUUID();
+    String aliceToken = tokens.issue(alice, "Alice");
+    String bobToken = tokens.issue(bob, "Bob");
+    tokens.revoke(alice);
+
+    SessionTokens restarted = open(TTL);
+    assertNull(restarted.verify(aliceToken));
+    assertNotNull(restarted.verify(bobToken));
+  }
+
+  @Test
+  void replacesADamagedKey() throws IOException {
+    File keyFile = new File(directory, "session.key");
+    Files.write(keyFile.toPath(), new byte[]{1, 2, 3});
+    SessionTokens tokens = open(TTL);
+
+    assertEquals(32, Files.size(keyFile.toPath()));
+    assertNotNull(tokens.verify(tokens.issue(UUID.randomUUID(), "Alice")));
+  }
+
+  private SessionTokens open(long ttlMillis) throws IOException {
+    return new SessionTokens(new File(directory, "session.key"), new File(directory, "revoked.dat"), ttlMillis);
+  }
+}
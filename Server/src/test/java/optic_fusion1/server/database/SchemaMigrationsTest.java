@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SchemaMigrationsTest {
+
+    private static final String LEGACY_TABLE = "CREATE TABLE `users` (`username` TEXT NOT NULL PRIMARY KEY, `uuid` BINARY(16) NOT NULL, `pass` CHAR(60) NOT NULL, `isGlobalOp` BOOLEAN NOT NULL DEFAULT false, `nickname` TEXT)";
+    private static final String HASH = "$2a$10$abcdefghijklmnopqrstuu5Xq9zUcvo6yqUq0mS0b0K8O0bq7l4xK";
+
+    @TempDir
+    File directory;
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void open() throws SQLException {
+        pool = new ConnectionPool(new File(directory, "users.db"), 2);
+    }
+
+    @AfterEach
+    void close() {
+        pool.close();
+    }
+
+    @Test
+    void createsAnEmptySchema() throws SQLException {
+        new SchemaMigrations(pool).migrate();
+
+        assertEquals(List.of(1, 2, 3), versions());
+        assertEquals(0L, count("SELECT COUNT(*) FROM `users`"));
+    }
+
+    @Test
+    void upgradesALegacyTable() throws SQLException {
+        UUID alice = UUID.randomUUID();
+        UUID bob = UUID.randomUUID();
+        pool.write(connection -> {
+            connection.execute(LEGACY_TABLE);
+            insert(connection, "Alice", alice.toString());
+            insert(connection, "Bob", bob.toString());
+            return null;
+        });
+
+        new SchemaMigrations(pool).migrate();
+
+        assertEquals(List.of(1, 2, 3), versions());
+        assertEquals(List.of("Alice", "Bob"), usernames());
+        pool.read(connection -> {
+            try (PreparedStatement statement = connection.getConnection().prepareStatement("SELECT `uuid` FROM `users` WHERE `username` = ?")) {
+                statement.setString(1, "alice");
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    assertArrayEquals(UuidCodec.toBytes(alice), resultSet.getBytes(1));
+                    assertEquals(alice, UuidCodec.fromBytes(resultSet.getBytes(1)));
+                }
+            }
+            return null;
+        });
+    }
+
+    @Test
+    void renamesUsernamesThatOnlyDifferInCase() throws SQLException {
+        pool.write(connection -> {
+            connection.execute(LEGACY_TABLE);
+            insert(connection, "bob", UUID.randomUUID().toString());
+            insert(connection, "BOB", UUID.randomUUID().toString());
+            // the name the duplicate would get is already taken
+            insert(connection, "bob_2", UUID.randomUUID().toString());
+            insert(connection, "Bob", UUID.randomUUID().toString());
+            return null;
+        });
+
+        new SchemaMigrations(pool).migrate();
+
+        assertEquals(List.of("BOB_2_2", "Bob_4", "bob", "bob_2"), usernames());
+        pool.write(connection -> {
+            assertThrows(SQLException.class, () -> insert(connection, "BoB", UUID.randomUUID().toString()));
+            return null;
+        });
+    }
+
+    @Test
+    void rollsBackAFailedMigration() throws SQLException {
+        pool.write(connection -> {
+            connection.execute(LEGACY_TABLE);
+            insert(connection, "alice", UUID.randomUUID().toString());
+            insert(connection, "broken", "nope");
+            return null;
+        });
+
+        SchemaMigrations migrations = new SchemaMigrations(pool);
+        assertThrows(SQLException.class, migrations::migrate);
+
+        assertEquals(List.of(1, 2), versions());
+        assertEquals(List.of("alice", "broken"), usernames());
+        assertEquals(0L, count("SELECT COUNT(*) FROM `sqlite_master` WHERE `name` = 'users_new'"));
+    }
+
+    @Test
+    void runsEveryMigrationOnce() throws SQLException {
+        new SchemaMigrations(pool).migrate();
+        pool.write(connection -> {
+            insert(connection, "alice", null);
+            return null;
+        });
+
+        new SchemaMigrations(pool).migrate();
+
+        assertEquals(List.of(1, 2, 3), versions());
+        assertEquals(List.of("alice"), usernames());
+    }
+
+    private static void insert(PooledConnection connection, String username, String uuid) throws SQLException {
+        try (PreparedStatement statement = connection.getConnection().prepareStatement("INSERT INTO `users` (`username`, `uuid`, `pass`) VALUES (?, ?, ?)")) {
+            statement.setString(1, username);
+            if (uuid == null) {
+                statement.setBytes(2, UuidCodec.toBytes(UUID.randomUUID()));
+            } else {
+                statement.setString(2, uuid);
+            }
+            statement.setString(3, HASH);
+            statement.executeUpdate();
+        }
+    }
+
+    private List<Integer> versions() throws SQLException {
+        return pool.read(connection -> {
+            List<Integer> versions = new ArrayList<>();
+            try (PreparedStatement statement = connection.getConnection().prepareStatement("SELECT `version` FROM `schema_version` ORDER BY `version`");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    versions.add(resultSet.getInt(1));
+                }
+            }
+            return versions;
+        });
+    }
+
+    private List<String> usernames() throws SQLException {
+        return pool.read(connection -> {
+            List<String> usernames = new ArrayList<>();
+            try (PreparedStatement statement = connection.getConnection().prepareStatement("SELECT `username` FROM `users` ORDER BY `username` COLLATE BINARY");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    usernames.add(resultSet.getString(1));
+                }
+            }
+            return usernames;
+        });
+    }
+
+    private long count(String sql) throws SQLException {
+        return pool.read(connection -> {
+            try (PreparedStatement statement = connection.getConnection().prepareStatement(sql);
+                 ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        });
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.database;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserCacheTest {
+
+    private static final UUID ALICE = UUID.randomUUID();
+
+    @Test
+    void loadsEachUsernameOnceInAnyCase() throws SQLException {
+        UserCache cache = new UserCache(100, 60);
+        AtomicInteger loads = new AtomicInteger();
+        UserRecord alice = new UserRecord(ALICE, "Alice", "hash", false);
+
+        assertSame(alice, cache.get("Alice", username -> {
+            loads.incrementAndGet();
+            return alice;
+        }).orElseThrow());
+        assertSame(alice, cache.get("ALICE", username -> {
+            loads.incrementAndGet();
+            return null;
+        }).orElseThrow());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void remembersUsersThatDoNotExist() throws SQLException {
+        UserCache cache = new UserCache(100, 60);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertFalse(cache.get("nobody", username -> {
+            loads.incrementAndGet();
+            return null;
+        }).isPresent());
+        assertFalse(cache.get("Nobody", username -> {
+            loads.incrementAndGet();
+            return null;
+        }).isPresent());
+        assertEquals(1, loads.get());
+
+        cache.invalidate("NOBODY");
+        assertTrue(cache.get("nobody", username -> new UserRecord(ALICE, "nobody", "hash", false)).isPresent());
+    }
+
+    @Test
+    void invalidatesByUniqueId() throws SQLException {
+        UserCache cache = new UserCache(100, 60);
+        cache.get("alice", username -> new UserRecord(ALICE, "alice", "old", false));
+        cache.get("bob", username -> new UserRecord(UUID.randomUUID(), "bob", "hash", false));
+
+        cache.invalidate(ALICE);
+
+        assertEquals(1, cache.size());
+        assertEquals("new", cache.get("alice", username -> new UserRecord(ALICE, "alice", "new", false)).orElseThrow().passwordHash());
+    }
+
+    @Test
+    void doesNotKeepALoadThatRacedWithAnInvalidation() throws Exception {
+        UserCache cache = new UserCache(100, 60);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch changed = new CountDownLatch(1);
+        AtomicReference<String> stored = new AtomicReference<>("old");
+
+        CompletableFuture<Optional<UserRecord>> stale = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.get("alice", username -> {
+                    String hash = stored.get();
+                    loading.countDown();
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new UserRecord(ALICE, "alice", hash, false);
+                });
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+        stored.set("new");
+        cache.invalidate(ALICE);
+        changed.countDown();
+
+        assertEquals("old", stale.get(10, TimeUnit.SECONDS).orElseThrow().passwordHash());
+        assertEquals("new", cache.get("alice", username -> new UserRecord(ALICE, "alice", stored.get(), false)).orElseThrow().passwordHash());
+    }
+
+    @Test
+    void passesDatabaseErrorsOn() {
+        UserCache cache = new UserCache(100, 60);
+        SQLException error = new SQLException("database is locked");
+
+        assertSame(error, assertThrows(SQLException.class, () -> cache.get("alice", username -> {
+            throw error;
+        })));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.history;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatLogTest {
+
+  private static final int SEGMENT_SIZE = 64 * 1024;
+
+  @TempDir
+  File directory;
+  private ChatLog chatLog;
+
+  @AfterEach
+  void close() {
+    if (chatLog != null) {
+      chatLog.close();
+    }
+  }
+
+  @Test
+  void readsMessagesBackInOrder() throws IOException {
+    chatLog = new ChatLog(directory, SEGMENT_SIZE);
+    append(chatLog, "lobby", 1, 10);
+
+    List<ChatRecord> records = chatLog.readAfter(0, 100, record -> true);
+    assertEquals(10, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      assertEquals(i + 1, records.get(i).sequence());
+      assertEquals("lobby", records.get(i).room());
+      assertEquals("message " + (i + 1), records.get(i).message());
+    }
+  }
+
+  @Test
+  void readsAfterAndBeforeASequence() throws IOException {
+    chatLog = new ChatLog(directory, SEGMENT_SIZE);
+    append(chatLog, "lobby", 1, 20);
+
+    assertEquals(List.of(6L, 7L, 8L), sequences(chatLog.readAfter(5, 3, record -> true)));
+    assertEquals(List.of(5L, 6L, 7L), sequences(chatLog.readBefore(8, 3, record -> true)));
+    assertEquals(List.of(1L, 2L), sequences(chatLog.readBefore(3, 10, record -> true)));
+    assertTrue(chatLog.readAfter(20, 10, record -> true).isEmpty());
+  }
+
+  @Test
+  void filtersWhileReading() throws IOException {
+    chatLog = new ChatLog(directory, SEGMENT_SIZE);
+    for (int i = 1; i <= 10; i++) {
+      chatLog.append(i % 2 == 0 ? "even" : "odd", "message " + i);
+    }
+    awaitSequence(chatLog, 10);
+
+    assertEquals(List.of(2L, 4L, 6L, 8L, 10L), sequences(chatLog.readAfter(0, 100, record -> record.room().equals("even"))));
+    assertEquals(List.of(7L, 9L), sequences(chatLog.readBefore(11, 2, record -> record.room().equals("odd"))));
+  }
+
+  @Test
+  void readsSinceATime() throws IOException, InterruptedException {
+    chatLog = new ChatLog(directory, SEGMENT_SIZE);
+    append(chatLog, "lobby", 1, 5);
+    Thread.sleep(20);
+    long since = System.currentTimeMillis();
+    Thread.sleep(20);
+    append(chatLog, "lobby", 6, 10);
+
+    assertEquals(List.of(6L, 7L, 8L, 9L, 10L), sequences(chatLog.readSince(since, 100, record -> true)));
+    assertTrue(chatLog.readSince(System.currentTimeMillis() + 60_000, 100, record -> true).isEmpty());
+  }
+
+  @Test
+  void rollsSegmentsAndSeeksAcrossThem() throws IOException {
+    chatLog = new ChatLog(directory, 8 * 1024);
+    String padding = "x".repeat(200);
+    for (int i = 1; i <= 500; i++) {
+      chatLog.append("lobby", i + " " + padding);
+    }
+    awaitSequence(chatLog, 500);
+
+    File[] segments = directory.listFiles((dir, name) -> name.endsWith(LogSegment.EXTENSION));
+    assertTrue(segments != null && segments.length > 1, "the log rolled over to more segments");
+    assertEquals(List.of(250L, 251L), sequences(chatLog.readAfter(249, 2, record -> true)));
+    assertEquals(List.of(498L, 499L), sequences(chatLog.readBefore(500, 2, record -> true)));
+    assertEquals(500, chatLog.readAfter(0, 1000, record -> true).size());
+  }
+
+  @Test
+  void keepsTheHistoryAcrossARestart() throws IOException {
+    chatLog = new ChatLog(directory, 8 * 1024);
+    String padding = "x".repeat(200);
+    for (int i = 1; i <= 100; i++) {
+      chatLog.append("lobby", i + " " + padding);
+    }
+    awaitSequence(chatLog, 100);
+    chatLog.close();
+
+    chatLog = new ChatLog(directory, 8 * 1024);
+    assertEquals(100, chatLog.getLastSequence());
+    chatLog.append("lobby", "after restart");
+    awaitSequence(chatLog, 101);
+    List<ChatRecord> last = chatLog.readBefore(Long.MAX_VALUE, 2, record -> true);
+    assertEquals(List.of(100L, 101L), sequences(last));
+    assertEquals("after restart", last.get(1).message());
+  }
+
+  static void append(ChatLog chatLog, String room, int from, int to) {
+    for (int i = from; i <= to; i++) {
+      chatLog.append(room, "message " + i);
+    }
+    awaitSequence(chatLog, to);
+  }
+
+  static void awaitSequence(ChatLog chatLog, long sequence) {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (chatLog.getLastSequence() < sequence) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("the writer did not reach message #" + sequence + ", it is at #" + chatLog.getLastSequence());
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  private static List<Long> sequences(List<ChatRecord> records) {
+    List<Long> sequences = new ArrayList<>();
+    for (ChatRecord record : records) {
+      sequences.add(record.sequence());
+    }
+    return sequences;
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.history;
+
+import optic_fusion1.common.data.Message;
+import optic_fusion1.common.data.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+
+  private static final User ALICE = new User(UUID.randomUUID(), "Alice");
+  private static final User BOB = new User(UUID.randomUUID(), "Bob");
+
+  @TempDir
+  File directory;
+  private ChatLog chatLog;
+  private SearchIndex searchIndex;
+
+  @AfterEach
+  void close() {
+    if (searchIndex != null) {
+      searchIndex.close();
+    }
+    if (chatLog != null) {
+      chatLog.close();
+    }
+  }
+
+  @Test
+  void findsMessagesContainingEveryTerm() throws IOException {
+    open(64 * 1024 * 1024);
+    say(ALICE, "Hello there, general Kenobi");
+    say(BOB, "hello again");
+    say(ALICE, "nothing to see");
+    say(BOB, "General assembly at noon");
+    awaitIndexed(4);
+
+    assertEquals(List.of(1L, 2L), sequences(searchIndex.search(List.of("hello"), null, 10)));
+    assertEquals(List.of(1L, 4L), sequences(searchIndex.search(List.of("GENERAL"), null, 10)));
+    assertEquals(List.of(1L), sequences(searchIndex.search(List.of("hello", "general"), null, 10)));
+    assertEquals(List.of(1L), sequences(searchIndex.search(List.of("hello general"), null, 10)));
+    assertTrue(searchIndex.search(List.of("missing"), null, 10).isEmpty());
+  }
+
+  @Test
+  void filtersBySender() throws IOException {
+    open(64 * 1024 * 1024);
+    say(ALICE, "hello from alice");
+    say(BOB, "hello from bob");
+    say(ALICE, "hello once more");
+    awaitIndexed(3);
+
+    assertEquals(List.of(2L), sequences(searchIndex.search(List.of("hello"), "bob", 10)));
+    assertEquals(List.of(1L, 3L), sequences(searchIndex.search(List.of("hello"), "ALICE", 10)));
+    assertTrue(searchIndex.search(List.of("hello"), "carol", 10).isEmpty());
+  }
+
+  @Test
+  void returnsTheLatestMatchesWithinTheLimit() throws IOException {
+    open(64 * 1024 * 1024);
+    for (int i = 0; i < 50; i++) {
+      say(ALICE, "ping " + i);
+    }
+    awaitIndexed(50);
+
+    assertEquals(List.of(48L, 49L, 50L), sequences(searchIndex.search(List.of("ping"), null, 3)));
+  }
+
+  @Test
+  void dropsTheOldestMessagesOverItsBudget() throws IOException {
+    open(16 * 1024);
+    for (int i = 0; i < 2000; i++) {
+      say(ALICE, "token" + i + " common");
+    }
+    awaitIndexed(2000);
+
+    assertTrue(searchIndex.getMinSequence() > 1, "old messages were evicted");
+    assertTrue(searchIndex.search(List.of("token0"), null, 10).isEmpty());
+    assertEquals(List.of(2000L), sequences(searchIndex.search(List.of("token1999"), null, 10)));
+    for (ChatRecord record : searchIndex.search(List.of("common"), null, 10_000)) {
+      assertTrue(record.sequence() >= searchIndex.getMinSequence());
+    }
+  }
+
+  @Test
+  void survivesARestart() throws IOException {
+    open(64 * 1024 * 1024);
+    say(ALICE, "remember this");
+    awaitIndexed(1);
+    searchIndex.close();
+    chatLog.close();
+
+    open(64 * 1024 * 1024);
+    assertEquals(1, searchIndex.getIndexedSequence());
+    say(BOB, "remember that too");
+    awaitIndexed(2);
+    assertEquals(List.of(1L, 2L), sequences(searchIndex.search(List.of("remember"), null, 10)));
+    assertEquals(List.of(2L), sequences(searchIndex.search(List.of("remember"), "bob", 10)));
+  }
+
+  private void open(long maxBytes) throws IOException {
+    chatLog = new ChatLog(directory, 1024 * 1024);
+    searchIndex = new SearchIndex(chatLog, new File(directory, "search.idx"), maxBytes);
+  }
+
+  private void say(User user, String content) {
+    chatLog.append("lobby", new Message(user, content).serialize());
+  }
+
+  private void awaitIndexed(long sequence) {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (searchIndex.getIndexedSequence() < sequence) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("the index did not reach message #" + sequence + ", it is at #" + searchIndex.getIndexedSequence());
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  private static List<Long> sequences(List<ChatRecord> records) {
+    List<Long> sequences = new ArrayList<>();
+    for (ChatRecord record : records) {
+      sequences.add(record.sequence());
+    }
+    return sequences;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+class FloodControlTest {
+
+  @Test
+  void messageRefusedByTheAccountTakesNothingFromTheConnection() {
+    FloodControl floodControl = floodControl();
+    UUID account = UUID.randomUUID();
+    ClientConnection first = connection(floodControl, account);
+    ClientConnection second = connection(floodControl, account);
+    assertTrue(floodControl.allow(first, 100));
+    for (int i = 0; i < 20; i++) {
+      assertFalse(floodControl.allow(second, 10));
+    }
+    when(second.getUniqueId()).thenReturn(UUID.randomUUID());
+    for (int i = 0; i < 3; i++) {
+      assertTrue(floodControl.allow(second, 10), "message " + i + " of the burst");
+    }
+    assertFalse(floodControl.allow(second, 10));
+  }
+
+  @Test
+  void messageRefusedForItsBytesTakesNoMessageToken() {
+    FloodControl floodControl = floodControl();
+    ClientConnection connection = connection(floodControl, UUID.randomUUID());
+    assertTrue(floodControl.allow(connection, 95));
+    for (int i = 0; i < 20; i++) {
+      assertFalse(floodControl.allow(connection, 10));
+    }
+    assertTrue(floodControl.allow(connection, 5));
+    assertTrue(floodControl.allow(connection, 0));
+    assertFalse(floodControl.allow(connection, 0));
+  }
+
+  private static FloodControl floodControl() {
+    Properties properties = new Properties();
+    properties.setProperty("flood-messages-per-second", "0.001");
+    properties.setProperty("flood-message-burst", "3");
+    properties.setProperty("flood-bytes-per-second", "0.001");
+    properties.setProperty("flood-bytes-burst", "100");
+    properties.setProperty("flood-action", "DROP");
+    return new FloodControl(properties);
+  }
+
+  private static ClientConnection connection(FloodControl floodControl, UUID account) {
+    ClientConnection connection = mock(ClientConnection.class, withSettings().stubOnly());
+    FloodControl.Limits limits = floodControl.createLimits();
+    when(connection.getFloodLimits()).thenReturn(limits);
+    when(connection.getUniqueId()).thenReturn(account);
+    return connection;
+  }
+}
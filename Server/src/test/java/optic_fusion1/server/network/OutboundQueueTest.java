@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class OutboundQueueTest {
+
+  private final ExecutorService writers = Executors.newSingleThreadExecutor();
+
+  @AfterEach
+  void tearDown() {
+    writers.shutdownNow();
+  }
+
+  @Test
+  void connectionsShareOneWriterThread() throws Exception {
+    int connections = 50;
+    int frames = 1000;
+    CountDownLatch done = new CountDownLatch(connections * frames);
+    List<List<Long>> written = new ArrayList<>();
+    List<OutboundQueue> queues = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      List<Long> sequences = Collections.synchronizedList(new ArrayList<>());
+      written.add(sequences);
+      ClientConnection connection = mock(ClientConnection.class);
+      doAnswer(invocation -> {
+        sequences.add(invocation.getArgument(0));
+        done.countDown();
+        return null;
+      }).when(connection).writeFrame(anyLong(), any());
+      queues.add(new OutboundQueue(connection, Integer.MAX_VALUE, writers));
+    }
+    for (int sequence = 1; sequence <= frames; sequence++) {
+      for (OutboundQueue queue : queues) {
+        queue.enqueue(OutboundQueue.Lane.BULK, sequence, new byte[1]);
+        queue.wake();
+      }
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    for (List<Long> sequences : written) {
+      assertEquals(frames, sequences.size());
+      for (int i = 0; i < frames; i++) {
+        assertEquals(i + 1, sequences.get(i));
+      }
+    }
+  }
+
+  @Test
+  void blockedWriteIsReportedAsStalled() throws Exception {
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ClientConnection connection = mock(ClientConnection.class);
+    doAnswer(invocation -> {
+      writing.countDown();
+      release.await();
+      return null;
+    }).when(connection).writeFrame(anyLong(), any());
+    OutboundQueue queue = new OutboundQueue(connection, Integer.MAX_VALUE, writers);
+    assertFalse(queue.isStalled(System.nanoTime(), 0));
+    queue.offer(OutboundQueue.Lane.CONTROL, new byte[1]);
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    assertFalse(queue.isStalled(System.nanoTime(), TimeUnit.SECONDS.toNanos(10)));
+    assertTrue(queue.isStalled(System.nanoTime() + TimeUnit.SECONDS.toNanos(11), TimeUnit.SECONDS.toNanos(10)));
+    release.countDown();
+    writers.shutdown();
+    assertTrue(writers.awaitTermination(10, TimeUnit.SECONDS));
+    assertFalse(queue.isStalled(System.nanoTime() + TimeUnit.SECONDS.toNanos(11), TimeUnit.SECONDS.toNanos(10)));
+  }
+}
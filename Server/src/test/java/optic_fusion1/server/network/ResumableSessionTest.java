@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.network;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import optic_fusion1.packets.OpCode;
+import optic_fusion1.packets.impl.MessagePacket;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+class ResumableSessionTest {
+
+  private static final UUID ALICE = UUID.randomUUID();
+  private static final int FRAME = 100;
+
+  private final ResumableSessions sessions = new ResumableSessions(1000, 1024 * 1024, 64 * 1024 * 1024);
+
+  @Test
+  void numbersFramesFromOne() {
+    ClientConnection connection = connection();
+    ResumableSession session = sessions.open(connection);
+    byte[] first = new byte[FRAME];
+    byte[] second = new byte[FRAME];
+
+    session.send(OutboundQueue.Lane.BULK, first);
+    session.send(OutboundQueue.Lane.CONTROL, second);
+
+    InOrder order = inOrder(connection);
+    order.verify(connection).queueFrame(eq(OutboundQueue.Lane.BULK), eq(1L), same(first));
+    order.verify(connection).queueFrame(eq(OutboundQueue.Lane.CONTROL), eq(2L), same(second));
+    assertEquals(2L * (FRAME + ResumableSession.FRAME_OVERHEAD), session.getBufferedBytes());
+  }
+
+  @Test
+  void numbersAGapNoticeInsteadOfShedFrames() {
+    ClientConnection connection = connection();
+    ResumableSession session = sessions.open(connection);
+    when(connection.queueFrame(eq(OutboundQueue.Lane.BULK), anyLong(), any())).thenReturn(false);
+    long before = System.currentTimeMillis();
+
+    session.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+    session.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+    session.send(OutboundQueue.Lane.CONTROL, new byte[FRAME]);
+    session.send(OutboundQueue.Lane.CONTROL, new byte[FRAME]);
+
+    verify(connection, times(2)).queueFrame(eq(OutboundQueue.Lane.BULK), eq(1L), any());
+    ArgumentCaptor<byte[]> notice = ArgumentCaptor.forClass(byte[].class);
+    InOrder order = inOrder(connection);
+    order.verify(connection).queueFrame(eq(OutboundQueue.Lane.CONTROL), eq(1L), any());
+    order.verify(connection).queueFrame(eq(OutboundQueue.Lane.CONTROL), eq(2L), notice.capture());
+    order.verify(connection).queueFrame(eq(OutboundQueue.Lane.CONTROL), eq(3L), any());
+    JsonObject gap = gap(notice.getValue());
+    assertEquals(2, gap.get("dropped").getAsLong());
+    assertTrue(gap.get("since").getAsLong() >= before);
+    assertEquals(3L * (FRAME + ResumableSession.FRAME_OVERHEAD) + notice.getValue().length - FRAME, session.getBufferedBytes());
+  }
+
+  @Test
+  void sendsAPendingGapNoticeOnResume() {
+    ClientConnection first = connection();
+    ResumableSession session = sessions.open(first);
+    when(first.queueFrame(eq(OutboundQueue.Lane.BULK), anyLong(), any())).thenReturn(false);
+    session.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+    session.detach(first);
+
+    ClientConnection second = connection();
+    assertSame(first, session.resume(second, 0));
+
+    ArgumentCaptor<byte[]> notice = ArgumentCaptor.forClass(byte[].class);
+    verify(second).queueFrame(eq(OutboundQueue.Lane.CONTROL), eq(1L), notice.capture());
+    assertEquals(1, gap(notice.getValue()).get("dropped").getAsLong());
+  }
+
+  @Test
+  void replaysOnlyTheMissedFrames() {
+    ClientConnection first = connection();
+    ResumableSession session = sessions.open(first);
+    byte[][] data = new byte[5][];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = new byte[FRAME];
+      session.send(OutboundQueue.Lane.BULK, data[i]);
+    }
+    session.detach(first);
+    assertTrue(session.isDetached());
+
+    ClientConnection second = connection();
+    assertSame(first, session.resume(second, 2));
+
+    InOrder order = inOrder(second);
+    for (int i = 2; i < data.length; i++) {
+      order.verify(second).queueFrame(eq(OutboundQueue.Lane.CONTROL), eq(i + 1L), same(data[i]));
+    }
+    order.verify(second).attachSession(session, first);
+    verify(second, never()).queueFrame(any(), eq(1L), any());
+    verify(second, never()).queueFrame(any(), eq(2L), any());
+    assertSame(second, session.getConnection());
+    assertFalse(session.isDetached());
+
+    byte[] next = new byte[FRAME];
+    session.send(OutboundQueue.Lane.BULK, next);
+    verify(second).queueFrame(eq(OutboundQueue.Lane.BULK), eq(6L), same(next));
+    verify(first, never()).queueFrame(any(), eq(6L), any());
+  }
+
+  @Test
+  void refusesToResumeAcrossAGap() {
+    ResumableSessions small = new ResumableSessions(1000, 3L * (FRAME + ResumableSession.FRAME_OVERHEAD), 64 * 1024 * 1024);
+    ResumableSession session = small.open(connection());
+    for (int i = 0; i < 5; i++) {
+      session.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+    }
+    assertEquals(3L * (FRAME + ResumableSession.FRAME_OVERHEAD), session.getBufferedBytes());
+
+    ClientConnection second = connection();
+    assertNull(session.resume(second, 1), "frame #2 was dropped");
+    assertNull(session.resume(second, 6), "frame #6 was never sent");
+    verify(second, never()).queueFrame(any(), anyLong(), any());
+    verify(second, never()).attachSession(any(), any());
+
+    assertTrue(session.resume(second, 2) != null);
+  }
+
+  @Test
+  void dropsAcknowledgedFrames() {
+    ClientConnection connection = connection();
+    ResumableSession session = sessions.open(connection);
+    for (int i = 0; i < 5; i++) {
+      session.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+    }
+
+    session.acknowledge(connection(), 5);
+    assertEquals(5L * (FRAME + ResumableSession.FRAME_OVERHEAD), session.getBufferedBytes(), "acknowledged by another connection");
+    session.acknowledge(connection, 9);
+    assertEquals(5L * (FRAME + ResumableSession.FRAME_OVERHEAD), session.getBufferedBytes(), "acknowledged a frame not sent yet");
+
+    session.acknowledge(connection, 3);
+    assertEquals(2L * (FRAME + ResumableSession.FRAME_OVERHEAD), session.getBufferedBytes());
+    assertNull(session.resume(connection(), 2));
+
+    session.acknowledge(connection, 5);
+    assertEquals(0, session.getBufferedBytes());
+    assertTrue(session.resume(connection(), 5) != null, "nothing is missing");
+  }
+
+  @Test
+  void sharesTheBufferBetweenSessions() {
+    long total = 10L * (FRAME + ResumableSession.FRAME_OVERHEAD);
+    ResumableSessions shared = new ResumableSessions(1000, total, total);
+    ResumableSession first = shared.open(connection());
+    assertEquals(total, shared.getBufferLimit());
+    ResumableSession second = shared.open(connection());
+    assertEquals(total / 2, shared.getBufferLimit());
+
+    for (int i = 0; i < 20; i++) {
+      first.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+      second.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+    }
+    assertEquals(total / 2, first.getBufferedBytes());
+    assertTrue(shared.getBufferedBytes() <= total);
+
+    shared.close(second);
+    assertEquals(total, shared.getBufferLimit());
+    assertEquals(0, second.getBufferedBytes());
+  }
+
+  @Test
+  void expiresAfterTheGracePeriod() {
+    ClientConnection connection = connection();
+    ResumableSession session = sessions.open(connection);
+    session.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+    long now = System.currentTimeMillis();
+    assertFalse(session.expire(now + 10_000, 1000), "still attached");
+
+    assertTrue(session.detach(connection));
+    assertFalse(session.expire(System.currentTimeMillis(), 1000));
+    assertTrue(session.expire(System.currentTimeMillis() + 1000, 1000));
+    assertFalse(session.expire(System.currentTimeMillis() + 1000, 1000), "already closed");
+    assertFalse(session.detach(connection));
+    assertEquals(0, session.getBufferedBytes());
+    assertNull(session.resume(connection(), 1));
+
+    ClientConnection other = connection();
+    session.send(OutboundQueue.Lane.BULK, new byte[FRAME]);
+    verify(other, never()).queueFrame(any(), anyLong(), any());
+    verify(connection, never()).queueFrame(any(), eq(2L), any());
+  }
+
+  /**
+   * Takes a while as every frame passes through Mockito, run with {@code mvn test -P soak}.
+   */
+  @Test
+  @Tag("soak")
+  void keepsTenThousandSessionsWithinTheTotalBudget() {
+    long total = 64L * 1024 * 1024;
+    ResumableSessions shared = new ResumableSessions(1000, 256 * 1024, total);
+    List<ResumableSession> open = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      ClientConnection connection = awayConnection();
+      // Mockito keeps data about the first call of each stub, keep it out of the measurement
+      connection.queueFrame(OutboundQueue.Lane.BULK, 0, new byte[0]);
+      connection.isTerminated();
+      open.add(shared.open(connection));
+    }
+    long limit = shared.getBufferLimit();
+    assertEquals(total / 10_000, limit);
+    long heapBefore = usedHeap();
+
+    // every broadcast is serialized once and the same array is buffered for every recipient
+    int broadcasts = 12;
+    for (int i = 0; i < broadcasts; i++) {
+      byte[] data = new byte[1024];
+      for (ResumableSession session : open) {
+        session.send(OutboundQueue.Lane.BULK, data);
+      }
+    }
+
+    long heapAfter = usedHeap();
+    long accounted = shared.getBufferedBytes();
+    for (ResumableSession session : open) {
+      assertTrue(session.getBufferedBytes() <= limit);
+    }
+    assertTrue(accounted <= total);
+    assertTrue(accounted > total / 2, "the buffers filled up to their share");
+    // copies would take more than the accounted bytes, shared arrays leave little more than the frame records
+    assertTrue(heapAfter - heapBefore < accounted / 16,
+        String.format("the buffers use %,d bytes of heap for %,d accounted", heapAfter - heapBefore, accounted));
+    System.out.printf("10,000 sessions: %,d bytes accounted, %,d bytes of heap%n", accounted, heapAfter - heapBefore);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    // what Mockito holds through weak references takes a few collections, with its cleaner running in between, to go
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * A connection whose client is away, so the session only buffers. Stub only, as recording every invocation
+   * would show up in the heap being measured.
+   */
+  private static ClientConnection awayConnection() {
+    ClientConnection connection = mock(ClientConnection.class, withSettings().stubOnly());
+    when(connection.getUniqueId()).thenReturn(UUID.randomUUID());
+    when(connection.getUsername()).thenReturn("Alice");
+    when(connection.isTerminated()).thenReturn(true);
+    when(connection.queueFrame(any(), anyLong(), any())).thenReturn(true);
+    return connection;
+  }
+
+  private static ClientConnection connection() {
+    ClientConnection connection = mock(ClientConnection.class);
+    when(connection.getUniqueId()).thenReturn(ALICE);
+    when(connection.getUsername()).thenReturn("Alice");
+    when(connection.getOutboundQueue()).thenReturn(mock(OutboundQueue.class));
+    when(connection.queueFrame(any(), anyLong(), any())).thenReturn(true);
+    try {
+      // the packet register is not needed to tell a gap notice apart, its JSON is enough
+      when(connection.serializePacket(any())).thenAnswer(invocation -> {
+        MessagePacket packet = invocation.getArgument(0);
+        assertEquals(OpCode.GAP, packet.getOpCode());
+        return packet.getMessage().getBytes(StandardCharsets.UTF_8);
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return connection;
+  }
+
+  private static JsonObject gap(byte[] notice) {
+    return (JsonObject) new JsonParser().parse(new String(notice, StandardCharsets.UTF_8));
+  }
+}
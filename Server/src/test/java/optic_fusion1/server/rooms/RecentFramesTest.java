@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.rooms;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecentFramesTest {
+
+  @Test
+  void startsEmpty() {
+    assertTrue(new RecentFrames(4).snapshot().isEmpty());
+  }
+
+  @Test
+  void keepsFramesOldestFirstBeforeTheRingIsFull() {
+    RecentFrames frames = new RecentFrames(4);
+    frames.add(frame(1));
+    frames.add(frame(2));
+    assertEquals(List.of(1, 2), numbers(frames.snapshot()));
+  }
+
+  @Test
+  void keepsOnlyTheLatestFramesOnceItWraps() {
+    RecentFrames frames = new RecentFrames(3);
+    for (int i = 1; i <= 10; i++) {
+      frames.add(frame(i));
+    }
+    assertEquals(List.of(8, 9, 10), numbers(frames.snapshot()));
+  }
+
+  @Test
+  void concurrentWritersLeaveAFullWindowInOrder() throws InterruptedException {
+    int capacity = 16;
+    int writers = 8;
+    int perWriter = 50_000;
+    RecentFrames frames = new RecentFrames(capacity);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int w = 0; w < writers; w++) {
+      int writer = w;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < perWriter; i++) {
+          frames.add(frame(writer * perWriter + i));
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // a stalled writer must never replace a frame of a later lap, so every slot holds the latest lap
+    List<Integer> snapshot = numbers(frames.snapshot());
+    assertEquals(capacity, snapshot.size());
+    for (int w = 0; w < writers; w++) {
+      int writer = w;
+      List<Integer> own = snapshot.stream().filter(n -> n / perWriter == writer).toList();
+      for (int i = 1; i < own.size(); i++) {
+        assertTrue(own.get(i - 1) < own.get(i), "frames of one writer keep their order");
+      }
+    }
+  }
+
+  private static byte[] frame(int number) {
+    return ByteBuffer.allocate(4).putInt(number).array();
+  }
+
+  private static List<Integer> numbers(List<byte[]> frames) {
+    List<Integer> numbers = new ArrayList<>();
+    for (byte[] frame : frames) {
+      numbers.add(ByteBuffer.wrap(frame).getInt());
+    }
+    return numbers;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2021 Optic_Fusion1
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package optic_fusion1.server.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  void allowsTheBurstThenOneTokenPerInterval() {
+    RateLimiter limiter = new RateLimiter(1, 5);
+    long now = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      assertTrue(limiter.tryAcquire(now, 1), "token " + i + " of the burst");
+    }
+    assertFalse(limiter.tryAcquire(now, 1));
+    assertFalse(limiter.tryAcquire(now + SECOND / 2, 1));
+    assertTrue(limiter.tryAcquire(now + SECOND, 1));
+    assertFalse(limiter.tryAcquire(now + SECOND, 1));
+  }
+
+  @Test
+  void costAboveTheBurstTakesTheWholeBucket() {
+    RateLimiter limiter = new RateLimiter(1, 3);
+    long now = System.nanoTime();
+    assertTrue(limiter.tryAcquire(now, 10));
+    assertFalse(limiter.tryAcquire(now, 1));
+    assertTrue(limiter.tryAcquire(now + SECOND, 1));
+  }
+
+  @Test
+  void refusedRequestTakesNothing() {
+    RateLimiter limiter = new RateLimiter(1, 2);
+    long now = System.nanoTime();
+    assertTrue(limiter.tryAcquire(now, 2));
+    for (int i = 0; i < 100; i++) {
+      assertFalse(limiter.tryAcquire(now, 1));
+    }
+    assertTrue(limiter.tryAcquire(now + SECOND, 1));
+  }
+
+  @Test
+  void tellsHowLongUntilTokensAreAvailable() {
+    RateLimiter limiter = new RateLimiter(2, 2);
+    long now = System.nanoTime();
+    assertEquals(0, limiter.nanosUntilAvailable(now, 1));
+    assertTrue(limiter.tryAcquire(now, 2));
+    assertEquals(SECOND / 2, limiter.nanosUntilAvailable(now, 1));
+    assertEquals(SECOND, limiter.nanosUntilAvailable(now, 2));
+    assertEquals(0, limiter.nanosUntilAvailable(now + SECOND / 2, 1));
+  }
+
+  @Test
+  void refundGivesTokensBack() {
+    RateLimiter limiter = new RateLimiter(1, 2);
+    long now = System.nanoTime();
+    assertTrue(limiter.tryAcquire(now, 2));
+    assertFalse(limiter.tryAcquire(now, 1));
+    limiter.refund(1);
+    assertTrue(limiter.tryAcquire(now, 1));
+    assertFalse(limiter.tryAcquire(now, 1));
+    limiter.refund(2);
+    assertTrue(limiter.isIdle(now));
+  }
+
+  @Test
+  void isIdleOnceTheBucketHasRefilled() {
+    RateLimiter limiter = new RateLimiter(1, 3);
+    long now = System.nanoTime();
+    assertTrue(limiter.tryAcquire(now, 3));
+    assertFalse(limiter.isIdle(now));
+    assertFalse(limiter.isIdle(now + 2 * SECOND));
+    assertTrue(limiter.isIdle(now + 3 * SECOND));
+  }
+
+  @Test
+  void rejectsRatesAndBurstsThatAreNotPositive() {
+    assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new RateLimiter(-1, 1));
+    assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1, 0));
+  }
+
+  @Test
+  void concurrentCallersNeverTakeMoreThanTheBurst() throws InterruptedException {
+    int burst = 10_000;
+    RateLimiter limiter = new RateLimiter(1, burst);
+    long now = System.nanoTime();
+    AtomicInteger granted = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < burst; i++) {
+          if (limiter.tryAcquire(now, 1)) {
+            granted.incrementAndGet();
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(burst, granted.get());
+  }
+}